@@ -0,0 +1,302 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+import java.io.IOException;
+import java.util.Date;
+import uk.co.petertribble.jkstat.api.Kstat;
+
+/**
+ * Show the statistics whose rates deviate most from their recent
+ * behaviour, from kar input. The rate of every numeric statistic is
+ * tracked with an exponentially weighted moving mean and variance, and
+ * in each interval the statistics furthest from their mean, measured in
+ * standard deviations, are reported.
+ *
+ * @author Peter Tribble
+ */
+public final class Anomalies {
+
+    /*
+     * The weight given to each new rate in the moving averages.
+     */
+    private static final double ALPHA = 0.1;
+    /*
+     * The number of rates seen before a statistic can be flagged.
+     */
+    private static final int WARMUP = 12;
+    /*
+     * The standard deviation is never taken to be less than this
+     * fraction of the mean, nor less than a change of one in the
+     * interval, so that nearly constant rates don't generate huge
+     * scores for insignificant changes.
+     */
+    private static final double MIN_SD = 0.01;
+
+    private String stime;
+    private long daystart;
+    private String etime;
+    private long dayend;
+    private String filename;
+    private long interval;
+    private int sample = 1;
+    private int count = 10;
+    private double threshold = 4.0;
+
+    private final RateEngine engine;
+    private final TopN topn;
+    private long lastboot;
+
+    // the moving average state, indexed by RateEngine slot
+    private double[] means;
+    private double[] variances;
+    private int[] seen;
+
+    /**
+     * Display anomalous statistics.
+     *
+     * @param args the command line arguments
+     */
+    public Anomalies(final String[] args) {
+	engine = new RateEngine();
+	means = new double[0];
+	variances = new double[0];
+	seen = new int[0];
+	parseArgs(args);
+	topn = new TopN(count);
+	try {
+	    accumulate(new KarZipJKstat(filename));
+	} catch (IOException ioe) {
+	    usage("Invalid zip file");
+	}
+    }
+
+    /*
+     * anomalies [-n count] [-T threshold] [-e time] [-f filename]
+     *    [-i interval] [-s time] [--sample n]
+     */
+    private void parseArgs(final String[] args) {
+	for (int i = 0; i < args.length; i++) {
+	    /*
+	     * All flags start with a -, we pick out the arguments to any
+	     * flags that have them as we parse that flag.
+	     */
+	    if (args[i].startsWith("-")) {
+		String flag = args[i].substring(1);
+		if (i + 1 >= args.length) {
+		    usage("Error: missing argument to -" + flag + " flag");
+		} else if ("f".equals(flag)) {
+		    i++;
+		    filename = args[i];
+		} else if ("e".equals(flag)) {
+		    i++;
+		    etime = args[i];
+		} else if ("s".equals(flag)) {
+		    i++;
+		    stime = args[i];
+		} else if ("-sample".equals(flag)) {
+		    i++;
+		    try {
+			sample = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid sample");
+		    }
+		    if (sample < 1) {
+			usage("Error: sample must be positive");
+		    }
+		} else if ("i".equals(flag)) {
+		    i++;
+		    try {
+			interval = KarTime.getIntervalInMillis(args[i]);
+		    } catch (IllegalArgumentException iae) {
+			usage(iae.getMessage());
+		    }
+		} else if ("n".equals(flag)) {
+		    i++;
+		    try {
+			count = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid count");
+		    }
+		    if (count < 1) {
+			usage("Error: count must be positive");
+		    }
+		} else if ("T".equals(flag)) {
+		    i++;
+		    try {
+			threshold = Double.parseDouble(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid threshold");
+		    }
+		    if (!(threshold > 0.0)) {
+			usage("Error: threshold must be positive");
+		    }
+		}
+	    } else {
+		usage();
+	    }
+	}
+    }
+
+    /*
+     * Go through the input reading all the entries, scoring each
+     * statistic against its moving average.
+     */
+    private void accumulate(final KarZipJKstat sjkstat) {
+	try {
+	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
+	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
+	} catch (IllegalArgumentException iae) {
+	    usage(iae.getMessage());
+	}
+	// skip forward to start time
+	if (!sjkstat.seek(daystart)) {
+	    return;
+	}
+	if (interval > 0) {
+	    sjkstat.setInterval(daystart, interval);
+	}
+	sjkstat.setSample(sample);
+	do {
+	    /*
+	     * If we've rebooted since the last measurement, there are no
+	     * rates for this interval. The moving averages are kept.
+	     */
+	    long boottime = sjkstat.getKstat("unix", 0, "system_misc")
+				.longData("boot_time");
+	    if (boottime > lastboot) {
+		engine.reset();
+	    }
+	    lastboot = boottime;
+
+	    engine.startSnapshot();
+	    for (Kstat ks : sjkstat.getKstats()) {
+		engine.update(ks);
+	    }
+	    score();
+	    if (topn.size() > 0) {
+		System.out.printf("%tT    %s%n", new Date(sjkstat.getTime()),
+				"anomalous statistics");
+		display();
+	    }
+	} while (sjkstat.next() && sjkstat.getTime() < dayend);
+    }
+
+    /*
+     * Score every slot that has a rate for this snapshot, keeping the
+     * highest scores, then fold the rate into the moving averages.
+     */
+    private void score() {
+	int nslots = engine.size();
+	if (nslots > means.length) {
+	    grow(nslots);
+	}
+	topn.clear();
+	for (int slot = 0; slot < nslots; slot++) {
+	    if (!engine.hasRate(slot)) {
+		continue;
+	    }
+	    double rate = engine.rate(slot);
+	    double mean = means[slot];
+	    if (seen[slot] == 0) {
+		means[slot] = rate;
+		seen[slot] = 1;
+		continue;
+	    }
+	    double diff = rate - mean;
+	    if (seen[slot] >= WARMUP) {
+		double sd = Math.max(Math.sqrt(variances[slot]),
+			Math.max(MIN_SD * Math.abs(mean),
+				1000000000.0 / engine.interval(slot)));
+		double z = Math.abs(diff) / sd;
+		if (z >= threshold) {
+		    topn.offer(label(slot, rate, mean), z);
+		}
+	    }
+	    double incr = ALPHA * diff;
+	    means[slot] = mean + incr;
+	    variances[slot] = (1.0 - ALPHA) * (variances[slot] + diff * incr);
+	    if (seen[slot] < WARMUP) {
+		seen[slot]++;
+	    }
+	}
+    }
+
+    /*
+     * Only the few statistics over the threshold get a label, so it's
+     * cheap enough to format it here.
+     */
+    private String label(final int slot, final double rate,
+			final double mean) {
+	return String.format("%14.1f %14.1f %s", rate, mean,
+			engine.name(slot));
+    }
+
+    private void grow(final int nslots) {
+	int nsize = Math.max(nslots, 2 * means.length);
+	double[] nmeans = new double[nsize];
+	System.arraycopy(means, 0, nmeans, 0, means.length);
+	double[] nvariances = new double[nsize];
+	System.arraycopy(variances, 0, nvariances, 0, variances.length);
+	int[] nseen = new int[nsize];
+	System.arraycopy(seen, 0, nseen, 0, seen.length);
+	means = nmeans;
+	variances = nvariances;
+	seen = nseen;
+    }
+
+    private void display() {
+	System.out.println("  zscore           rate           mean statistic");
+	String[] labels = topn.getNames();
+	double[] scores = topn.getValues();
+	for (int i = 0; i < labels.length; i++) {
+	    System.out.printf("%8.1f %s%n", scores[i], labels[i]);
+	}
+    }
+
+    /*
+     * Print usage message and exit.
+     */
+    private void usage() {
+	System.err.println("Usage: anomalies [-n count] [-T threshold] "
+			+ "[-e time] [-f filename]");
+	System.err.println("                 [-i interval] [-s time] "
+			+ "[--sample n]");
+	System.exit(1);
+    }
+
+    /*
+     * Print error, followed by usage message and exit.
+     */
+    private void usage(final String s) {
+	System.err.println(s);
+	usage();
+    }
+
+    /**
+     * Display anomalous statistics.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(final String[] args) {
+	new Anomalies(args);
+    }
+}
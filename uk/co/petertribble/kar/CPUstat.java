@@ -26,8 +26,6 @@ import uk.co.petertribble.jkstat.api.Kstat;
 import uk.co.petertribble.jkstat.api.KstatAggregate;
 import uk.co.petertribble.jkstat.api.KstatFilter;
 import uk.co.petertribble.jkstat.api.KstatSet;
-import uk.co.petertribble.jkstat.api.SequencedJKstat;
-import uk.co.petertribble.jkstat.parse.ParseableJSONZipJKstat;
 
 /**
  * Main driver to give cpu information from kar input.
@@ -41,10 +39,12 @@ public class CPUstat {
     private String etime;
     private long dayend;
     private String filename;
+    private long interval;
+    private int sample = 1;
     private KstatAggregate ksold;
+    private KarTimeline timeline;
 
     private long oldsnaptime;
-    private long lastboot;
 
     private double dexec;
     private long dintr;
@@ -54,6 +54,23 @@ public class CPUstat {
     private long dsys;
     private long didl;
 
+    /*
+     * Totals for the average over the whole period. The load averages are
+     * weighted by the time each snapshot stands for.
+     */
+    private long texec;
+    private long tintr;
+    private long tsyscl;
+    private long tcsw;
+    private double tusr;
+    private double tsys;
+    private double tidl;
+    private long tsnap;
+    private double tload1;
+    private double tload5;
+    private double tload15;
+    private long tweight;
+
     /**
      * Display CPUstat output.
      *
@@ -62,14 +79,14 @@ public class CPUstat {
     public CPUstat(final String[] args) {
 	parseArgs(args);
 	try {
-	    accumulate(new ParseableJSONZipJKstat(filename));
+	    accumulate(new KarZipJKstat(filename));
 	} catch (IOException ioe) {
 	    usage("Invalid zip file");
 	}
     }
 
     /*
-     * mpstat [-e time] [-f filename] [-s time]
+     * cpustat [-e time] [-f filename] [-i interval] [-s time] [--sample n]
      *
      */
     private void parseArgs(final String[] args) {
@@ -89,6 +106,23 @@ public class CPUstat {
 		} else if ("s".equals(flag)) {
 		    i++;
 		    stime = args[i];
+		} else if ("-sample".equals(flag)) {
+		    i++;
+		    try {
+			sample = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid sample");
+		    }
+		    if (sample < 1) {
+			usage("Error: sample must be positive");
+		    }
+		} else if ("i".equals(flag)) {
+		    i++;
+		    try {
+			interval = KarTime.getIntervalInMillis(args[i]);
+		    } catch (IllegalArgumentException iae) {
+			usage(iae.getMessage());
+		    }
 		}
 	    } else {
 		usage();
@@ -100,7 +134,7 @@ public class CPUstat {
      * Go through the input reading all the entries, and accumulating
      * statistics.
      */
-    private void accumulate(final SequencedJKstat sjkstat) {
+    private void accumulate(final KarZipJKstat sjkstat) {
 	try {
 	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
 	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
@@ -108,38 +142,46 @@ public class CPUstat {
 	    usage(iae.getMessage());
 	}
 	// skip forward to start time
-	while (sjkstat.getTime() < daystart) {
-	    sjkstat.next();
+	if (!sjkstat.seek(daystart)) {
+	    return;
 	}
+	if (interval > 0) {
+	    sjkstat.setInterval(daystart, interval);
+	}
+	sjkstat.setSample(sample);
+	timeline = new KarTimeline(sjkstat, daystart, interval, sample);
 	do {
+	    /*
+	     * If we've rebooted since the last measurement, clear all the
+	     * saved measurements and the code will do the right thing.
+	     */
+	    int change = timeline.advance(sjkstat.getTime(),
+				sjkstat.getKstat("unix", 0, "system_misc")
+				.longData("boot_time"));
+	    timeline.printChange(change);
+	    if (change == KarTimeline.RESTART) {
+		ksold = null;
+	    }
 	    System.out.printf("%tT    %s%n", new Date(sjkstat.getTime()),
 				"cpu statistics");
 	    System.out.println("Load 1min   5min  15min   "
 				+ "exec     in    sy    cs   us  sy  id");
-
 	    KstatFilter ksf = new KstatFilter(sjkstat);
 	    ksf.addFilter("cpu::sys");
-
+	    KstatSet kss = new KstatSet(sjkstat, ksf);
 	    /*
-	     * If we've rebooted since the last measurement, clear all the
-	     * saved measurements and the code will do the right thing.
+	     * The first measurement is since boot, so only counts towards
+	     * the average if the boot was in the period.
 	     */
-	    long boottime = sjkstat.getKstat("unix", 0, "system_misc")
-				.longData("boot_time");
-	    if (boottime > lastboot) {
-		ksold = null;
-	    }
-	    lastboot = boottime;
-
-	    KstatSet kss = new KstatSet(sjkstat, ksf);
-
 	    doPrint(sjkstat.getKstat("unix", 0, "system_misc"),
-		new KstatAggregate(sjkstat, kss.getKstats()));
-
+		new KstatAggregate(sjkstat, kss.getKstats()),
+		ksold != null || change == KarTimeline.RESTART);
 	} while (sjkstat.next() && sjkstat.getTime() < dayend);
+	printAverage();
     }
 
-    private void doPrint(final Kstat ksl, final KstatAggregate ks) {
+    private void doPrint(final Kstat ksl, final KstatAggregate ks,
+			final boolean inperiod) {
 
 	// get the new values
 	long nexec = ks.aggregate("sysexec");
@@ -174,21 +216,64 @@ public class CPUstat {
 	dsys = Math.round(nsys * 100.0 / snapdelta);
 	didl = Math.round(nidl * 100.0 / snapdelta);
 
+	printRow(ksl.longData("avenrun_1min") / 256.0,
+		ksl.longData("avenrun_5min") / 256.0,
+		ksl.longData("avenrun_15min") / 256.0);
+	long weight = timeline.getWeight();
+	tload1 += weight * ksl.longData("avenrun_1min") / 256.0;
+	tload5 += weight * ksl.longData("avenrun_5min") / 256.0;
+	tload15 += weight * ksl.longData("avenrun_15min") / 256.0;
+	tweight += weight;
+	if (inperiod) {
+	    texec += nexec;
+	    tintr += nintr;
+	    tsyscl += nsyscl;
+	    tcsw += ncsw;
+	    tusr += nusr;
+	    tsys += nsys;
+	    tidl += nidl;
+	    tsnap += snapdelta;
+	}
+	ksold = ks;
+    }
+
+    private void printRow(final double load1, final double load5,
+			final double load15) {
 	System.out.printf(
 	    "   %6.2f %6.2f %6.2f   %4.1f  %5d %5d %5d  %3d %3d %3d%n",
-		ksl.longData("avenrun_1min") / 256.0,
-		ksl.longData("avenrun_5min") / 256.0,
-		ksl.longData("avenrun_15min") / 256.0,
+		load1, load5, load15,
 		dexec, dintr, dsyscl, dcsw, dusr, dsys, didl);
+    }
 
-	ksold = ks;
+    /*
+     * Print the averages over the whole period, calculated from the
+     * accumulated deltas, so they're weighted by time.
+     */
+    private void printAverage() {
+	if (tsnap == 0) {
+	    return;
+	}
+	dexec = texec * 1000000000.0 / tsnap;
+	dintr = Math.round(tintr * 1000000000.0 / tsnap);
+	dsyscl = Math.round(tsyscl * 1000000000.0 / tsnap);
+	dcsw = Math.round(tcsw * 1000000000.0 / tsnap);
+	dusr = Math.round(tusr * 100.0 / tsnap);
+	dsys = Math.round(tsys * 100.0 / tsnap);
+	didl = Math.round(tidl * 100.0 / tsnap);
+	System.out.println();
+	System.out.printf("%-8s    %s%n", "Average", "cpu statistics");
+	System.out.println("Load 1min   5min  15min   "
+				+ "exec     in    sy    cs   us  sy  id");
+	printRow(tload1 / tweight, tload5 / tweight, tload15 / tweight);
     }
 
     /*
      * Print usage message and exit.
      */
     private void usage() {
-	System.err.println("Usage: cpustat [-e time] [-f filename] [-s time]");
+	System.err.println("Usage: cpustat [-e time] [-f filename] "
+			+ "[-i interval] [-s time]");
+	System.err.println("               [--sample n]");
 	System.exit(1);
     }
 
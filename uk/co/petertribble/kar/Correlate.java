@@ -0,0 +1,393 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import uk.co.petertribble.jkstat.api.Kstat;
+
+/**
+ * Find the statistics whose rates are most strongly correlated with a
+ * target, from kar input. The target is given as
+ * module:instance:name:statistic, where any empty part matches anything,
+ * and its rate is the sum of the rates of all the statistics it matches.
+ *
+ * The Pearson correlation coefficient of every other statistic with the
+ * target is calculated in a single pass, with the running co-moments
+ * held in primitive arrays. The statistics are split into chunks that
+ * are updated in parallel.
+ *
+ * @author Peter Tribble
+ */
+public final class Correlate {
+
+    /*
+     * Below this many statistics it isn't worth going parallel.
+     */
+    private static final int CHUNK_SIZE = 4096;
+    /*
+     * A statistic needs this many points before its correlation counts.
+     */
+    private static final int MIN_POINTS = 3;
+
+    private String stime;
+    private long daystart;
+    private String etime;
+    private long dayend;
+    private String filename;
+    private long interval;
+    private int sample = 1;
+    private int count = 20;
+    private String target;
+    private String[] tparts;
+
+    private final RateEngine engine;
+    private long lastboot;
+    private final ExecutorService pool;
+    private final int nthreads;
+
+    // which slots contribute to the target, for the first nmatched slots
+    private boolean[] isTarget;
+    private int nmatched;
+    private long ntarget;
+
+    // running means and co-moments, indexed by RateEngine slot
+    private long[] npoints;
+    private double[] meanx;
+    private double[] meany;
+    private double[] m2x;
+    private double[] m2y;
+    private double[] cxy;
+
+    /**
+     * Display the statistics most correlated with a target.
+     *
+     * @param args the command line arguments
+     */
+    public Correlate(final String[] args) {
+	engine = new RateEngine();
+	isTarget = new boolean[0];
+	npoints = new long[0];
+	meanx = new double[0];
+	meany = new double[0];
+	m2x = new double[0];
+	m2y = new double[0];
+	cxy = new double[0];
+	parseArgs(args);
+	if (target == null) {
+	    usage("Must supply a target.");
+	}
+	tparts = target.split(":", -1);
+	if (tparts.length != 4) {
+	    usage("Invalid target " + target);
+	}
+	nthreads = Runtime.getRuntime().availableProcessors();
+	pool = Executors.newFixedThreadPool(nthreads);
+	try {
+	    accumulate(new KarZipJKstat(filename));
+	} catch (IOException ioe) {
+	    usage("Invalid zip file");
+	} finally {
+	    pool.shutdown();
+	}
+	display();
+    }
+
+    /*
+     * correlate -t target [-n count] [-e time] [-f filename]
+     *    [-i interval] [-s time] [--sample n]
+     */
+    private void parseArgs(final String[] args) {
+	for (int i = 0; i < args.length; i++) {
+	    /*
+	     * All flags start with a -, we pick out the arguments to any
+	     * flags that have them as we parse that flag.
+	     */
+	    if (args[i].startsWith("-")) {
+		String flag = args[i].substring(1);
+		if (i + 1 >= args.length) {
+		    usage("Error: missing argument to -" + flag + " flag");
+		} else if ("f".equals(flag)) {
+		    i++;
+		    filename = args[i];
+		} else if ("e".equals(flag)) {
+		    i++;
+		    etime = args[i];
+		} else if ("s".equals(flag)) {
+		    i++;
+		    stime = args[i];
+		} else if ("t".equals(flag)) {
+		    i++;
+		    target = args[i];
+		} else if ("-sample".equals(flag)) {
+		    i++;
+		    try {
+			sample = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid sample");
+		    }
+		    if (sample < 1) {
+			usage("Error: sample must be positive");
+		    }
+		} else if ("i".equals(flag)) {
+		    i++;
+		    try {
+			interval = KarTime.getIntervalInMillis(args[i]);
+		    } catch (IllegalArgumentException iae) {
+			usage(iae.getMessage());
+		    }
+		} else if ("n".equals(flag)) {
+		    i++;
+		    try {
+			count = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid count");
+		    }
+		    if (count < 1) {
+			usage("Error: count must be positive");
+		    }
+		}
+	    } else {
+		usage();
+	    }
+	}
+    }
+
+    /*
+     * Go through the input reading all the entries, and accumulating
+     * co-moments against the target.
+     */
+    private void accumulate(final KarZipJKstat sjkstat) {
+	try {
+	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
+	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
+	} catch (IllegalArgumentException iae) {
+	    usage(iae.getMessage());
+	}
+	// skip forward to start time
+	if (!sjkstat.seek(daystart)) {
+	    return;
+	}
+	if (interval > 0) {
+	    sjkstat.setInterval(daystart, interval);
+	}
+	sjkstat.setSample(sample);
+	do {
+	    long boottime = sjkstat.getKstat("unix", 0, "system_misc")
+				.longData("boot_time");
+	    if (boottime > lastboot) {
+		engine.reset();
+	    }
+	    lastboot = boottime;
+
+	    engine.startSnapshot();
+	    for (Kstat ks : sjkstat.getKstats()) {
+		engine.update(ks);
+	    }
+	    int nslots = engine.size();
+	    if (nslots > npoints.length) {
+		grow(nslots);
+	    }
+	    matchTargets(nslots);
+	    /*
+	     * The target value for this interval. If none of the target
+	     * statistics have a rate, there's nothing to correlate against.
+	     */
+	    boolean found = false;
+	    double y = 0.0;
+	    for (int slot = 0; slot < nslots; slot++) {
+		if (isTarget[slot] && engine.hasRate(slot)) {
+		    y += engine.rate(slot);
+		    found = true;
+		}
+	    }
+	    if (found) {
+		ntarget++;
+		update(nslots, y);
+	    }
+	} while (sjkstat.next() && sjkstat.getTime() < dayend);
+    }
+
+    /*
+     * Work out whether any newly allocated slots are part of the target.
+     */
+    private void matchTargets(final int nslots) {
+	for (; nmatched < nslots; nmatched++) {
+	    isTarget[nmatched] = matches(engine.name(nmatched));
+	}
+    }
+
+    /*
+     * A slot name is module:instance:name:statistic. The kstat name may
+     * itself contain colons, so only the first two and last colons
+     * delimit fields.
+     */
+    private boolean matches(final String sname) {
+	int c1 = sname.indexOf(':');
+	int c2 = sname.indexOf(':', c1 + 1);
+	int c3 = sname.lastIndexOf(':');
+	return matchPart(tparts[0], sname.substring(0, c1))
+	    && matchPart(tparts[1], sname.substring(c1 + 1, c2))
+	    && matchPart(tparts[2], sname.substring(c2 + 1, c3))
+	    && matchPart(tparts[3], sname.substring(c3 + 1));
+    }
+
+    private static boolean matchPart(final String pattern, final String s) {
+	return pattern.isEmpty() || "*".equals(pattern) || pattern.equals(s);
+    }
+
+    /*
+     * Update the co-moments of every slot with a rate in this interval,
+     * in parallel if there are enough of them. If any part of the update
+     * fails, or we're interrupted, the co-moments are incomplete, so
+     * there's no point carrying on.
+     */
+    private void update(final int nslots, final double y) {
+	if (nslots <= CHUNK_SIZE || nthreads == 1) {
+	    updateRange(0, nslots, y);
+	    return;
+	}
+	List<Callable<Void>> tasks = new ArrayList<>();
+	for (int lo = 0; lo < nslots; lo += CHUNK_SIZE) {
+	    final int flo = lo;
+	    final int fhi = Math.min(lo + CHUNK_SIZE, nslots);
+	    tasks.add(() -> {
+		updateRange(flo, fhi, y);
+		return null;
+	    });
+	}
+	try {
+	    for (Future<Void> f : pool.invokeAll(tasks)) {
+		f.get();
+	    }
+	} catch (ExecutionException ee) {
+	    System.err.println("Error: unable to update correlations ("
+			+ ee.getCause() + ")");
+	    System.exit(1);
+	} catch (InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	    System.err.println("Error: interrupted");
+	    System.exit(1);
+	}
+    }
+
+    /*
+     * Welford's online update of the means and co-moments, which stays
+     * accurate even for the very large rates of nanosecond counters.
+     */
+    private void updateRange(final int lo, final int hi, final double y) {
+	for (int slot = lo; slot < hi; slot++) {
+	    if (isTarget[slot] || !engine.hasRate(slot)) {
+		continue;
+	    }
+	    double x = engine.rate(slot);
+	    long n = ++npoints[slot];
+	    double dx = x - meanx[slot];
+	    double dy = y - meany[slot];
+	    meanx[slot] += dx / n;
+	    meany[slot] += dy / n;
+	    m2x[slot] += dx * (x - meanx[slot]);
+	    m2y[slot] += dy * (y - meany[slot]);
+	    cxy[slot] += dx * (y - meany[slot]);
+	}
+    }
+
+    private void grow(final int nslots) {
+	int nsize = Math.max(nslots, 2 * npoints.length);
+	boolean[] nistarget = new boolean[nsize];
+	System.arraycopy(isTarget, 0, nistarget, 0, isTarget.length);
+	isTarget = nistarget;
+	long[] nnpoints = new long[nsize];
+	System.arraycopy(npoints, 0, nnpoints, 0, npoints.length);
+	npoints = nnpoints;
+	meanx = grow(meanx, nsize);
+	meany = grow(meany, nsize);
+	m2x = grow(m2x, nsize);
+	m2y = grow(m2y, nsize);
+	cxy = grow(cxy, nsize);
+    }
+
+    private static double[] grow(final double[] d, final int nsize) {
+	double[] nd = new double[nsize];
+	System.arraycopy(d, 0, nd, 0, d.length);
+	return nd;
+    }
+
+    private void display() {
+	if (ntarget == 0) {
+	    System.err.println("No rates found for " + target);
+	    System.exit(1);
+	}
+	TopN topn = new TopN(count);
+	Map<String, Double> coeffs = new HashMap<>();
+	for (int slot = 0; slot < nmatched; slot++) {
+	    if (npoints[slot] < MIN_POINTS || m2x[slot] <= 0.0
+		    || m2y[slot] <= 0.0) {
+		continue;
+	    }
+	    double r = cxy[slot] / Math.sqrt(m2x[slot] * m2y[slot]);
+	    coeffs.put(engine.name(slot), r);
+	    topn.offer(engine.name(slot), Math.abs(r));
+	}
+	System.out.printf("Correlation with %s over %d intervals%n", target,
+			ntarget);
+	System.out.println("       r statistic");
+	for (String name : topn.getNames()) {
+	    System.out.printf("%8.3f %s%n", coeffs.get(name), name);
+	}
+    }
+
+    /*
+     * Print usage message and exit.
+     */
+    private void usage() {
+	System.err.println("Usage: correlate -t target [-n count] [-e time] "
+			+ "[-f filename]");
+	System.err.println("                 [-i interval] [-s time] "
+			+ "[--sample n]");
+	System.exit(1);
+    }
+
+    /*
+     * Print error, followed by usage message and exit.
+     */
+    private void usage(final String s) {
+	System.err.println(s);
+	usage();
+    }
+
+    /**
+     * Display the statistics most correlated with a target.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(final String[] args) {
+	new Correlate(args);
+    }
+}
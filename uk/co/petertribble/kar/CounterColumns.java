@@ -0,0 +1,217 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import uk.co.petertribble.jkstat.api.Kstat;
+
+/**
+ * Hold a fixed set of statistics from a list of kstats, such as all the
+ * disks or all the cpus, as one column of counters per statistic, along
+ * with the change in each counter since the previous snapshot.
+ *
+ * Row i of each column corresponds to the ith kstat in the list passed
+ * to {@link #update(List)}. A kstat that wasn't in the previous list is
+ * treated as having started from zero when it was created, as the
+ * *stat commands do. The deltas are calculated with {@link RateKernel}.
+ *
+ * @author Peter Tribble
+ */
+public final class CounterColumns {
+
+    private final String[] statistics;
+    private int nrows;
+    private int capacity;
+    private long[][] values;
+    private long[][] oldValues;
+    private long[][] base;
+    private long[][] deltas;
+    private long[] snaptimes;
+    private long[] oldSnaptimes;
+    private long[] baseTimes;
+    private long[] snapdeltas;
+    private int[] rows;
+    private Kstat[] oldKstats;
+    private int noldrows;
+    private Map<Kstat, Integer> oldRows;
+
+    /**
+     * Create a set of columns for the given statistics.
+     *
+     * @param statistics the names of the statistics to hold
+     */
+    public CounterColumns(final String... statistics) {
+	this.statistics = statistics.clone();
+	allocate(64);
+	oldKstats = new Kstat[0];
+    }
+
+    /*
+     * Allocate room for the given number of rows, preserving the previous
+     * snapshot.
+     */
+    private void allocate(final int n) {
+	int ns = statistics.length;
+	long[][] ov = new long[ns][n];
+	if (oldValues != null) {
+	    for (int c = 0; c < ns; c++) {
+		System.arraycopy(oldValues[c], 0, ov[c], 0, noldrows);
+	    }
+	}
+	long[] ot = new long[n];
+	if (oldSnaptimes != null) {
+	    System.arraycopy(oldSnaptimes, 0, ot, 0, noldrows);
+	}
+	oldValues = ov;
+	oldSnaptimes = ot;
+	values = new long[ns][n];
+	base = new long[ns][n];
+	deltas = new long[ns][n];
+	snaptimes = new long[n];
+	baseTimes = new long[n];
+	snapdeltas = new long[n];
+	rows = new int[n];
+	capacity = n;
+    }
+
+    /**
+     * Forget the previous snapshot, so that all the deltas from the next
+     * update are measured from zero. Used after a reboot.
+     */
+    public void reset() {
+	noldrows = 0;
+	oldKstats = new Kstat[0];
+	oldRows = null;
+    }
+
+    /**
+     * Load the counters from a new snapshot, and calculate the deltas from
+     * the previous one.
+     *
+     * @param kstats the kstats in the new snapshot, one per row
+     */
+    public void update(final List<Kstat> kstats) {
+	int n = kstats.size();
+	if (n > capacity) {
+	    allocate(Math.max(n, 2 * capacity));
+	}
+	int ns = statistics.length;
+	/*
+	 * If the kstats are in the same rows as last time, which is almost
+	 * always the case, the deltas can be taken directly against the old
+	 * columns. Otherwise the old values are gathered into the new rows.
+	 */
+	boolean aligned = n == noldrows;
+	for (int i = 0; i < n; i++) {
+	    Kstat ks = kstats.get(i);
+	    for (int c = 0; c < ns; c++) {
+		values[c][i] = ks.longData(statistics[c]);
+	    }
+	    snaptimes[i] = ks.getSnaptime();
+	    rows[i] = oldRow(ks, i);
+	    if (rows[i] != i) {
+		aligned = false;
+	    }
+	}
+	if (!aligned) {
+	    for (int i = 0; i < n; i++) {
+		int p = rows[i];
+		for (int c = 0; c < ns; c++) {
+		    base[c][i] = p < 0 ? 0L : oldValues[c][p];
+		}
+		baseTimes[i] = p < 0 ? kstats.get(i).getCrtime()
+		    : oldSnaptimes[p];
+	    }
+	}
+	long[][] bv = aligned ? oldValues : base;
+	long[] bt = aligned ? oldSnaptimes : baseTimes;
+	for (int c = 0; c < ns; c++) {
+	    RateKernel.delta(values[c], bv[c], deltas[c], n);
+	}
+	RateKernel.delta(snaptimes, bt, snapdeltas, n);
+	/*
+	 * The current snapshot becomes the previous one.
+	 */
+	long[][] tv = oldValues;
+	oldValues = values;
+	values = tv;
+	long[] tt = oldSnaptimes;
+	oldSnaptimes = snaptimes;
+	snaptimes = tt;
+	oldKstats = kstats.toArray(oldKstats.length == n ? oldKstats
+				: new Kstat[n]);
+	noldrows = n;
+	oldRows = null;
+	nrows = n;
+    }
+
+    /*
+     * Find the row a kstat occupied in the previous snapshot, or -1 if it
+     * wasn't present.
+     */
+    private int oldRow(final Kstat ks, final int i) {
+	if (i < noldrows && ks.equals(oldKstats[i])) {
+	    return i;
+	}
+	if (oldRows == null) {
+	    oldRows = new HashMap<>();
+	    for (int j = 0; j < noldrows; j++) {
+		oldRows.put(oldKstats[j], j);
+	    }
+	}
+	Integer p = oldRows.get(ks);
+	return p == null ? -1 : p;
+    }
+
+    /**
+     * Return the number of rows in the current snapshot.
+     *
+     * @return the number of rows
+     */
+    public int size() {
+	return nrows;
+    }
+
+    /**
+     * Return the deltas for a statistic. Only the first {@link #size()}
+     * elements are valid.
+     *
+     * @param c the index of the statistic, in the order given to the
+     * constructor
+     *
+     * @return the column of deltas for the given statistic
+     */
+    public long[] deltas(final int c) {
+	return deltas[c];
+    }
+
+    /**
+     * Return the times, in nanoseconds, over which the deltas were
+     * measured. Only the first {@link #size()} elements are valid.
+     *
+     * @return the column of snapshot time deltas
+     */
+    public long[] snapdeltas() {
+	return snapdeltas;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import uk.co.petertribble.jkstat.api.Kstat;
+
+/**
+ * Compare the mean rates of every statistic in two kar archives, for
+ * example today against the same day last week, and show the statistics
+ * that have changed the most. The two archives are read concurrently.
+ * If a start or end time is given, it applies to the day of each
+ * archive, so the comparison covers the same time of day.
+ *
+ * @author Peter Tribble
+ */
+public final class Diff {
+
+    private String stime;
+    private String etime;
+    private int sample = 1;
+    private int count = 20;
+    private final List<String> filenames;
+
+    /**
+     * Display the statistics that differ most between two archives.
+     *
+     * @param args the command line arguments
+     */
+    public Diff(final String[] args) {
+	filenames = new ArrayList<>();
+	parseArgs(args);
+	if (filenames.size() != 2) {
+	    usage("Must supply two input files.");
+	}
+	ExecutorService pool = Executors.newFixedThreadPool(2);
+	try {
+	    List<Future<MeanRates>> futures = new ArrayList<>();
+	    for (String filename : filenames) {
+		futures.add(pool.submit(new MeanRates(filename)));
+	    }
+	    MeanRates before = futures.get(0).get();
+	    MeanRates after = futures.get(1).get();
+	    display(before, after);
+	} catch (ExecutionException ee) {
+	    if (ee.getCause() instanceof IOException) {
+		usage("Invalid zip file");
+	    }
+	    usage(ee.getCause().getMessage());
+	} catch (InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    /*
+     * diff [-n count] [-e time] [-s time] [--sample n] -f filename
+     *    -f filename
+     */
+    private void parseArgs(final String[] args) {
+	for (int i = 0; i < args.length; i++) {
+	    /*
+	     * All flags start with a -, we pick out the arguments to any
+	     * flags that have them as we parse that flag.
+	     */
+	    if (args[i].startsWith("-")) {
+		String flag = args[i].substring(1);
+		if (i + 1 >= args.length) {
+		    usage("Error: missing argument to -" + flag + " flag");
+		} else if ("f".equals(flag)) {
+		    i++;
+		    filenames.add(args[i]);
+		} else if ("e".equals(flag)) {
+		    i++;
+		    etime = args[i];
+		} else if ("s".equals(flag)) {
+		    i++;
+		    stime = args[i];
+		} else if ("-sample".equals(flag)) {
+		    i++;
+		    try {
+			sample = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid sample");
+		    }
+		    if (sample < 1) {
+			usage("Error: sample must be positive");
+		    }
+		} else if ("n".equals(flag)) {
+		    i++;
+		    try {
+			count = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid count");
+		    }
+		    if (count < 1) {
+			usage("Error: count must be positive");
+		    }
+		}
+	    } else {
+		usage();
+	    }
+	}
+    }
+
+    /*
+     * Calculate the mean rate of every statistic in an archive, as the
+     * total change divided by the total time over which it was measured,
+     * so intervals spanning a reboot or a gap are simply left out.
+     */
+    private final class MeanRates implements Callable<MeanRates> {
+	private final String filename;
+	private final RateEngine engine = new RateEngine();
+	private double[] sums = new double[0];
+	private long[] times = new long[0];
+	private long elapsed;
+
+	MeanRates(final String filename) {
+	    this.filename = filename;
+	}
+
+	@Override
+	public MeanRates call() throws IOException {
+	    KarZipJKstat sjkstat = new KarZipJKstat(filename);
+	    long daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
+	    long dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
+	    if (!sjkstat.seek(daystart)) {
+		sjkstat.getZipFile().close();
+		return this;
+	    }
+	    sjkstat.setSample(sample);
+	    long lastboot = 0;
+	    long first = sjkstat.getTime();
+	    do {
+		long boottime = sjkstat.getKstat("unix", 0, "system_misc")
+				.longData("boot_time");
+		if (boottime > lastboot) {
+		    engine.reset();
+		}
+		lastboot = boottime;
+		engine.startSnapshot();
+		for (Kstat ks : sjkstat.getKstats()) {
+		    engine.update(ks);
+		}
+		add();
+		elapsed = sjkstat.getTime() - first;
+	    } while (sjkstat.next() && sjkstat.getTime() < dayend);
+	    sjkstat.getZipFile().close();
+	    return this;
+	}
+
+	private void add() {
+	    int nslots = engine.size();
+	    if (nslots > sums.length) {
+		double[] nsums = new double[nslots];
+		System.arraycopy(sums, 0, nsums, 0, sums.length);
+		sums = nsums;
+		long[] ntimes = new long[nslots];
+		System.arraycopy(times, 0, ntimes, 0, times.length);
+		times = ntimes;
+	    }
+	    for (int slot = 0; slot < nslots; slot++) {
+		if (engine.hasRate(slot)) {
+		    sums[slot] += engine.delta(slot);
+		    times[slot] += engine.interval(slot);
+		}
+	    }
+	}
+
+	/*
+	 * Return the mean rates, per second, indexed by statistic name.
+	 */
+	Map<String, Double> rates() {
+	    Map<String, Double> rmap = new HashMap<>();
+	    for (int slot = 0; slot < times.length; slot++) {
+		if (times[slot] > 0) {
+		    rmap.put(engine.name(slot),
+			sums[slot] * 1000000000.0 / times[slot]);
+		}
+	    }
+	    return rmap;
+	}
+    }
+
+    /*
+     * Rank the statistics present in both archives by the size of the
+     * change in their mean rate. The ratio is damped by the rate of a
+     * single event over the period, so that rarely incremented counters
+     * don't swamp the output.
+     */
+    private void display(final MeanRates before, final MeanRates after) {
+	Map<String, Double> rbefore = before.rates();
+	Map<String, Double> rafter = after.rates();
+	long elapsed = Math.max(before.elapsed, after.elapsed);
+	double damp = elapsed > 0 ? 1000.0 / elapsed : 1.0;
+	TopN topn = new TopN(count);
+	for (Map.Entry<String, Double> me : rbefore.entrySet()) {
+	    Double rnew = rafter.get(me.getKey());
+	    if (rnew == null) {
+		continue;
+	    }
+	    double r1 = me.getValue();
+	    double r2 = rnew;
+	    if (r1 == r2) {
+		continue;
+	    }
+	    double score = Math.abs(Math.log((Math.abs(r2) + damp)
+					/ (Math.abs(r1) + damp)));
+	    topn.offer(me.getKey(), score);
+	}
+	System.out.println("        before          after    change statistic");
+	for (String name : topn.getNames()) {
+	    double r1 = rbefore.get(name);
+	    double r2 = rafter.get(name);
+	    if (r1 == 0.0) {
+		System.out.printf("%14.1f %14.1f %9s %s%n", r1, r2, "new",
+				name);
+	    } else {
+		System.out.printf("%14.1f %14.1f %+8.1f%% %s%n", r1, r2,
+				100.0 * (r2 - r1) / r1, name);
+	    }
+	}
+    }
+
+    /*
+     * Print usage message and exit.
+     */
+    private void usage() {
+	System.err.println("Usage: diff [-n count] [-e time] [-s time] "
+			+ "[--sample n]");
+	System.err.println("            -f filename -f filename");
+	System.exit(1);
+    }
+
+    /*
+     * Print error, followed by usage message and exit.
+     */
+    private void usage(final String s) {
+	System.err.println(s);
+	usage();
+    }
+
+    /**
+     * Display the statistics that differ most between two archives.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(final String[] args) {
+	new Diff(args);
+    }
+}
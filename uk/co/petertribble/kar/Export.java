@@ -0,0 +1,412 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
+import uk.co.petertribble.jkstat.api.Kstat;
+
+/**
+ * Export kstats matching a pattern from kar data as a wide CSV file, with
+ * one row per snapshot and one column per statistic.
+ *
+ * The columns are worked out once, before any rows are written, from the
+ * first snapshot or, if asked, from a pass through all the snapshots, and
+ * are sorted by kstat and then by statistic. Only numeric statistics are
+ * exported. Each row then just looks up the kstats for its columns, so
+ * there's no pattern matching per snapshot. A kstat that isn't present in
+ * a snapshot leaves its columns empty.
+ *
+ * With --rates, each value is replaced by its rate of change per second
+ * since the previous snapshot, which is left empty if there's no previous
+ * value, the kstat has been recreated, or the counter has gone backwards.
+ *
+ * @author Peter Tribble
+ */
+public final class Export {
+
+    /*
+     * The size of the buffer for compressed output.
+     */
+    private static final int GZIP_BUFFER = 64 * 1024;
+
+    private String stime;
+    private String etime;
+    private String filename;
+    private String outfile;
+    private String format = "csv-wide";
+    private boolean gzip;
+    private boolean rates;
+    private boolean scan;
+    private int sample = 1;
+    // -T d | u for pretty time or raw seconds
+    private String ttype;
+    private final Set<String> kstatPatterns;
+
+    /*
+     * The columns for a kstat, which are contiguous, along with the
+     * snapshot and creation times of its previous measurement, and the
+     * row it was last seen in.
+     */
+    private static final class Entry {
+	private final Kstat key;
+	private final String[] statistics;
+	private final int first;
+	private long snaptime = -1;
+	private long crtime;
+	private int seen;
+
+	Entry(final Kstat key, final Set<String> statistics,
+		final int first) {
+	    this.key = key;
+	    this.statistics = statistics.toArray(new String[0]);
+	    this.first = first;
+	}
+    }
+
+    private Entry[] entries;
+    private int ncolumns;
+    private long[] values;
+    private long[] previous;
+    private double[] rateValues;
+    /*
+     * The row each column last had a value, and last had one to write.
+     */
+    private int[] seen;
+    private int[] valid;
+    private int generation;
+
+    /**
+     * Export kstats as CSV.
+     *
+     * @param args the command line arguments
+     */
+    public Export(final String[] args) {
+	kstatPatterns = new HashSet<>();
+	parseArgs(args);
+	if (kstatPatterns.isEmpty()) {
+	    usage("Must supply a pattern.");
+	}
+	if (!"csv-wide".equals(format)) {
+	    usage("Error: unsupported format " + format);
+	}
+	if (outfile != null && outfile.endsWith(".gz")) {
+	    gzip = true;
+	}
+	KarZipJKstat sjkstat = null;
+	try {
+	    sjkstat = new KarZipJKstat(filename);
+	} catch (IOException ioe) {
+	    usage("Invalid zip file");
+	}
+	OutputStream os = null;
+	try {
+	    os = outfile == null ? new FileOutputStream(FileDescriptor.out)
+		: new FileOutputStream(outfile);
+	    if (gzip) {
+		os = new GZIPOutputStream(os, GZIP_BUFFER);
+	    }
+	} catch (IOException ioe) {
+	    System.err.println("Error: unable to write to " + outfile);
+	    System.exit(1);
+	}
+	KarOutput out = new KarOutput(os);
+	accumulate(sjkstat, out);
+	out.flush();
+	boolean failed = out.checkError();
+	try {
+	    os.close();
+	} catch (IOException ioe) {
+	    failed = true;
+	}
+	if (failed) {
+	    System.err.println("Error: unable to write output");
+	    System.exit(1);
+	}
+    }
+
+    /*
+     * Argument parser. Usage is this form:
+     *
+     * export [-e time] [-f filename] [-s time] [-T d | u] [-o file]
+     *     [--format csv-wide] [--rates] [--scan] [--gzip] [--sample n]
+     *     pattern [...]
+     *
+     * The -M, -I, -N, and -S flags together make up one more pattern.
+     */
+    private void parseArgs(final String[] args) {
+	String showmodule = null;
+	String showinstance = null;
+	String showname = null;
+	String showstatistic = null;
+	for (int i = 0; i < args.length; i++) {
+	    if (args[i].startsWith("-")) {
+		String flag = args[i].substring(1);
+		// these flags don't take an argument
+		if ("-rates".equals(flag)) {
+		    rates = true;
+		    continue;
+		} else if ("-scan".equals(flag)) {
+		    scan = true;
+		    continue;
+		} else if ("-gzip".equals(flag)) {
+		    gzip = true;
+		    continue;
+		}
+		if (i + 1 == args.length) {
+		    usage("Error: missing argument to " + args[i] + " flag");
+		}
+		i++;
+		if ("f".equals(flag)) {
+		    filename = args[i];
+		} else if ("e".equals(flag)) {
+		    etime = args[i];
+		} else if ("s".equals(flag)) {
+		    stime = args[i];
+		} else if ("o".equals(flag)) {
+		    outfile = args[i];
+		} else if ("M".equals(flag)) {
+		    showmodule = args[i];
+		} else if ("I".equals(flag)) {
+		    showinstance = args[i];
+		} else if ("N".equals(flag)) {
+		    showname = args[i];
+		} else if ("S".equals(flag)) {
+		    showstatistic = args[i];
+		} else if ("T".equals(flag)) {
+		    ttype = args[i];
+		    if (!"u".equals(ttype) && !"d".equals(ttype)) {
+			usage("Error: time format must be d or u");
+		    }
+		} else if ("-format".equals(flag)) {
+		    format = args[i];
+		} else if ("-sample".equals(flag)) {
+		    try {
+			sample = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid sample");
+		    }
+		    if (sample < 1) {
+			usage("Error: sample must be positive");
+		    }
+		} else {
+		    usage("Error: unsupported flag " + args[i - 1]);
+		}
+	    } else {
+		kstatPatterns.add(args[i]);
+	    }
+	}
+	if (showmodule != null || showinstance != null || showname != null
+		|| showstatistic != null) {
+	    kstatPatterns.add(part(showmodule) + ":" + part(showinstance)
+			+ ":" + part(showname) + ":" + part(showstatistic));
+	}
+    }
+
+    private static String part(final String s) {
+	return s == null ? "" : s;
+    }
+
+    /*
+     * Work out the columns, write the header, and then go through the
+     * input writing a row for each snapshot.
+     */
+    private void accumulate(final KarZipJKstat sjkstat, final KarOutput out) {
+	KstatMatcher ksm = new KstatMatcher();
+	long daystart = 0;
+	long dayend = 0;
+	try {
+	    for (String s : kstatPatterns) {
+		ksm.addFilter(s);
+	    }
+	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
+	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
+	} catch (IllegalArgumentException iae) {
+	    usage(iae.getMessage());
+	}
+	sjkstat.setSample(sample);
+	// skip forward to start time
+	if (!sjkstat.seek(daystart)) {
+	    return;
+	}
+	Map<Kstat, Set<String>> cmap = new TreeMap<>();
+	if (scan) {
+	    do {
+		addColumns(ksm, sjkstat, cmap);
+	    } while (sjkstat.next() && sjkstat.getTime() < dayend);
+	    sjkstat.seek(daystart);
+	} else {
+	    addColumns(ksm, sjkstat, cmap);
+	}
+	entries = new Entry[cmap.size()];
+	int n = 0;
+	for (Map.Entry<Kstat, Set<String>> me : cmap.entrySet()) {
+	    entries[n++] = new Entry(me.getKey(), me.getValue(), ncolumns);
+	    ncolumns += me.getValue().size();
+	}
+	values = new long[ncolumns];
+	previous = new long[ncolumns];
+	rateValues = new double[ncolumns];
+	seen = new int[ncolumns];
+	valid = new int[ncolumns];
+	header(out);
+	do {
+	    row(sjkstat, out);
+	} while (sjkstat.next() && sjkstat.getTime() < dayend);
+    }
+
+    /*
+     * Add the numeric statistics of the matching kstats in the current
+     * snapshot to the columns.
+     */
+    private static void addColumns(final KstatMatcher ksm,
+			final KarZipJKstat sjkstat,
+			final Map<Kstat, Set<String>> cmap) {
+	for (Kstat ks : ksm.getKstats(sjkstat.getKstats())) {
+	    Set<String> stats = null;
+	    for (String s : ksm.filteredStatistics(ks)) {
+		if (ks.isNumeric(s)) {
+		    if (stats == null) {
+			stats = cmap.computeIfAbsent(new Kstat(ks.getModule(),
+					ks.getInst(), ks.getName()),
+					k -> new TreeSet<>());
+		    }
+		    stats.add(s);
+		}
+	    }
+	}
+    }
+
+    private void header(final KarOutput out) {
+	out.append("time");
+	for (Entry e : entries) {
+	    String triplet = e.key.getTriplet();
+	    for (String s : e.statistics) {
+		out.append(',').append(quote(triplet + ":" + s));
+	    }
+	}
+	out.newline();
+    }
+
+    /*
+     * Quote a CSV field if necessary. Partitions, for example, have
+     * commas in their names.
+     */
+    private static String quote(final String s) {
+	if (s.indexOf(',') < 0 && s.indexOf('"') < 0
+		&& s.indexOf('\n') < 0) {
+	    return s;
+	}
+	return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    /*
+     * Write a row for the current snapshot.
+     */
+    private void row(final KarZipJKstat sjkstat, final KarOutput out) {
+	generation++;
+	for (Entry e : entries) {
+	    Kstat ks = sjkstat.getKstat(e.key.getModule(), e.key.getInst(),
+					e.key.getName());
+	    if (ks == null) {
+		continue;
+	    }
+	    long snapdelta = ks.getSnaptime() - e.snaptime;
+	    boolean ok = e.snaptime >= 0 && ks.getCrtime() == e.crtime
+		&& snapdelta > 0;
+	    for (int i = 0; i < e.statistics.length; i++) {
+		String s = e.statistics[i];
+		if (!ks.isNumeric(s)) {
+		    continue;
+		}
+		int c = e.first + i;
+		long value = ks.longData(s);
+		if (!rates) {
+		    values[c] = value;
+		    valid[c] = generation;
+		} else if (ok && seen[c] == e.seen && value >= previous[c]) {
+		    rateValues[c] = (value - previous[c]) * 1000000000.0
+			/ snapdelta;
+		    valid[c] = generation;
+		}
+		previous[c] = value;
+		seen[c] = generation;
+	    }
+	    e.snaptime = ks.getSnaptime();
+	    e.crtime = ks.getCrtime();
+	    e.seen = generation;
+	}
+	if ("u".equals(ttype)) {
+	    out.appendEpoch(sjkstat.getTime());
+	} else {
+	    out.appendClock(sjkstat.getTime());
+	}
+	for (int c = 0; c < ncolumns; c++) {
+	    out.append(',');
+	    if (valid[c] == generation) {
+		if (rates) {
+		    out.appendFixed(rateValues[c], 2);
+		} else {
+		    out.append(values[c]);
+		}
+	    }
+	}
+	out.newline();
+    }
+
+    /*
+     * Print usage message and exit.
+     */
+    private void usage() {
+	System.err.println("Usage: export [-e time] [-f filename] [-s time] "
+			+ "[-T d | u] [-o file]");
+	System.err.println("         [--format csv-wide] [--rates] [--scan] "
+			+ "[--gzip] [--sample n]");
+	System.err.println("         [-M module] [-I instance] "
+			+ "[-N name] [-S statistic] pattern [...]");
+	System.exit(1);
+    }
+
+    /*
+     * Print usage message and exit.
+     */
+    private void usage(final String s) {
+	System.err.println(s);
+	usage();
+    }
+
+    /**
+     * Export kstats as CSV.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(final String[] args) {
+	new Export(args);
+    }
+}
@@ -27,8 +27,6 @@ import java.util.Map;
 import uk.co.petertribble.jkstat.api.Kstat;
 import uk.co.petertribble.jkstat.api.KstatFilter;
 import uk.co.petertribble.jkstat.api.KstatSet;
-import uk.co.petertribble.jkstat.api.SequencedJKstat;
-import uk.co.petertribble.jkstat.parse.ParseableJSONZipJKstat;
 
 /**
  * Main driver to emulate fsstat output given kar input.
@@ -42,6 +40,8 @@ public final class FSstat {
     private String etime;
     private long dayend;
     private String filename;
+    private long interval;
+    private int sample = 1;
     private boolean zerohide;
     private final Map<String, Kstat> lastMap;
 
@@ -56,14 +56,14 @@ public final class FSstat {
 	lastMap = new HashMap<>();
 	parseArgs(args);
 	try {
-	    accumulate(new ParseableJSONZipJKstat(filename));
+	    accumulate(new KarZipJKstat(filename));
 	} catch (IOException ioe) {
 	    usage("Invalid zip file");
 	}
     }
 
     /*
-     * fsstat [-z] [-e time] [-f filename] [-s time]
+     * fsstat [-z] [-e time] [-f filename] [-i interval] [-s time] [--sample n]
      *
      */
     private void parseArgs(final String[] args) {
@@ -83,6 +83,23 @@ public final class FSstat {
 		} else if ("s".equals(flag)) {
 		    i++;
 		    stime = args[i];
+		} else if ("-sample".equals(flag)) {
+		    i++;
+		    try {
+			sample = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid sample");
+		    }
+		    if (sample < 1) {
+			usage("Error: sample must be positive");
+		    }
+		} else if ("i".equals(flag)) {
+		    i++;
+		    try {
+			interval = KarTime.getIntervalInMillis(args[i]);
+		    } catch (IllegalArgumentException iae) {
+			usage(iae.getMessage());
+		    }
 		} else if ("z".equals(flag)) {
 		    zerohide = true;
 		}
@@ -96,16 +113,21 @@ public final class FSstat {
      * Go through the input reading all the entries, and accumulating
      * statistics.
      */
-    private void accumulate(final SequencedJKstat sjkstat) {
+    private void accumulate(final KarZipJKstat sjkstat) {
 	try {
 	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
 	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
 	} catch (IllegalArgumentException iae) {
 	    usage(iae.getMessage());
 	}
-	while (sjkstat.getTime() < daystart) {
-	    sjkstat.next();
+	// skip forward to start time
+	if (!sjkstat.seek(daystart)) {
+	    return;
+	}
+	if (interval > 0) {
+	    sjkstat.setInterval(daystart, interval);
 	}
+	sjkstat.setSample(sample);
 	do {
 	    System.out.printf("%tT    %s%n", new Date(sjkstat.getTime()),
 				"file system statistics");
@@ -194,7 +216,8 @@ public final class FSstat {
      */
     private void usage() {
 	System.err.println("Usage: fsstat [-z] [-e time] "
-			+ "[-f filename] [-s time]");
+			+ "[-f filename] [-i interval] [-s time]");
+	System.err.println("              [--sample n]");
 	System.exit(1);
     }
 
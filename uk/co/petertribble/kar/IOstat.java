@@ -22,14 +22,9 @@ package uk.co.petertribble.kar;
 
 import java.io.IOException;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import uk.co.petertribble.jkstat.api.Kstat;
-import uk.co.petertribble.jkstat.api.KstatFilter;
-import uk.co.petertribble.jkstat.api.KstatSet;
 import uk.co.petertribble.jkstat.api.KstatType;
-import uk.co.petertribble.jkstat.api.SequencedJKstat;
-import uk.co.petertribble.jkstat.parse.ParseableJSONZipJKstat;
 
 /**
  * Main driver to emulate iostat output given kar input.
@@ -38,30 +33,38 @@ import uk.co.petertribble.jkstat.parse.ParseableJSONZipJKstat;
  */
 public final class IOstat {
 
+    private static final double NANOSEC = 1000000000.0;
+    private static final String[] IO_STATS = {"reads", "writes", "nread",
+	"nwritten", "rtime", "wtime", "rlentime", "wlentime"};
+
     private String stime;
     private long daystart;
     private String etime;
     private long dayend;
     private String filename;
+    private long interval;
+    private int sample = 1;
     private boolean zerohide;
     private boolean diskhide;
     private boolean showpart;
     private boolean megabytes;
-    private final Map<String, Kstat> lastMap;
+    // all the io kstats, ignoring usba statistics
+    private final KstatRoster roster;
+    private final CounterColumns io;
 
-    private long oldsnaptime;
     private long lastboot;
 
-    private double dr;
-    private double dw;
-    private double dkr;
-    private double dkw;
-    private double dwait;
-    private double dactv;
-    private double dwsvc;
-    private double dasvc;
-    private int dpw;
-    private int dpb;
+    /*
+     * The rates, one row per device.
+     */
+    private double[] dr;
+    private double[] dw;
+    private double[] dkr;
+    private double[] dkw;
+    private double[] dwait;
+    private double[] dactv;
+    private double[] dpw;
+    private double[] dpb;
 
     /**
      * Display iostat output.
@@ -69,17 +72,21 @@ public final class IOstat {
      * @param args the command line arguments
      */
     public IOstat(final String[] args) {
-	lastMap = new HashMap<>();
+	io = new CounterColumns(IO_STATS);
+	allocate(0);
+	roster = new KstatRoster(ks -> ks.getType() == KstatType.KSTAT_TYPE_IO
+				&& !"usba".equals(ks.getModule()));
 	parseArgs(args);
 	try {
-	    accumulate(new ParseableJSONZipJKstat(filename));
+	    accumulate(new KarZipJKstat(filename));
 	} catch (IOException ioe) {
 	    usage("Invalid zip file");
 	}
     }
 
     /*
-     * iostat [-z] [-M] [-P] [-p] [-e time] [-f filename] [-s time]
+     * iostat [-z] [-M] [-P] [-p] [-e time] [-f filename] [-i interval]
+     *     [-s time] [--sample n]
      *
      */
     private void parseArgs(final String[] args) {
@@ -99,6 +106,23 @@ public final class IOstat {
 		} else if ("s".equals(flag)) {
 		    i++;
 		    stime = args[i];
+		} else if ("-sample".equals(flag)) {
+		    i++;
+		    try {
+			sample = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid sample");
+		    }
+		    if (sample < 1) {
+			usage("Error: sample must be positive");
+		    }
+		} else if ("i".equals(flag)) {
+		    i++;
+		    try {
+			interval = KarTime.getIntervalInMillis(args[i]);
+		    } catch (IllegalArgumentException iae) {
+			usage(iae.getMessage());
+		    }
 		} else if ("z".equals(flag)) {
 		    zerohide = true;
 		} else if ("p".equals(flag)) {
@@ -118,24 +142,24 @@ public final class IOstat {
      * Go through the input reading all the entries, and accumulating
      * statistics.
      */
-    private void accumulate(final SequencedJKstat sjkstat) {
+    private void accumulate(final KarZipJKstat sjkstat) {
 	try {
 	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
 	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
 	} catch (IllegalArgumentException iae) {
 	    usage(iae.getMessage());
 	}
-	while (sjkstat.getTime() < daystart) {
-	    sjkstat.next();
+	// skip forward to start time
+	if (!sjkstat.seek(daystart)) {
+	    return;
 	}
+	if (interval > 0) {
+	    sjkstat.setInterval(daystart, interval);
+	}
+	sjkstat.setSample(sample);
 	do {
 	    System.out.printf("%tT    %s%n", new Date(sjkstat.getTime()),
 				"extended device statistics");
-	    KstatFilter ksf = new KstatFilter(sjkstat);
-	    ksf.setFilterType(KstatType.KSTAT_TYPE_IO);
-	    // ignore usba statistics
-	    ksf.addNegativeFilter("usba:::");
-
 	    /*
 	     * If we've rebooted since the last measurement, clear all the
 	     * saved measurements and the code will do the right thing.
@@ -143,7 +167,7 @@ public final class IOstat {
 	    long boottime = sjkstat.getKstat("unix", 0, "system_misc")
 				.longData("boot_time");
 	    if (boottime > lastboot) {
-		lastMap.clear();
+		io.reset();
 	    }
 	    lastboot = boottime;
 
@@ -154,79 +178,86 @@ public final class IOstat {
 		System.out.println("    r/s    w/s   kr/s   kw/s wait actv "
 				+ "wsvc_t asvc_t  %w  %b device");
 	    }
-	    KstatSet kss = new KstatSet(sjkstat, ksf);
-	    for (Kstat ks : kss.getKstats(true)) {
+	    List<Kstat> kss = roster.update(sjkstat.getKstatsByType(
+					KstatType.KSTAT_TYPE_IO));
+	    io.update(kss);
+	    calculate(kss.size());
+	    for (int i = 0; i < kss.size(); i++) {
+		Kstat ks = kss.get(i);
 		/*
 		 * If -p, show everything. If -P, don't show disks. Otherwise,
 		 * don't show partitions.
 		 */
 		if (showpart) {
-		    doPrint(ks);
+		    doPrint(i, ks.getName());
 		} else if (diskhide) {
 		    if (!"disk".equals(ks.getKstatClass())) {
-			doPrint(ks);
+			doPrint(i, ks.getName());
 		    }
 		} else {
 		    if (!"partition".equals(ks.getKstatClass())) {
-			doPrint(ks);
+			doPrint(i, ks.getName());
 		    }
 		}
 	    }
-	    lastMap.clear();
-	    for (Kstat ks : kss.getKstats()) {
-		lastMap.put(ks.getTriplet(), ks);
-	    }
 	} while (sjkstat.next() && sjkstat.getTime() < dayend);
     }
 
-    private void doPrint(final Kstat ks) {
-	long nr = ks.longData("reads");
-	long nw = ks.longData("writes");
-	long nkr = ks.longData("nread");
-	long nkw = ks.longData("nwritten");
-	long nrtime = ks.longData("rtime");
-	long nwtime = ks.longData("wtime");
-	long nrlentime = ks.longData("rlentime");
-	long nwlentime = ks.longData("wlentime");
+    private void allocate(final int n) {
+	dr = new double[n];
+	dw = new double[n];
+	dkr = new double[n];
+	dkw = new double[n];
+	dwait = new double[n];
+	dactv = new double[n];
+	dpw = new double[n];
+	dpb = new double[n];
+    }
 
-	Kstat ksold = lastMap.get(ks.getTriplet());
-	if (ksold == null) {
-	    oldsnaptime = ks.getCrtime();
-	} else {
-	    oldsnaptime = ksold.getSnaptime();
-	    nr -= ksold.longData("reads");
-	    nw -= ksold.longData("writes");
-	    nkr -= ksold.longData("nread");
-	    nkw -= ksold.longData("nwritten");
-	    nrtime -= ksold.longData("rtime");
-	    nwtime -= ksold.longData("wtime");
-	    nrlentime -= ksold.longData("rlentime");
-	    nwlentime -= ksold.longData("wlentime");
+    /*
+     * Turn the deltas for all the devices into rates.
+     */
+    private void calculate(final int n) {
+	if (n > dr.length) {
+	    allocate(n);
 	}
-	long snapdelta = ks.getSnaptime() - oldsnaptime;
+	long[] snap = io.snapdeltas();
+	RateKernel.scale(io.deltas(0), NANOSEC, snap, 1.0, dr, n);
+	RateKernel.scale(io.deltas(1), NANOSEC, snap, 1.0, dw, n);
+	RateKernel.scale(io.deltas(2), NANOSEC, snap, 1024.0, dkr, n);
+	RateKernel.scale(io.deltas(3), NANOSEC, snap, 1024.0, dkw, n);
+	RateKernel.scale(io.deltas(7), 1.0, snap, 1.0, dwait, n);
+	RateKernel.scale(io.deltas(6), 1.0, snap, 1.0, dactv, n);
+	RateKernel.scale(io.deltas(5), 100.0, snap, 1.0, dpw, n);
+	RateKernel.scale(io.deltas(4), 100.0, snap, 1.0, dpb, n);
+    }
 
-	if (!(zerohide && nr == 0 && nw == 0 && nkr == 0 && nkw == 0
-	      && nrtime == 0 && nwtime == 0
-	      && nrlentime == 0 && nwlentime == 0)) {
-	dr = nr * 1000000000.0 / snapdelta;
- 	dw = nw * 1000000000.0 / snapdelta;
-	dkr = nkr * 1000000000.0 / (snapdelta * 1024.0);
- 	dkw = nkw * 1000000000.0 / (snapdelta * 1024.0);
+    private void doPrint(final int i, final String name) {
+	if (zerohide) {
+	    boolean allzero = true;
+	    for (int c = 0; c < IO_STATS.length; c++) {
+		if (io.deltas(c)[i] != 0) {
+		    allzero = false;
+		    break;
+		}
+	    }
+	    if (allzero) {
+		return;
+	    }
+	}
+	double nrw = (double) io.deltas(0)[i] + io.deltas(1)[i];
+	double kr = dkr[i];
+	double kw = dkw[i];
 	if (megabytes) {
-	    dkr /= 1024.0;
-	    dkw /= 1024.0;
+	    kr /= 1024.0;
+	    kw /= 1024.0;
 	}
-	dwait = nwlentime / ((double) snapdelta);
-	dactv = nrlentime / ((double) snapdelta);
-	dwsvc = (nr + nw == 0) ? 0.0 : dwait / (1000.0 * ((double) nr + nw));
-	dasvc = (nr + nw == 0) ? 0.0 : dactv / (1000.0 * ((double) nr + nw));
-	dpw = (int) (0.5 + 100.0 * nwtime / snapdelta);
-	dpb = (int) (0.5 + 100.0 * nrtime / snapdelta);
+	double wsvc = nrw == 0 ? 0.0 : dwait[i] / (1000.0 * nrw);
+	double asvc = nrw == 0 ? 0.0 : dactv[i] / (1000.0 * nrw);
 	System.out.printf(
 		"%7.1f %6.1f %6.1f %6.1f %4.1f %4.1f %6.1f %6.1f %3d %3d %s%n",
-		dr, dw, dkr, dkw, dwait, dactv, dwsvc, dasvc, dpw, dpb,
-		ks.getName());
-	}
+		dr[i], dw[i], kr, kw, dwait[i], dactv[i], wsvc, asvc,
+		(int) (0.5 + dpw[i]), (int) (0.5 + dpb[i]), name);
     }
 
     /*
@@ -234,7 +265,8 @@ public final class IOstat {
      */
     private void usage() {
 	System.err.println("Usage: iostat [-z] [-P] [-M] [-e time] "
-			+ "[-f filename] [-s time]");
+			+ "[-f filename] [-i interval] [-s time]");
+	System.err.println("              [--sample n]");
 	System.exit(1);
     }
 
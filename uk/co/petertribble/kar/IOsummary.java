@@ -0,0 +1,345 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import uk.co.petertribble.jkstat.api.Kstat;
+import uk.co.petertribble.jkstat.api.KstatType;
+
+/**
+ * Summarize disk service times and utilization as percentiles, from kar
+ * input. The value for each interval is added to a histogram for each
+ * device. The histograms can be saved to a sidecar file and merged
+ * later, so that percentiles over a long period can be generated without
+ * reprocessing the raw archives.
+ *
+ * If --host is given, the histograms from the archives are kept under
+ * the host and device, such as myhost:sd0, so that sidecar files from
+ * different hosts can be merged without adding unrelated devices
+ * together. Without it, the histograms are kept under the device alone.
+ *
+ * @author Peter Tribble
+ */
+public final class IOsummary {
+
+    private static final String[] METRICS = {"asvc_t", "wsvc_t", "%b"};
+    private static final int ASVC = 0;
+    private static final int WSVC = 1;
+    private static final int BUSY = 2;
+    private static final String HEADER = "# kar iosummary histograms";
+
+    private String stime;
+    private String etime;
+    private boolean diskhide;
+    private boolean showpart;
+    private String outfile;
+    private String host;
+    private int sample = 1;
+    private final List<String> filenames;
+    private final List<String> sidecars;
+    private final Map<String, Kstat> lastMap;
+    private final Map<String, LogHistogram[]> histograms;
+
+    private long lastboot;
+
+    /**
+     * Display percentile summaries of disk statistics.
+     *
+     * @param args the command line arguments
+     */
+    public IOsummary(final String[] args) {
+	filenames = new ArrayList<>();
+	sidecars = new ArrayList<>();
+	lastMap = new HashMap<>();
+	histograms = new TreeMap<>();
+	parseArgs(args);
+	if (filenames.isEmpty() && sidecars.isEmpty()) {
+	    usage("Must supply an input file.");
+	}
+	for (String sidecar : sidecars) {
+	    try {
+		readSidecar(sidecar);
+	    } catch (IOException ioe) {
+		usage("Unable to read " + sidecar);
+	    } catch (IllegalArgumentException iae) {
+		usage("Invalid histogram file " + sidecar);
+	    }
+	}
+	for (String filename : filenames) {
+	    try {
+		accumulate(new KarZipJKstat(filename));
+	    } catch (IOException ioe) {
+		usage("Invalid zip file");
+	    }
+	}
+	if (outfile != null) {
+	    try {
+		writeSidecar(outfile);
+	    } catch (IOException ioe) {
+		usage("Unable to write " + outfile);
+	    }
+	}
+	display();
+    }
+
+    /*
+     * iosummary [-p] [-P] [-e time] [-f filename] [-s time] [-m sidecar]
+     *    [-w sidecar] [--host name]
+     *
+     * Both -f and -m may be given more than once.
+     */
+    private void parseArgs(final String[] args) {
+	for (int i = 0; i < args.length; i++) {
+	    /*
+	     * All flags start with a -, we pick out the arguments to any
+	     * flags that have them as we parse that flag.
+	     */
+	    if (args[i].startsWith("-")) {
+		String flag = args[i].substring(1);
+		if ("p".equals(flag)) {
+		    showpart = true;
+		} else if ("P".equals(flag)) {
+		    diskhide = true;
+		} else if (i + 1 >= args.length) {
+		    usage("Error: missing argument to -" + flag + " flag");
+		} else if ("f".equals(flag)) {
+		    i++;
+		    filenames.add(args[i]);
+		} else if ("e".equals(flag)) {
+		    i++;
+		    etime = args[i];
+		} else if ("s".equals(flag)) {
+		    i++;
+		    stime = args[i];
+		} else if ("-sample".equals(flag)) {
+		    i++;
+		    try {
+			sample = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid sample");
+		    }
+		    if (sample < 1) {
+			usage("Error: sample must be positive");
+		    }
+		} else if ("m".equals(flag)) {
+		    i++;
+		    sidecars.add(args[i]);
+		} else if ("w".equals(flag)) {
+		    i++;
+		    outfile = args[i];
+		} else if ("-host".equals(flag)) {
+		    i++;
+		    host = args[i];
+		}
+	    } else {
+		usage();
+	    }
+	}
+    }
+
+    /*
+     * Go through the input reading all the entries, and adding each
+     * interval's values to the histograms.
+     */
+    private void accumulate(final KarZipJKstat sjkstat) {
+	long daystart = 0;
+	long dayend = 0;
+	try {
+	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
+	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
+	} catch (IllegalArgumentException iae) {
+	    usage(iae.getMessage());
+	}
+	// each file is independent
+	lastMap.clear();
+	lastboot = 0;
+	if (!sjkstat.seek(daystart)) {
+	    return;
+	}
+	sjkstat.setSample(sample);
+	do {
+	    /*
+	     * If we've rebooted since the last measurement, clear all the
+	     * saved measurements. Anything without a previous measurement
+	     * is ignored for this interval.
+	     */
+	    long boottime = sjkstat.getKstat("unix", 0, "system_misc")
+				.longData("boot_time");
+	    if (boottime > lastboot) {
+		lastMap.clear();
+	    }
+	    lastboot = boottime;
+
+	    for (Kstat ks : sjkstat.getKstats()) {
+		if (ks.getType() != KstatType.KSTAT_TYPE_IO
+			|| "usba".equals(ks.getModule())) {
+		    continue;
+		}
+		/*
+		 * If -p, show everything. If -P, don't show disks. Otherwise,
+		 * don't show partitions.
+		 */
+		if (showpart
+			|| (diskhide && !"disk".equals(ks.getKstatClass()))
+			|| (!diskhide
+			    && !"partition".equals(ks.getKstatClass()))) {
+		    Kstat ksold = lastMap.get(ks.getTriplet());
+		    if (ksold != null) {
+			doAdd(ks, ksold);
+		    }
+		    lastMap.put(ks.getTriplet(), ks);
+		}
+	    }
+	} while (sjkstat.next() && sjkstat.getTime() < dayend);
+    }
+
+    private void doAdd(final Kstat ks, final Kstat ksold) {
+	long snapdelta = ks.getSnaptime() - ksold.getSnaptime();
+	if (snapdelta <= 0) {
+	    return;
+	}
+	long nops = ks.longData("reads") + ks.longData("writes")
+	    - ksold.longData("reads") - ksold.longData("writes");
+	long nrtime = ks.longData("rtime") - ksold.longData("rtime");
+	long nrlentime = ks.longData("rlentime") - ksold.longData("rlentime");
+	long nwlentime = ks.longData("wlentime") - ksold.longData("wlentime");
+
+	LogHistogram[] hists = getHistograms(host == null ? ks.getName()
+					: host + ":" + ks.getName());
+	// service times are only defined if there was any activity
+	if (nops > 0) {
+	    hists[ASVC].add(nrlentime / (1000000.0 * nops));
+	    hists[WSVC].add(nwlentime / (1000000.0 * nops));
+	}
+	hists[BUSY].add(100.0 * nrtime / snapdelta);
+    }
+
+    private LogHistogram[] getHistograms(final String key) {
+	return histograms.computeIfAbsent(key, k -> {
+		LogHistogram[] hists = new LogHistogram[METRICS.length];
+		for (int i = 0; i < hists.length; i++) {
+		    hists[i] = new LogHistogram();
+		}
+		return hists;
+	    });
+    }
+
+    /*
+     * Merge histograms from a sidecar file. Each line consists of the
+     * device, which may be qualified by the host, the metric, and the
+     * serialized histogram.
+     */
+    private void readSidecar(final String sidecar) throws IOException {
+	try (BufferedReader r = Files.newBufferedReader(Paths.get(sidecar),
+						StandardCharsets.UTF_8)) {
+	    String line;
+	    while ((line = r.readLine()) != null) {
+		if (line.startsWith("#") || line.trim().isEmpty()) {
+		    continue;
+		}
+		String[] ds = line.split("\\s+", 3);
+		if (ds.length != 3) {
+		    throw new IllegalArgumentException("invalid line");
+		}
+		int metric = metricIndex(ds[1]);
+		getHistograms(ds[0])[metric].merge(LogHistogram.parse(ds[2]));
+	    }
+	}
+    }
+
+    private static int metricIndex(final String metric) {
+	for (int i = 0; i < METRICS.length; i++) {
+	    if (METRICS[i].equals(metric)) {
+		return i;
+	    }
+	}
+	throw new IllegalArgumentException("unknown metric " + metric);
+    }
+
+    private void writeSidecar(final String sidecar) throws IOException {
+	try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(
+			Paths.get(sidecar), StandardCharsets.UTF_8))) {
+	    pw.println(HEADER);
+	    for (Map.Entry<String, LogHistogram[]> me
+		     : histograms.entrySet()) {
+		for (int i = 0; i < METRICS.length; i++) {
+		    pw.println(me.getKey() + " " + METRICS[i] + " "
+			+ me.getValue()[i]);
+		}
+	    }
+	    if (pw.checkError()) {
+		throw new IOException("write failed");
+	    }
+	}
+    }
+
+    private void display() {
+	System.out.println("device       metric    count      p50      p95"
+			+ "      p99      max");
+	for (Map.Entry<String, LogHistogram[]> me : histograms.entrySet()) {
+	    for (int i = 0; i < METRICS.length; i++) {
+		LogHistogram h = me.getValue()[i];
+		System.out.printf("%-12s %-6s %8d %8.1f %8.1f %8.1f %8.1f%n",
+			me.getKey(), METRICS[i], h.getCount(),
+			h.quantile(0.5), h.quantile(0.95),
+			h.quantile(0.99), h.getMax());
+	    }
+	}
+    }
+
+    /*
+     * Print usage message and exit.
+     */
+    private void usage() {
+	System.err.println("Usage: iosummary [-p] [-P] [-e time] "
+			+ "[-f filename ...] [-s time]");
+	System.err.println("         [-m sidecar ...] [-w sidecar] "
+			+ "[--host name]");
+	System.exit(1);
+    }
+
+    /*
+     * Print error, followed by usage message and exit.
+     */
+    private void usage(final String s) {
+	System.err.println(s);
+	usage();
+    }
+
+    /**
+     * Display percentile summaries of disk statistics.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(final String[] args) {
+	new IOsummary(args);
+    }
+}
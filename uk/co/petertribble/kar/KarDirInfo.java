@@ -0,0 +1,201 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import uk.co.petertribble.jkstat.api.Kstat;
+
+/**
+ * Print information on a directory of kar archives, one line per day,
+ * and how the archives are growing. Sizes come from the zip central
+ * directory, and only the first and last snapshot of each archive are
+ * parsed, so this is cheap even for a large store. The archives are
+ * scanned in parallel.
+ *
+ * @author Peter Tribble
+ */
+public final class KarDirInfo {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    /*
+     * The summary of one archive.
+     */
+    private static final class DayInfo implements Callable<DayInfo> {
+	private final File f;
+	private long time;
+	private int snapshots;
+	private long zipsize;
+	private long inflated;
+	private int firstKstats;
+	private int lastKstats;
+	private long lastStatistics;
+
+	DayInfo(final File f) {
+	    this.f = f;
+	}
+
+	@Override
+	public DayInfo call() throws IOException {
+	    try (ZipFile zf = new ZipFile(f)) {
+		for (Enumeration<? extends ZipEntry> e = zf.entries();
+			e.hasMoreElements();) {
+		    ZipEntry ze = e.nextElement();
+		    if (!ze.isDirectory()) {
+			zipsize += ze.getCompressedSize();
+			inflated += ze.getSize();
+		    }
+		}
+		KarZipJKstat sjkstat = new KarZipJKstat(zf);
+		snapshots = sjkstat.size();
+		if (snapshots > 0) {
+		    time = sjkstat.getTime();
+		    firstKstats = sjkstat.getKstats().size();
+		    sjkstat.seekEntry(snapshots - 1);
+		    for (Kstat ks : sjkstat.getKstats()) {
+			lastKstats++;
+			lastStatistics += ks.statistics().size();
+		    }
+		}
+	    }
+	    return this;
+	}
+    }
+
+    /**
+     * Display information on all the kar archives in a directory.
+     *
+     * @param dir the directory containing the archives
+     */
+    public KarDirInfo(final File dir) {
+	File[] files = dir.listFiles((d, name) -> name.startsWith("ka-")
+				&& name.endsWith(".zip"));
+	if (files == null) {
+	    usage("Unable to read directory " + dir);
+	}
+	if (files.length == 0) {
+	    usage("No archives found in " + dir);
+	}
+	Arrays.sort(files);
+	List<DayInfo> days = new ArrayList<>();
+	int nthreads = Math.min(files.length,
+			Runtime.getRuntime().availableProcessors());
+	ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+	try {
+	    List<Future<DayInfo>> futures = new ArrayList<>();
+	    for (File f : files) {
+		futures.add(pool.submit(new DayInfo(f)));
+	    }
+	    for (int i = 0; i < files.length; i++) {
+		try {
+		    DayInfo di = futures.get(i).get();
+		    if (di.snapshots > 0) {
+			days.add(di);
+		    }
+		} catch (ExecutionException ee) {
+		    System.err.println("Unable to read " + files[i]);
+		}
+	    }
+	} catch (InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	} finally {
+	    pool.shutdown();
+	}
+	days.sort(Comparator.comparingLong(di -> di.time));
+	display(days);
+    }
+
+    private void display(final List<DayInfo> days) {
+	System.out.printf("%-10s %9s %12s %12s %7s %7s %10s%n", "date",
+		"snapshots", "zipsize", "inflated", "kstats", "",
+		"statistics");
+	System.out.printf("%-10s %9s %12s %12s %7s %7s %10s%n", "", "",
+		"", "", "first", "last", "last");
+	for (DayInfo di : days) {
+	    System.out.printf("%tF %9d %12d %12d %7d %7d %10d%n",
+			new Date(di.time), di.snapshots, di.zipsize,
+			di.inflated, di.firstKstats, di.lastKstats,
+			di.lastStatistics);
+	}
+	if (days.size() < 2) {
+	    return;
+	}
+	/*
+	 * Fit a straight line through each measure against the day, by
+	 * least squares, to give the growth per day.
+	 */
+	int n = days.size();
+	double[] x = new double[n];
+	double[] zips = new double[n];
+	double[] kstats = new double[n];
+	double[] stats = new double[n];
+	for (int i = 0; i < n; i++) {
+	    DayInfo di = days.get(i);
+	    x[i] = (double) di.time / DAY;
+	    zips[i] = di.zipsize;
+	    kstats[i] = di.lastKstats;
+	    stats[i] = di.lastStatistics;
+	}
+	System.out.println();
+	System.out.printf("Growth per day: %.0f bytes, %.1f kstats, "
+			+ "%.1f statistics%n", slope(x, zips),
+			slope(x, kstats), slope(x, stats));
+    }
+
+    private static double slope(final double[] x, final double[] y) {
+	double mx = 0.0;
+	double my = 0.0;
+	for (int i = 0; i < x.length; i++) {
+	    mx += x[i];
+	    my += y[i];
+	}
+	mx /= x.length;
+	my /= y.length;
+	double sxy = 0.0;
+	double sxx = 0.0;
+	for (int i = 0; i < x.length; i++) {
+	    sxy += (x[i] - mx) * (y[i] - my);
+	    sxx += (x[i] - mx) * (x[i] - mx);
+	}
+	return sxx == 0.0 ? 0.0 : sxy / sxx;
+    }
+
+    private static void usage(final String message) {
+	System.err.println("ERROR: " + message);
+	System.err.println("Usage: info -d directory");
+	System.exit(1);
+    }
+}
@@ -20,75 +20,238 @@
 
 package uk.co.petertribble.kar;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import uk.co.petertribble.jkstat.api.Kstat;
-import uk.co.petertribble.jkstat.api.SequencedJKstat;
-import uk.co.petertribble.jkstat.parse.ParseableJSONZipJKstat;
 
 /**
- * Print information on a kar archive.
+ * Print information on a kar archive, broken down by module, class, and
+ * type, to show where the space goes and which kstats are worth keeping.
+ *
+ * The archive is split into ranges of entries that are profiled in
+ * parallel. Each worker only holds the previous snapshot, to see which
+ * statistics changed from one snapshot to the next, so the memory used
+ * doesn't depend on the length of the archive.
  *
  * @author Peter Tribble
  */
 public final class KarInfo {
 
-    private final Map<String, Kstat> firstKstats;
-    private final Map<String, Kstat> lastKstats;
+    private final KarZipJKstat sjkstat;
+    private final Map<String, Counts> byModule;
+    private final Map<String, Counts> byClass;
+    private final Map<String, Counts> byType;
+    private final Set<String> triplets;
+    private long nsnaps;
+    private long parseTime;
+    private long maxParseTime;
+
+    /*
+     * Counts for one module, class, or type, summed over snapshots.
+     */
+    private static final class Counts {
+	private long kstats;
+	private long statistics;
+	private long bytes;
+	private long compared;
+	private long changed;
+
+	private void add(final long nstats, final long nbytes,
+			final long ncompared, final long nchanged) {
+	    kstats++;
+	    statistics += nstats;
+	    bytes += nbytes;
+	    compared += ncompared;
+	    changed += nchanged;
+	}
+
+	private void add(final Counts c) {
+	    kstats += c.kstats;
+	    statistics += c.statistics;
+	    bytes += c.bytes;
+	    compared += c.compared;
+	    changed += c.changed;
+	}
+    }
 
     /**
      * Create an new KarInfo object.
      *
-     * @param sjkstat a SequencedJKstat
+     * @param sjkstat a KarZipJKstat
      */
-    public KarInfo(final SequencedJKstat sjkstat) {
-	firstKstats = new HashMap<>();
-	lastKstats = new HashMap<>();
-	readAll(sjkstat);
+    public KarInfo(final KarZipJKstat sjkstat) {
+	this.sjkstat = sjkstat;
+	byModule = new TreeMap<>();
+	byClass = new TreeMap<>();
+	byType = new TreeMap<>();
+	triplets = new HashSet<>();
+	readAll();
 	countStats();
+	showBreakdown();
     }
 
     /*
-     * Scan through the SequencedJKstat, getting the kstats from each time
-     * interval. The first time we see a Kstat, we add it to the firstKstats
-     * map. We add all kstats to the lastKstats map. As they're constantly
-     * replaced, it ends up containing the kstat from the last time we saw it.
+     * Split the archive into ranges, one per processor, and profile each
+     * range in parallel, merging the results.
      */
-    private void readAll(final SequencedJKstat sjkstat) {
-	do {
-	    for (Kstat ks : sjkstat.getKstats()) {
-		String kst = ks.getTriplet();
-		if (!firstKstats.containsKey(kst)) {
-		    firstKstats.put(kst, ks);
+    private void readAll() {
+	int n = sjkstat.size();
+	if (n == 0) {
+	    return;
+	}
+	int nthreads = Math.min(n, Runtime.getRuntime().availableProcessors());
+	int chunk = (n + nthreads - 1) / nthreads;
+	ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+	try {
+	    List<Future<Worker>> futures = new ArrayList<>();
+	    for (int lo = 0; lo < n; lo += chunk) {
+		int hi = Math.min(lo + chunk, n);
+		futures.add(pool.submit(new Worker(lo, hi)));
+	    }
+	    for (Future<Worker> f : futures) {
+		Worker w = f.get();
+		merge(byModule, w.byModule);
+		merge(byClass, w.byClass);
+		merge(byType, w.byType);
+		triplets.addAll(w.triplets);
+		nsnaps += w.nsnaps;
+		parseTime += w.parseTime;
+		maxParseTime = Math.max(maxParseTime, w.maxParseTime);
+	    }
+	} catch (ExecutionException ee) {
+	    usage("Unable to read archive");
+	} catch (InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    private static void merge(final Map<String, Counts> to,
+			final Map<String, Counts> from) {
+	for (Map.Entry<String, Counts> me : from.entrySet()) {
+	    to.computeIfAbsent(me.getKey(), k -> new Counts())
+		.add(me.getValue());
+	}
+    }
+
+    /*
+     * Profile the entries from lo up to but not including hi. The entry
+     * before lo, if there is one, is read so the first entry can be
+     * compared against it.
+     */
+    private final class Worker implements Callable<Worker> {
+	private final int lo;
+	private final int hi;
+	private final Map<String, Counts> byModule = new HashMap<>();
+	private final Map<String, Counts> byClass = new HashMap<>();
+	private final Map<String, Counts> byType = new HashMap<>();
+	private final Set<String> triplets = new HashSet<>();
+	private Map<String, Kstat> prevMap = new HashMap<>();
+	private long nsnaps;
+	private long parseTime;
+	private long maxParseTime;
+
+	Worker(final int lo, final int hi) {
+	    this.lo = lo;
+	    this.hi = hi;
+	}
+
+	@Override
+	public Worker call() {
+	    KarZipJKstat wjkstat = (KarZipJKstat) sjkstat.newInstance();
+	    if (lo > 0) {
+		wjkstat.seekEntry(lo - 1);
+		for (Kstat ks : wjkstat.getKstats()) {
+		    prevMap.put(ks.getTriplet(), ks);
+		}
+	    }
+	    for (int i = lo; i < hi; i++) {
+		wjkstat.seekEntry(i);
+		long t0 = System.nanoTime();
+		Set<Kstat> kstats = wjkstat.getKstats();
+		long t = System.nanoTime() - t0;
+		parseTime += t;
+		maxParseTime = Math.max(maxParseTime, t);
+		nsnaps++;
+		Map<String, Kstat> newMap = new HashMap<>();
+		for (Kstat ks : kstats) {
+		    profile(ks, prevMap.get(ks.getTriplet()));
+		    newMap.put(ks.getTriplet(), ks);
+		}
+		prevMap = newMap;
+	    }
+	    return this;
+	}
+
+	private void profile(final Kstat ks, final Kstat ksold) {
+	    long nstats = 0;
+	    long ncompared = 0;
+	    long nchanged = 0;
+	    for (String stat : ks.statistics()) {
+		nstats++;
+		if (ksold != null && ksold.hasStatistic(stat)) {
+		    ncompared++;
+		    if (!ks.getData(stat).equals(ksold.getData(stat))) {
+			nchanged++;
+		    }
 		}
-		lastKstats.put(kst, ks);
 	    }
-	} while (sjkstat.next());
+	    long nbytes = ks.toJSON().length();
+	    triplets.add(ks.getTriplet());
+	    byModule.computeIfAbsent(ks.getModule(), k -> new Counts())
+		.add(nstats, nbytes, ncompared, nchanged);
+	    byClass.computeIfAbsent(ks.getKstatClass(), k -> new Counts())
+		.add(nstats, nbytes, ncompared, nchanged);
+	    byType.computeIfAbsent(ks.getTypeAsString(), k -> new Counts())
+		.add(nstats, nbytes, ncompared, nchanged);
+	}
     }
 
     /*
-     * Count the number of statistics, and how many are numbers and strings.
+     * Count the number of statistics, and how many are numbers and
+     * strings, in the first and last snapshots.
      */
     private void countStats() {
+	if (sjkstat.size() == 0) {
+	    System.out.println("Empty archive");
+	    return;
+	}
+	Map<String, Kstat> firstKstats = new HashMap<>();
+	sjkstat.seekEntry(0);
+	for (Kstat ks : sjkstat.getKstats()) {
+	    firstKstats.put(ks.getTriplet(), ks);
+	}
+	sjkstat.seekEntry(sjkstat.size() - 1);
 	int numstring = 0;
 	int numnumeric = 0;
 	int numzero = 0;
 	int numchanged = 0;
 	int numkschanged = 0;
-	for (String s : firstKstats.keySet()) {
-	    Kstat ks1 = firstKstats.get(s);
-	    Kstat ks2 = lastKstats.get(s);
+	for (Kstat ks2 : sjkstat.getKstats()) {
+	    Kstat ks1 = firstKstats.get(ks2.getTriplet());
 	    int kschanged = 0;
-	    for (String stat : ks1.statistics()) {
-		if (ks1.isNumeric(stat)) {
+	    for (String stat : ks2.statistics()) {
+		if (ks2.isNumeric(stat)) {
 		    numnumeric++;
-		    long l1 = ks1.longData(stat);
 		    long l2 = ks2.longData(stat);
 		    if (l2 == 0) {
 			numzero++;
 		    }
-		    if (l2 != l1) {
+		    if (ks1 != null && ks1.hasStatistic(stat)
+			    && l2 != ks1.longData(stat)) {
 			kschanged = 1;
 			numchanged++;
 		    }
@@ -99,18 +262,48 @@ public final class KarInfo {
 	    numkschanged += kschanged;
 	}
 	int numtotal = numnumeric + numstring;
-	System.out.println("Total kstats: " + lastKstats.size());
+	System.out.println("Snapshots: " + nsnaps);
+	System.out.println("Total kstats: " + triplets.size());
 	System.out.println("Total statistics: " + numtotal);
 	System.out.println("Numeric statistics: " + numnumeric);
 	System.out.println("String statistics: " + numstring);
 	System.out.println("Statistics zero: " + numzero);
 	System.out.println("Statistics Changed: " + numchanged);
 	System.out.println("Kstats changed: " + numkschanged);
+	System.out.printf("Parse time per snapshot: %.1fms mean, %.1fms max%n",
+		parseTime / (1000000.0 * nsnaps), maxParseTime / 1000000.0);
+    }
+
+    /*
+     * Show the average size of a snapshot, broken down by module, class,
+     * and type, along with the percentage of statistics that changed from
+     * one snapshot to the next.
+     */
+    private void showBreakdown() {
+	if (nsnaps == 0) {
+	    return;
+	}
+	showCounts("module", byModule);
+	showCounts("class", byClass);
+	showCounts("type", byType);
+    }
+
+    private void showCounts(final String title, final Map<String, Counts> m) {
+	System.out.println();
+	System.out.printf("%-20s %8s %10s %10s %8s%n", title, "kstats",
+			"statistics", "bytes", "changed");
+	for (Map.Entry<String, Counts> me : m.entrySet()) {
+	    Counts c = me.getValue();
+	    System.out.printf("%-20s %8d %10d %10d %7.1f%%%n", me.getKey(),
+			c.kstats / nsnaps, c.statistics / nsnaps,
+			c.bytes / nsnaps,
+			c.compared == 0 ? 0.0 : 100.0 * c.changed / c.compared);
+	}
     }
 
     private static void usage(final String message) {
 	System.err.println("ERROR: " + message);
-	System.err.println("Usage: info -f zipfile");
+	System.err.println("Usage: info -f zipfile | -d directory");
 	System.exit(1);
     }
 
@@ -125,10 +318,12 @@ public final class KarInfo {
 	}
 	if ("-f".equals(args[0])) {
 	    try {
-		new KarInfo(new ParseableJSONZipJKstat(args[1]));
+		new KarInfo(new KarZipJKstat(args[1]));
 	    } catch (IOException ioe) {
 		usage("Invalid zip file");
 	    }
+	} else if ("-d".equals(args[0])) {
+	    new KarDirInfo(new File(args[1]));
 	} else {
 	    usage("Invalid arguments.");
 	}
@@ -0,0 +1,368 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * A buffered output stream for commands that emit large numbers of lines,
+ * such as print and the graphite exporters.
+ *
+ * Output is assembled as bytes in a large buffer and only written when
+ * the buffer fills or is flushed, rather than going through a Formatter
+ * and an autoflushing PrintStream for every line. Numbers are converted
+ * to ASCII directly, giving the same text as the corresponding printf
+ * conversions, and the time strings for the current second are cached,
+ * as every line from a snapshot carries the same time.
+ *
+ * @author Peter Tribble
+ */
+public final class KarOutput {
+
+    private static final int BUFSIZE = 256 * 1024;
+    private static final byte[] NEWLINE = System.lineSeparator()
+	.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE)
+	.getBytes(StandardCharsets.US_ASCII);
+    private static final long[] POWERS = {1L, 10L, 100L, 1000L, 10000L,
+	100000L, 1000000L, 10000000L, 100000000L, 1000000000L};
+    /*
+     * Doubles no larger than this, once scaled, can be rounded exactly
+     * using long arithmetic.
+     */
+    private static final double MAX_SCALED = 1.0e15;
+
+    private static KarOutput stdout;
+
+    private final OutputStream os;
+    private final byte[] buf;
+    private int count;
+    private boolean error;
+    private IOException lastError;
+    private final byte[] digits = new byte[20];
+
+    /*
+     * The time strings for the most recent second.
+     */
+    private long cachedSecond = Long.MIN_VALUE;
+    private byte[] cachedClock;
+    private byte[] cachedEpoch;
+
+    /**
+     * Create a KarOutput writing to the given stream.
+     *
+     * @param os the stream to write to
+     */
+    public KarOutput(final OutputStream os) {
+	this.os = os;
+	buf = new byte[BUFSIZE];
+    }
+
+    /**
+     * Return the shared KarOutput for standard output. This writes to the
+     * underlying file descriptor, bypassing System.out, so anything
+     * printed to System.out should be flushed before this is used.
+     *
+     * @return the KarOutput for standard output
+     */
+    public static synchronized KarOutput stdout() {
+	if (stdout == null) {
+	    stdout = new KarOutput(new FileOutputStream(FileDescriptor.out));
+	}
+	return stdout;
+    }
+
+    /*
+     * Make room for n bytes in the buffer.
+     */
+    private void ensure(final int n) {
+	if (count + n > buf.length) {
+	    flushBuffer();
+	}
+    }
+
+    private void flushBuffer() {
+	if (count > 0 && !error) {
+	    try {
+		os.write(buf, 0, count);
+	    } catch (IOException ioe) {
+		// as for PrintStream, remember the error and discard output
+		failed(ioe);
+	    }
+	}
+	count = 0;
+    }
+
+    /**
+     * Append a String.
+     *
+     * @param s the String to append
+     *
+     * @return this KarOutput
+     */
+    public KarOutput append(final String s) {
+	int n = s.length();
+	if (n > buf.length / 2) {
+	    return append(s.getBytes(StandardCharsets.UTF_8));
+	}
+	ensure(n);
+	for (int i = 0; i < n; i++) {
+	    char c = s.charAt(i);
+	    if (c >= 0x80) {
+		/*
+		 * Not plain ASCII, so let the String encode itself, after
+		 * discarding what we've copied so far.
+		 */
+		count -= i;
+		return append(s.getBytes(StandardCharsets.UTF_8));
+	    }
+	    buf[count++] = (byte) c;
+	}
+	return this;
+    }
+
+    /**
+     * Append an array of bytes, such as a pre-encoded String.
+     *
+     * @param b the bytes to append
+     *
+     * @return this KarOutput
+     */
+    public KarOutput append(final byte[] b) {
+	if (b.length > buf.length) {
+	    flushBuffer();
+	    if (!error) {
+		try {
+		    os.write(b);
+		} catch (IOException ioe) {
+		    failed(ioe);
+		}
+	    }
+	    return this;
+	}
+	ensure(b.length);
+	System.arraycopy(b, 0, buf, count, b.length);
+	count += b.length;
+	return this;
+    }
+
+    /**
+     * Append a single ASCII character.
+     *
+     * @param c the character to append
+     *
+     * @return this KarOutput
+     */
+    public KarOutput append(final char c) {
+	ensure(1);
+	buf[count++] = (byte) c;
+	return this;
+    }
+
+    /**
+     * Append a long, as printf's %d would.
+     *
+     * @param v the value to append
+     *
+     * @return this KarOutput
+     */
+    public KarOutput append(final long v) {
+	return appendPadded(v, 0);
+    }
+
+    /**
+     * Append a long right justified in the given width, as printf's %8d
+     * would for a width of 8.
+     *
+     * @param v the value to append
+     * @param width the minimum width
+     *
+     * @return this KarOutput
+     */
+    public KarOutput appendPadded(final long v, final int width) {
+	if (v == Long.MIN_VALUE) {
+	    pad(width - MIN_LONG.length);
+	    return append(MIN_LONG);
+	}
+	long u = Math.abs(v);
+	int nd = 0;
+	do {
+	    digits[nd++] = (byte) ('0' + u % 10);
+	    u /= 10;
+	} while (u != 0);
+	int len = v < 0 ? nd + 1 : nd;
+	pad(width - len);
+	ensure(len);
+	if (v < 0) {
+	    buf[count++] = '-';
+	}
+	while (nd > 0) {
+	    buf[count++] = digits[--nd];
+	}
+	return this;
+    }
+
+    /**
+     * Append a double with the given number of decimal places, giving
+     * the same result as printf's %.2f for 2 places, or %f for 6.
+     *
+     * @param v the value to append
+     * @param places the number of decimal places, from 0 to 9
+     *
+     * @return this KarOutput
+     */
+    public KarOutput appendFixed(final double v, final int places) {
+	if (Double.isNaN(v) || Double.isInfinite(v)) {
+	    return append(Double.toString(v));
+	}
+	double scaled = Math.abs(v) * POWERS[places];
+	double fl = Math.floor(scaled);
+	/*
+	 * printf rounds the shortest decimal representation of the double,
+	 * as given by Double.toString(), half up. Long arithmetic gets the
+	 * same answer unless the value is huge, or so close to halfway that
+	 * the scaling may have moved it across.
+	 */
+	if (scaled > MAX_SCALED
+		|| Math.abs(scaled - fl - 0.5) <= 2 * Math.ulp(scaled)) {
+	    if (Math.copySign(1.0, v) < 0) {
+		append('-');
+	    }
+	    return append(BigDecimal.valueOf(Math.abs(v))
+		    .setScale(places, RoundingMode.HALF_UP).toPlainString());
+	}
+	long r = (long) fl + (scaled - fl >= 0.5 ? 1 : 0);
+	if (Math.copySign(1.0, v) < 0) {
+	    append('-');
+	}
+	append(r / POWERS[places]);
+	if (places > 0) {
+	    append('.');
+	    long frac = r % POWERS[places];
+	    for (int i = places - 1; i >= 0; i--) {
+		append((char) ('0' + frac / POWERS[i] % 10));
+	    }
+	}
+	return this;
+    }
+
+    /**
+     * Append the time of day, as printf's %tT would.
+     *
+     * @param t the time, in milliseconds since the epoch
+     *
+     * @return this KarOutput
+     */
+    public KarOutput appendClock(final long t) {
+	cacheTime(t);
+	return append(cachedClock);
+    }
+
+    /**
+     * Append the time in seconds since the epoch, as used by graphite
+     * and by print -T u.
+     *
+     * @param t the time, in milliseconds since the epoch
+     *
+     * @return this KarOutput
+     */
+    public KarOutput appendEpoch(final long t) {
+	cacheTime(t);
+	return append(cachedEpoch);
+    }
+
+    private void cacheTime(final long t) {
+	long second = Math.floorDiv(t, 1000L);
+	if (second != cachedSecond) {
+	    cachedSecond = second;
+	    cachedClock = String.format("%tT", new Date(t))
+		.getBytes(StandardCharsets.US_ASCII);
+	    cachedEpoch = Long.toString(t / 1000)
+		.getBytes(StandardCharsets.US_ASCII);
+	}
+    }
+
+    /*
+     * Append n spaces.
+     */
+    private void pad(final int n) {
+	for (int i = 0; i < n; i++) {
+	    append(' ');
+	}
+    }
+
+    /**
+     * End the current line.
+     *
+     * @return this KarOutput
+     */
+    public KarOutput newline() {
+	return append(NEWLINE);
+    }
+
+    /**
+     * Write out any buffered output.
+     */
+    public void flush() {
+	flushBuffer();
+	if (!error) {
+	    try {
+		os.flush();
+	    } catch (IOException ioe) {
+		failed(ioe);
+	    }
+	}
+    }
+
+    /*
+     * Remember that writing has failed, and why.
+     */
+    private void failed(final IOException ioe) {
+	error = true;
+	lastError = ioe;
+    }
+
+    /**
+     * Report whether writing has failed, for example because the reader
+     * at the other end of a pipe has gone away.
+     *
+     * @return true if an error has occurred
+     */
+    public boolean checkError() {
+	return error;
+    }
+
+    /**
+     * Return the error that caused writing to fail.
+     *
+     * @return the most recent error, or null if writing hasn't failed
+     */
+    public IOException getError() {
+	return lastError;
+    }
+}
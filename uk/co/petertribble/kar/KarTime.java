@@ -14,7 +14,7 @@
  *
  * CDDL HEADER END
  *
- * Copyright 2025 Peter Tribble
+ * Copyright 2026 Peter Tribble
  *
  */
 
@@ -25,7 +25,8 @@ import uk.co.petertribble.jkstat.api.SequencedJKstat;
 
 /**
  * A class to handle times for kar, specifically the start and end time
- * parsing for the -s and -e command line flags.
+ * parsing for the -s and -e command line flags, and the reporting
+ * interval for the -i flag.
  *
  * @author Peter Tribble
  */
@@ -141,4 +142,24 @@ public final class KarTime {
 	cal.set(Calendar.HOUR_OF_DAY, endHour);
 	return cal.getTimeInMillis();
     }
+
+    /**
+     * Parse a reporting interval, given in seconds.
+     *
+     * @param itime A String containing the desired interval in seconds
+     *
+     * @return The interval in milliseconds.
+     */
+    public static long getIntervalInMillis(final String itime) {
+	long secs;
+	try {
+	    secs = Long.parseLong(itime);
+	} catch (NumberFormatException nfe) {
+	    throw new IllegalArgumentException("invalid interval.");
+	}
+	if (secs <= 0) {
+	    throw new IllegalArgumentException("invalid interval.");
+	}
+	return 1000 * secs;
+    }
 }
@@ -0,0 +1,190 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+import java.util.Date;
+import java.util.Formatter;
+
+/**
+ * Follow the snapshots being reported on, to tell the reporters when the
+ * system has restarted, which is detected from the boot time, and when
+ * there's a gap in the data because the collector wasn't running.
+ *
+ * A gap is one or more whole reporting steps with no data. The step is
+ * the reporting interval if one was given, otherwise the usual spacing
+ * of entries in the archive, multiplied by any sample factor.
+ *
+ * @author Peter Tribble
+ */
+public final class KarTimeline {
+
+    /**
+     * The first snapshot, with the system booted before the start time.
+     */
+    public static final int FIRST = 0;
+    /**
+     * A snapshot following on from the previous one.
+     */
+    public static final int CONTINUE = 1;
+    /**
+     * A snapshot after one or more missing steps.
+     */
+    public static final int GAP = 2;
+    /**
+     * A snapshot after the system has restarted, or the first snapshot if
+     * the system was booted after the start time.
+     */
+    public static final int RESTART = 3;
+
+    private final long start;
+    private final long step;
+    private long prevtime = -1;
+    private long lastboot;
+    private long elapsed;
+    private long missing;
+
+    /**
+     * Create a new timeline.
+     *
+     * @param start the start of the reporting period, in milliseconds
+     * since the epoch
+     * @param step the expected time between snapshots, in milliseconds,
+     * or zero if gaps are not to be detected
+     */
+    public KarTimeline(final long start, final long step) {
+	this.start = start;
+	this.step = step;
+    }
+
+    /**
+     * Create a new timeline for the given archive, with the step derived
+     * from the reporting interval or sample factor.
+     *
+     * @param sjkstat the archive being reported on
+     * @param start the start of the reporting period, in milliseconds
+     * since the epoch
+     * @param interval the reporting interval in milliseconds, or zero
+     * @param sample the sample factor
+     */
+    public KarTimeline(final KarZipJKstat sjkstat, final long start,
+			final long interval, final int sample) {
+	this(start, interval > 0 ? interval : sample * sjkstat.getSpacing());
+    }
+
+    /**
+     * Move on to the next snapshot.
+     *
+     * @param t the time of the snapshot, in milliseconds since the epoch
+     * @param boottime the boot time of the system in the snapshot, in
+     * seconds since the epoch, as given by unix:0:system_misc:boot_time
+     *
+     * @return one of FIRST, CONTINUE, GAP, or RESTART
+     */
+    public int advance(final long t, final long boottime) {
+	int change;
+	if (prevtime < 0) {
+	    elapsed = Math.max(step, 1);
+	    missing = 0;
+	    change = 1000 * boottime > start ? RESTART : FIRST;
+	} else {
+	    elapsed = t - prevtime;
+	    missing = step > 0 ? Math.round((double) elapsed / step) - 1 : 0;
+	    if (boottime > lastboot) {
+		change = RESTART;
+	    } else if (missing > 0) {
+		change = GAP;
+	    } else {
+		change = CONTINUE;
+	    }
+	}
+	prevtime = t;
+	lastboot = boottime;
+	return change;
+    }
+
+    /**
+     * Return the time the current gap started, which is one step after
+     * the snapshot before the gap.
+     *
+     * @return the start of the gap, in milliseconds since the epoch
+     */
+    public long getGapStart() {
+	return prevtime - elapsed + step;
+    }
+
+    /**
+     * Return the number of steps missing before the current snapshot.
+     *
+     * @return the number of missing steps
+     */
+    public long getMissing() {
+	return missing;
+    }
+
+    /**
+     * Return the time the current snapshot stands for, when averaging a
+     * quantity sampled at each snapshot over time. This is the time since
+     * the previous snapshot, but no more than one step, so that values
+     * either side of a gap aren't given undue weight.
+     *
+     * @return the weight of the current snapshot, in milliseconds
+     */
+    public long getWeight() {
+	return step > 0 ? Math.min(elapsed, step) : elapsed;
+    }
+
+    /**
+     * Return the time, in seconds since the epoch, the system in the
+     * current snapshot was booted.
+     *
+     * @return the boot time
+     */
+    public long getBootTime() {
+	return lastboot;
+    }
+
+    /**
+     * Mark a restart or a gap in the output, in the style of sar. A
+     * restart is shown at the time of the boot, and a gap at the time of
+     * the first missing step.
+     *
+     * @param change the value returned by {@link #advance(long, long)}
+     */
+    public void printChange(final int change) {
+	printChange(change, new Formatter(System.out));
+    }
+
+    /**
+     * Mark a restart or a gap in the output, writing to the given
+     * Formatter.
+     *
+     * @param change the value returned by {@link #advance(long, long)}
+     * @param out where to write the mark
+     */
+    public void printChange(final int change, final Formatter out) {
+	if (change == RESTART) {
+	    out.format("%tT        unix restarts%n", new Date(1000 * lastboot));
+	} else if (change == GAP) {
+	    out.format("%tT        no data for %d intervals%n",
+			new Date(getGapStart()), missing);
+	}
+    }
+}
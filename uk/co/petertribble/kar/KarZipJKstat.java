@@ -0,0 +1,373 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import uk.co.petertribble.jkstat.api.Kstat;
+import uk.co.petertribble.jkstat.api.SequencedJKstat;
+import uk.co.petertribble.jkstat.parse.JSONParser;
+
+/**
+ * Read kstats from a kar archive, a zip file containing one JSON format
+ * snapshot per entry.
+ *
+ * Unlike the generic jkstat zip reader, an entry is only inflated and
+ * parsed when its kstats are actually asked for. The time of each entry
+ * comes from the zip file's central directory, so moving through the
+ * archive - to a start time, or from one reporting interval to the
+ * next - doesn't parse any of the intermediate snapshots.
+ *
+ * Each snapshot can also be indexed by module, name, and instance, so
+ * that looking up individual kstats, or all the kstats of a given module
+ * and name or of a given type, doesn't need a search of the whole chain.
+ *
+ * @author Peter Tribble
+ */
+public final class KarZipJKstat extends SequencedJKstat {
+
+    private final ZipFile zf;
+    private final ZipEntry[] inputs;
+    private final long[] times;
+    private boolean loaded;
+    /*
+     * An index of the current snapshot, by module then name then
+     * instance, and a list of the kstats in each module and of each
+     * type. Built on demand.
+     */
+    private Map<String, Map<String, Map<Integer, Kstat>>> kindex;
+    private Map<String, List<Kstat>> modlists;
+    private Map<Integer, List<Kstat>> typelists;
+
+    private long origin;
+    private long interval;
+    private int sample = 1;
+
+    /**
+     * Open a kar archive.
+     *
+     * @param filename the name of the zip file to open
+     *
+     * @throws IOException if the file cannot be opened or read
+     */
+    public KarZipJKstat(final String filename) throws IOException {
+	this(new ZipFile(filename));
+    }
+
+    /**
+     * Read a kar archive from an already open zip file.
+     *
+     * @param zf the zip file to read
+     */
+    public KarZipJKstat(final ZipFile zf) {
+	this.zf = zf;
+	List<ZipEntry> entries = new ArrayList<>();
+	for (Enumeration<? extends ZipEntry> e = zf.entries();
+		e.hasMoreElements();) {
+	    ZipEntry ze = e.nextElement();
+	    if (!ze.isDirectory()) {
+		entries.add(ze);
+	    }
+	}
+	Collections.sort(entries, Comparator.comparingLong(ZipEntry::getTime));
+	inputs = entries.toArray(new ZipEntry[0]);
+	times = new long[inputs.length];
+	for (int i = 0; i < inputs.length; i++) {
+	    times[i] = inputs[i].getTime();
+	}
+	begin();
+    }
+
+    @Override
+    public SequencedJKstat newInstance() {
+	return new KarZipJKstat(zf);
+    }
+
+    /**
+     * Return the zip file underlying this archive.
+     *
+     * @return the zip file this archive is read from
+     */
+    public ZipFile getZipFile() {
+	return zf;
+    }
+
+    /**
+     * Make subsequent calls to {@link #next()} step by the given interval
+     * rather than by one entry. The interval boundaries are aligned to the
+     * given origin, and next() moves to the first entry at or after the
+     * following boundary. Setting an interval of zero restores stepping
+     * through every entry.
+     *
+     * @param norigin the time, in milliseconds since the epoch, from which
+     * interval boundaries are measured
+     * @param ninterval the interval, in milliseconds
+     */
+    public void setInterval(final long norigin, final long ninterval) {
+	origin = norigin;
+	interval = ninterval;
+    }
+
+    /**
+     * Make subsequent calls to {@link #next()} step forward by the given
+     * number of entries, so that only every Nth snapshot is read. As the
+     * kstat counters are cumulative, rates calculated between the sampled
+     * snapshots are still correct, just averaged over a longer interval.
+     * If an interval has been set, it takes precedence.
+     *
+     * @param nsample the number of entries to step by
+     */
+    public void setSample(final int nsample) {
+	if (nsample < 1) {
+	    throw new IllegalArgumentException("invalid sample.");
+	}
+	sample = nsample;
+    }
+
+    /**
+     * Return the usual time between entries, taken as the median of the
+     * times between consecutive entries, so that it isn't distorted by
+     * gaps in data collection.
+     *
+     * @return the usual time between entries in milliseconds, or zero if
+     * there are fewer than two entries
+     */
+    public long getSpacing() {
+	if (times.length < 2) {
+	    return 0;
+	}
+	long[] d = new long[times.length - 1];
+	for (int i = 0; i < d.length; i++) {
+	    d[i] = times[i + 1] - times[i];
+	}
+	Arrays.sort(d);
+	return d[d.length / 2];
+    }
+
+    @Override
+    public void begin() {
+	setEntry(0);
+    }
+
+    @Override
+    public boolean next() {
+	if (interval > 0) {
+	    long t = getTime();
+	    long boundary = t < origin ? origin
+		: origin + ((t - origin) / interval + 1) * interval;
+	    return seek(boundary);
+	}
+	if (chainid + sample < inputs.length) {
+	    setEntry(chainid + sample);
+	    return true;
+	}
+	return false;
+    }
+
+    @Override
+    public boolean previous() {
+	if (chainid > 0) {
+	    setEntry(chainid - 1);
+	    return true;
+	}
+	return false;
+    }
+
+    @Override
+    public int size() {
+	return inputs.length;
+    }
+
+    /**
+     * Move to the first entry at or after the given time, without parsing
+     * any of the entries passed over. If there is no such entry, the
+     * position is unchanged.
+     *
+     * @param t the desired time, in milliseconds since the epoch
+     *
+     * @return true if there is an entry at or after the given time
+     */
+    public boolean seek(final long t) {
+	int lo = 0;
+	int hi = times.length;
+	while (lo < hi) {
+	    int mid = (lo + hi) >>> 1;
+	    if (times[mid] < t) {
+		lo = mid + 1;
+	    } else {
+		hi = mid;
+	    }
+	}
+	if (lo == times.length) {
+	    return false;
+	}
+	if (lo != chainid) {
+	    setEntry(lo);
+	}
+	return true;
+    }
+
+    /**
+     * Move to the given entry, counting from zero in time order. This
+     * allows separate instances sharing the same zip file to work on
+     * different parts of an archive.
+     *
+     * @param n the index of the desired entry
+     */
+    public void seekEntry(final int n) {
+	if (n < 0 || n >= inputs.length) {
+	    throw new IllegalArgumentException("invalid entry.");
+	}
+	setEntry(n);
+    }
+
+    /*
+     * Position on the given entry. Its kstats are read on demand.
+     */
+    private void setEntry(final int n) {
+	chainid = n;
+	timestamp = times.length == 0 ? 0 : times[n];
+	loaded = false;
+	kindex = null;
+	modlists = null;
+	typelists = null;
+    }
+
+    /*
+     * Read the kstats from the current entry, if we haven't already.
+     */
+    private void load() {
+	if (loaded) {
+	    return;
+	}
+	loaded = true;
+	if (inputs.length == 0) {
+	    kstats = new HashSet<>();
+	    return;
+	}
+	try (InputStream is = zf.getInputStream(inputs[chainid])) {
+	    kstats = new JSONParser(is).getKstats();
+	} catch (IOException ioe) {
+	    kstats = new HashSet<>();
+	}
+    }
+
+    @Override
+    public synchronized Set<Kstat> getKstats() {
+	load();
+	return super.getKstats();
+    }
+
+    /*
+     * Build the index of the current snapshot, if we haven't already.
+     */
+    private void index() {
+	if (kindex != null) {
+	    return;
+	}
+	load();
+	kindex = new HashMap<>();
+	modlists = new HashMap<>();
+	typelists = new HashMap<>();
+	for (Kstat ks : kstats) {
+	    kindex.computeIfAbsent(ks.getModule(), k -> new HashMap<>())
+		.computeIfAbsent(ks.getName(), k -> new HashMap<>())
+		.put(ks.getInst(), ks);
+	    modlists.computeIfAbsent(ks.getModule(), k -> new ArrayList<>())
+		.add(ks);
+	    typelists.computeIfAbsent(ks.getType(), k -> new ArrayList<>())
+		.add(ks);
+	}
+    }
+
+    /**
+     * Return all the kstats in the current snapshot with the given module.
+     *
+     * @param module the desired module
+     *
+     * @return an unmodifiable List of the matching kstats
+     */
+    public synchronized List<Kstat> getKstats(final String module) {
+	index();
+	List<Kstat> l = modlists.get(module);
+	return l == null ? Collections.emptyList()
+	    : Collections.unmodifiableList(l);
+    }
+
+    /**
+     * Return all the kstats in the current snapshot of the given type,
+     * such as the I/O kstats for disks.
+     *
+     * @param type the desired type, such as KstatType.KSTAT_TYPE_IO
+     *
+     * @return an unmodifiable List of the matching kstats
+     */
+    public synchronized List<Kstat> getKstatsByType(final int type) {
+	index();
+	List<Kstat> l = typelists.get(type);
+	return l == null ? Collections.emptyList()
+	    : Collections.unmodifiableList(l);
+    }
+
+    /**
+     * Return all the kstats in the current snapshot with the given module
+     * and name, such as every instance of cpu::sys.
+     *
+     * @param module the desired module
+     * @param name the desired name
+     *
+     * @return an unmodifiable Collection of the matching kstats
+     */
+    public synchronized Collection<Kstat> getKstats(final String module,
+						final String name) {
+	index();
+	Map<String, Map<Integer, Kstat>> m = kindex.get(module);
+	Map<Integer, Kstat> mm = m == null ? null : m.get(name);
+	return mm == null ? Collections.emptyList()
+	    : Collections.unmodifiableCollection(mm.values());
+    }
+
+    /**
+     * Look up a kstat in the current snapshot, using the index rather
+     * than searching the whole chain.
+     */
+    @Override
+    public synchronized Kstat getKstatObject(final String module,
+					final int inst, final String name) {
+	index();
+	Map<String, Map<Integer, Kstat>> m = kindex.get(module);
+	Map<Integer, Kstat> mm = m == null ? null : m.get(name);
+	return mm == null ? null : mm.get(inst);
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import uk.co.petertribble.jkstat.api.Kstat;
+
+/**
+ * Select kstats and statistics matching a list of patterns, in the same
+ * way as a jkstat KstatFilter, for use on many snapshots in turn.
+ *
+ * Each pattern has the form module:instance:name:statistic, and trailing
+ * parts may be omitted. An empty part, or *, matches anything. A part may
+ * also be a shell style glob, such as sd* or cpu_nsec_[ku]*, or a regular
+ * expression enclosed in slashes, such as /sd[0-9]+/.
+ *
+ * The patterns are compiled once. Whether a kstat's module, instance, and
+ * name match is remembered for each kstat, and whether a statistic name
+ * matches is remembered for each name, so the patterns are evaluated once
+ * per archive rather than once per snapshot.
+ *
+ * @author Peter Tribble
+ */
+public final class KstatMatcher {
+
+    private static final Quartet[] NO_MATCH = new Quartet[0];
+
+    private final List<Quartet> quartets;
+    private final Map<Kstat, Quartet[]> cache;
+
+    /*
+     * A compiled part of a pattern. A null part matches anything.
+     */
+    private static final class Part {
+	private final String exact;
+	private final Pattern pattern;
+	private final Map<String, Boolean> matched;
+
+	Part(final String exact, final Pattern pattern) {
+	    this.exact = exact;
+	    this.pattern = pattern;
+	    matched = new HashMap<>();
+	}
+
+	boolean matches(final String s) {
+	    if (exact != null) {
+		return exact.equals(s);
+	    }
+	    Boolean b = matched.get(s);
+	    if (b == null) {
+		b = pattern.matcher(s).matches();
+		matched.put(s, b);
+	    }
+	    return b;
+	}
+    }
+
+    /*
+     * A compiled module:instance:name:statistic pattern.
+     */
+    private static final class Quartet {
+	private final Part module;
+	private final Part instance;
+	private final Part name;
+	private final Part statistic;
+
+	Quartet(final Part module, final Part instance, final Part name,
+		final Part statistic) {
+	    this.module = module;
+	    this.instance = instance;
+	    this.name = name;
+	    this.statistic = statistic;
+	}
+
+	boolean matchTriplet(final Kstat ks) {
+	    return (module == null || module.matches(ks.getModule()))
+		&& (instance == null
+		    || instance.matches(Integer.toString(ks.getInst())))
+		&& (name == null || name.matches(ks.getName()));
+	}
+
+	boolean matchStatistic(final Kstat ks) {
+	    if (statistic == null) {
+		return true;
+	    }
+	    if (statistic.exact != null) {
+		return ks.hasStatistic(statistic.exact);
+	    }
+	    for (String s : ks.statistics()) {
+		if (statistic.matches(s)) {
+		    return true;
+		}
+	    }
+	    return false;
+	}
+    }
+
+    /**
+     * Create an empty KstatMatcher. With no patterns, every kstat
+     * matches.
+     */
+    public KstatMatcher() {
+	quartets = new ArrayList<>();
+	cache = new HashMap<>();
+    }
+
+    /**
+     * Add a pattern. A kstat is selected if it matches any of the
+     * patterns.
+     *
+     * @param s a pattern of the form module:instance:name:statistic
+     *
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    public void addFilter(final String s) {
+	String[] parts = s.split(":");
+	if (parts.length > 4) {
+	    throw new IllegalArgumentException("Invalid pattern " + s);
+	}
+	Part[] p = new Part[4];
+	for (int i = 0; i < parts.length; i++) {
+	    p[i] = compile(parts[i]);
+	}
+	if (p[1] != null && p[1].exact != null) {
+	    try {
+		p[1] = new Part(Integer.toString(Integer.parseInt(p[1].exact)),
+				null);
+	    } catch (NumberFormatException nfe) {
+		throw new IllegalArgumentException("Invalid instance in "
+						+ s);
+	    }
+	}
+	quartets.add(new Quartet(p[0], p[1], p[2], p[3]));
+	cache.clear();
+    }
+
+    /*
+     * Compile one part of a pattern.
+     */
+    private static Part compile(final String s) {
+	if (s.isEmpty() || "*".equals(s)) {
+	    return null;
+	}
+	try {
+	    if (s.length() > 2 && s.startsWith("/") && s.endsWith("/")) {
+		return new Part(null,
+			Pattern.compile(s.substring(1, s.length() - 1)));
+	    }
+	    if (s.indexOf('*') >= 0 || s.indexOf('?') >= 0
+		    || s.indexOf('[') >= 0) {
+		return new Part(null, Pattern.compile(globToRegex(s)));
+	    }
+	} catch (PatternSyntaxException pse) {
+	    throw new IllegalArgumentException("Invalid pattern " + s);
+	}
+	return new Part(s, null);
+    }
+
+    /*
+     * Convert a shell style glob to a regular expression.
+     */
+    private static String globToRegex(final String glob) {
+	StringBuilder sb = new StringBuilder();
+	boolean inclass = false;
+	for (int i = 0; i < glob.length(); i++) {
+	    char c = glob.charAt(i);
+	    if (inclass) {
+		if (c == ']') {
+		    inclass = false;
+		} else if (c == '\\') {
+		    sb.append('\\');
+		}
+		sb.append(c);
+	    } else if (c == '*') {
+		sb.append(".*");
+	    } else if (c == '?') {
+		sb.append('.');
+	    } else if (c == '[') {
+		inclass = true;
+		sb.append('[');
+		if (i + 1 < glob.length() && glob.charAt(i + 1) == '!') {
+		    sb.append('^');
+		    i++;
+		}
+	    } else if (Character.isLetterOrDigit(c) || c == '_') {
+		sb.append(c);
+	    } else {
+		sb.append('\\').append(c);
+	    }
+	}
+	return sb.toString();
+    }
+
+    /*
+     * Return the patterns whose module, instance, and name match the
+     * given kstat, from the cache if this kstat has been seen before.
+     */
+    private Quartet[] tripletMatches(final Kstat ks) {
+	Quartet[] q = cache.get(ks);
+	if (q == null) {
+	    List<Quartet> l = new ArrayList<>();
+	    for (Quartet qt : quartets) {
+		if (qt.matchTriplet(ks)) {
+		    l.add(qt);
+		}
+	    }
+	    q = l.isEmpty() ? NO_MATCH : l.toArray(new Quartet[0]);
+	    cache.put(ks, q);
+	}
+	return q;
+    }
+
+    /**
+     * Return whether a kstat matches any of the patterns.
+     *
+     * @param ks the Kstat to test
+     *
+     * @return true if the kstat matches
+     */
+    public boolean matches(final Kstat ks) {
+	if (quartets.isEmpty()) {
+	    return true;
+	}
+	for (Quartet q : tripletMatches(ks)) {
+	    if (q.matchStatistic(ks)) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Return the kstats matching any of the patterns, sorted.
+     *
+     * @param kstats the kstats to select from, usually a snapshot
+     *
+     * @return a sorted List of the matching kstats
+     */
+    public List<Kstat> getKstats(final Collection<Kstat> kstats) {
+	List<Kstat> l = new ArrayList<>();
+	for (Kstat ks : kstats) {
+	    if (matches(ks)) {
+		l.add(ks);
+	    }
+	}
+	Collections.sort(l);
+	return l;
+    }
+
+    /**
+     * Return the statistics of a kstat that match the patterns it was
+     * selected by. If any of those patterns doesn't specify a statistic,
+     * all the statistics are returned.
+     *
+     * @param ks the Kstat of interest
+     *
+     * @return the sorted names of the matching statistics
+     */
+    public Collection<String> filteredStatistics(final Kstat ks) {
+	Quartet[] q = quartets.isEmpty() ? NO_MATCH : tripletMatches(ks);
+	List<Part> sparts = new ArrayList<>();
+	for (Quartet qt : q) {
+	    if (qt.statistic == null) {
+		return ks.statistics();
+	    }
+	    sparts.add(qt.statistic);
+	}
+	if (sparts.isEmpty()) {
+	    return ks.statistics();
+	}
+	List<String> l = new ArrayList<>();
+	for (String s : ks.statistics()) {
+	    for (Part p : sparts) {
+		if (p.matches(s)) {
+		    l.add(s);
+		    break;
+		}
+	    }
+	}
+	return l;
+    }
+}
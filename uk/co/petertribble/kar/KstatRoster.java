@@ -0,0 +1,137 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import uk.co.petertribble.jkstat.api.Kstat;
+
+/**
+ * Maintain a sorted list of the kstats matching some condition, from one
+ * snapshot to the next. The set of devices or cpus rarely changes, so
+ * rather than filtering and sorting the candidates every interval, the
+ * kstats in a new snapshot are simply slotted into the positions found
+ * last time, and only the others are tested against the condition. The
+ * list is only rebuilt if the number of candidates changes, if a kstat
+ * in the list has disappeared or been recreated, or if a new kstat
+ * matches.
+ *
+ * The candidates should be a slice of the snapshot from its index, such
+ * as the kstats of one module or one type, rather than the whole chain,
+ * so that the cost of an update depends on the number of devices or cpus
+ * rather than the size of the chain.
+ *
+ * @author Peter Tribble
+ */
+public final class KstatRoster {
+
+    private final Predicate<Kstat> predicate;
+    private int size = -1;
+    private Map<Kstat, Integer> index;
+    private long[] crtimes;
+    private Kstat[] current;
+    private List<Kstat> members;
+
+    /**
+     * Create a roster of the kstats matching the given condition.
+     *
+     * @param predicate the condition a kstat must satisfy to be included
+     */
+    public KstatRoster(final Predicate<Kstat> predicate) {
+	this.predicate = predicate;
+	index = new HashMap<>();
+	crtimes = new long[0];
+	current = new Kstat[0];
+	members = Collections.emptyList();
+    }
+
+    /**
+     * Update the roster from a new snapshot.
+     *
+     * @param candidates the kstats in the new snapshot that might match
+     *
+     * @return the matching kstats from the new snapshot, in sorted order
+     */
+    public List<Kstat> update(final Collection<Kstat> candidates) {
+	if (candidates.size() != size) {
+	    rebuild(candidates);
+	    return members;
+	}
+	Arrays.fill(current, null);
+	int found = 0;
+	for (Kstat ks : candidates) {
+	    Integer i = index.get(ks);
+	    if (i != null) {
+		if (ks.getCrtime() != crtimes[i]) {
+		    rebuild(candidates);
+		    return members;
+		}
+		current[i] = ks;
+		found++;
+	    } else if (predicate.test(ks)) {
+		// a new match, even if there are as many candidates
+		rebuild(candidates);
+		return members;
+	    }
+	}
+	if (found != current.length) {
+	    rebuild(candidates);
+	}
+	return members;
+    }
+
+    /**
+     * Return the kstats from the most recent update, in sorted order.
+     *
+     * @return the current matching kstats
+     */
+    public List<Kstat> getKstats() {
+	return members;
+    }
+
+    /*
+     * Filter and sort all the candidates.
+     */
+    private void rebuild(final Collection<Kstat> candidates) {
+	List<Kstat> matched = new ArrayList<>();
+	for (Kstat ks : candidates) {
+	    if (predicate.test(ks)) {
+		matched.add(ks);
+	    }
+	}
+	Collections.sort(matched);
+	size = candidates.size();
+	current = matched.toArray(new Kstat[0]);
+	crtimes = new long[current.length];
+	index = new HashMap<>();
+	for (int i = 0; i < current.length; i++) {
+	    crtimes[i] = current[i].getCrtime();
+	    index.put(current[i], i);
+	}
+	members = Collections.unmodifiableList(Arrays.asList(current));
+    }
+}
@@ -23,8 +23,6 @@ package uk.co.petertribble.kar;
 import java.io.IOException;
 import java.util.Date;
 import uk.co.petertribble.jkstat.api.Kstat;
-import uk.co.petertribble.jkstat.api.SequencedJKstat;
-import uk.co.petertribble.jkstat.parse.ParseableJSONZipJKstat;
 
 /**
  * Print load averages.
@@ -38,6 +36,8 @@ public class Load {
     private String etime;
     private long dayend;
     private String filename;
+    private long interval;
+    private int sample = 1;
 
     /**
      * Display load averages.
@@ -47,7 +47,7 @@ public class Load {
     public Load(final String[] args) {
 	parseArgs(args);
 	try {
-	    accumulate(new ParseableJSONZipJKstat(filename));
+	    accumulate(new KarZipJKstat(filename));
 	} catch (IOException ioe) {
 	    usage("Invalid zip file");
 	}
@@ -73,6 +73,23 @@ public class Load {
 		} else if ("s".equals(flag)) {
 		    i++;
 		    stime = args[i];
+		} else if ("-sample".equals(flag)) {
+		    i++;
+		    try {
+			sample = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid sample");
+		    }
+		    if (sample < 1) {
+			usage("Error: sample must be positive");
+		    }
+		} else if ("i".equals(flag)) {
+		    i++;
+		    try {
+			interval = KarTime.getIntervalInMillis(args[i]);
+		    } catch (IllegalArgumentException iae) {
+			usage(iae.getMessage());
+		    }
 		}
 	    } else {
 		usage();
@@ -84,7 +101,7 @@ public class Load {
      * Go through the input reading all the entries, and accumulating
      * statistics.
      */
-    private void accumulate(final SequencedJKstat sjkstat) {
+    private void accumulate(final KarZipJKstat sjkstat) {
 	try {
 	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
 	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
@@ -92,22 +109,48 @@ public class Load {
 	    usage(iae.getMessage());
 	}
 	// skip forward to start time
-	while (sjkstat.getTime() < daystart) {
-	    sjkstat.next();
+	if (!sjkstat.seek(daystart)) {
+	    return;
+	}
+	if (interval > 0) {
+	    sjkstat.setInterval(daystart, interval);
 	}
+	sjkstat.setSample(sample);
 	Kstat ksb = sjkstat.getKstat("unix", 0, "system_misc");
 	long boottime = 1000 * ksb.longData("boot_time");
 	long firsttime = boottime > daystart ? boottime : daystart;
 	System.out.printf("%tT%8s%8s%8s%n", new Date(firsttime),
 			"1min", "5min", "15min");
+	/*
+	 * Only the weighted totals are kept for the average, and each
+	 * snapshot is weighted by the time it stands for, so that gaps in
+	 * the data don't distort the average.
+	 */
+	KarTimeline timeline = new KarTimeline(sjkstat, daystart, interval,
+					sample);
+	double tload1 = 0.0;
+	double tload5 = 0.0;
+	double tload15 = 0.0;
+	long tweight = 0;
 	do {
 	    Kstat ks = sjkstat.getKstat("unix", 0, "system_misc");
+	    timeline.printChange(timeline.advance(sjkstat.getTime(),
+				ks.longData("boot_time")));
+	    double load1 = ks.longData("avenrun_1min") / 256.0;
+	    double load5 = ks.longData("avenrun_5min") / 256.0;
+	    double load15 = ks.longData("avenrun_15min") / 256.0;
 	    System.out.printf("%tT%8.2f%8.2f%8.2f%n",
 				new Date(sjkstat.getTime()),
-				ks.longData("avenrun_1min") / 256.0,
-				ks.longData("avenrun_5min") / 256.0,
-				ks.longData("avenrun_15min") / 256.0);
+				load1, load5, load15);
+	    long weight = timeline.getWeight();
+	    tload1 += weight * load1;
+	    tload5 += weight * load5;
+	    tload15 += weight * load15;
+	    tweight += weight;
 	} while (sjkstat.next() && sjkstat.getTime() < dayend);
+	System.out.println();
+	System.out.printf("Average %8.2f%8.2f%8.2f%n", tload1 / tweight,
+			tload5 / tweight, tload15 / tweight);
     }
 
     /*
@@ -115,7 +158,8 @@ public class Load {
      */
     private void usage() {
 	System.err.println("Usage: load [-e time] "
-			+ "[-f filename] [-s time]");
+			+ "[-f filename] [-i interval] [-s time]");
+	System.err.println("            [--sample n]");
 	System.exit(1);
     }
 
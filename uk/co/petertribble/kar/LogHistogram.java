@@ -0,0 +1,227 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+/**
+ * A compact histogram of non-negative values, with logarithmically sized
+ * buckets. Each bucket is a fixed ratio wider than the previous one, so
+ * quantiles can be estimated with a bounded relative error (about 2%)
+ * over any range of values, and two histograms can be merged exactly by
+ * adding their bucket counts.
+ *
+ * @author Peter Tribble
+ */
+public final class LogHistogram {
+
+    /*
+     * The ratio between the upper bounds of consecutive buckets.
+     */
+    private static final double GAMMA = 1.04;
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    /*
+     * Anything smaller than this is counted as zero.
+     */
+    private static final double MIN_VALUE = 1.0e-9;
+
+    private long[] counts;
+    // the bucket index corresponding to counts[0]
+    private int offset;
+    private long total;
+    private long zeros;
+    private double max;
+
+    /**
+     * Create a new, empty, LogHistogram.
+     */
+    public LogHistogram() {
+	counts = new long[0];
+    }
+
+    /**
+     * Add a value to this histogram. Negative values and values that
+     * are not numbers are ignored.
+     *
+     * @param value the value to add
+     */
+    public void add(final double value) {
+	if (Double.isNaN(value) || value < 0.0) {
+	    return;
+	}
+	if (value < MIN_VALUE) {
+	    zeros++;
+	} else {
+	    increment(bucket(value), 1);
+	}
+	total++;
+	if (value > max) {
+	    max = value;
+	}
+    }
+
+    /**
+     * Merge the contents of another histogram into this one.
+     *
+     * @param other the histogram to merge into this one
+     */
+    public void merge(final LogHistogram other) {
+	for (int i = 0; i < other.counts.length; i++) {
+	    if (other.counts[i] > 0) {
+		increment(other.offset + i, other.counts[i]);
+	    }
+	}
+	total += other.total;
+	zeros += other.zeros;
+	if (other.max > max) {
+	    max = other.max;
+	}
+    }
+
+    /*
+     * The index of the bucket containing the given value.
+     */
+    private static int bucket(final double value) {
+	return (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    }
+
+    /*
+     * Add n to the count in the given bucket, growing the array of
+     * counts if necessary.
+     */
+    private void increment(final int index, final long n) {
+	if (counts.length == 0) {
+	    counts = new long[1];
+	    offset = index;
+	} else if (index < offset) {
+	    long[] ncounts = new long[counts.length + offset - index];
+	    System.arraycopy(counts, 0, ncounts, offset - index,
+			counts.length);
+	    counts = ncounts;
+	    offset = index;
+	} else if (index >= offset + counts.length) {
+	    long[] ncounts = new long[index - offset + 1];
+	    System.arraycopy(counts, 0, ncounts, 0, counts.length);
+	    counts = ncounts;
+	}
+	counts[index - offset] += n;
+    }
+
+    /**
+     * Return the number of values added to this histogram.
+     *
+     * @return the number of values in this histogram
+     */
+    public long getCount() {
+	return total;
+    }
+
+    /**
+     * Return the largest value added to this histogram.
+     *
+     * @return the largest value in this histogram
+     */
+    public double getMax() {
+	return max;
+    }
+
+    /**
+     * Estimate the given quantile of the values in this histogram.
+     *
+     * @param q the desired quantile, between 0 and 1
+     *
+     * @return the estimated value at the given quantile, or zero if the
+     * histogram is empty
+     */
+    public double quantile(final double q) {
+	if (total == 0) {
+	    return 0.0;
+	}
+	long rank = (long) Math.ceil(q * total);
+	if (rank < 1) {
+	    rank = 1;
+	}
+	long seen = zeros;
+	if (seen >= rank) {
+	    return 0.0;
+	}
+	for (int i = 0; i < counts.length; i++) {
+	    seen += counts[i];
+	    if (seen >= rank) {
+		// the midpoint of the bucket, in relative terms
+		double upper = Math.pow(GAMMA, offset + i);
+		return Math.min(max, 2.0 * upper / (GAMMA + 1.0));
+	    }
+	}
+	return max;
+    }
+
+    /**
+     * Serialize this histogram as a single line of text, which can be
+     * turned back into a histogram with the {@link #parse(String)} method.
+     * Only buckets that contain values are written.
+     *
+     * @return a textual representation of this histogram
+     */
+    @Override
+    public String toString() {
+	StringBuilder sb = new StringBuilder();
+	sb.append(total).append(' ').append(zeros).append(' ').append(max);
+	for (int i = 0; i < counts.length; i++) {
+	    if (counts[i] > 0) {
+		sb.append(' ').append(offset + i).append(':').append(counts[i]);
+	    }
+	}
+	return sb.toString();
+    }
+
+    /**
+     * Create a histogram from its textual representation, as generated
+     * by the {@link #toString()} method.
+     *
+     * @param s the textual representation of a histogram
+     *
+     * @return the histogram
+     *
+     * @throws IllegalArgumentException if the input cannot be parsed
+     */
+    public static LogHistogram parse(final String s) {
+	String[] ds = s.trim().split("\\s+");
+	if (ds.length < 3) {
+	    throw new IllegalArgumentException("invalid histogram.");
+	}
+	LogHistogram h = new LogHistogram();
+	try {
+	    h.total = Long.parseLong(ds[0]);
+	    h.zeros = Long.parseLong(ds[1]);
+	    h.max = Double.parseDouble(ds[2]);
+	    for (int i = 3; i < ds.length; i++) {
+		int colon = ds[i].indexOf(':');
+		if (colon < 0) {
+		    throw new IllegalArgumentException("invalid histogram.");
+		}
+		h.increment(Integer.parseInt(ds[i].substring(0, colon)),
+			Long.parseLong(ds[i].substring(colon + 1)));
+	    }
+	} catch (NumberFormatException nfe) {
+	    throw new IllegalArgumentException("invalid histogram.");
+	}
+	return h;
+    }
+}
@@ -22,13 +22,9 @@ package uk.co.petertribble.kar;
 
 import java.io.IOException;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import uk.co.petertribble.jkstat.api.Kstat;
-import uk.co.petertribble.jkstat.api.KstatFilter;
-import uk.co.petertribble.jkstat.api.KstatSet;
-import uk.co.petertribble.jkstat.api.SequencedJKstat;
-import uk.co.petertribble.jkstat.parse.ParseableJSONZipJKstat;
 
 /**
  * Main driver to emulate mpstat output given kar input.
@@ -37,31 +33,41 @@ import uk.co.petertribble.jkstat.parse.ParseableJSONZipJKstat;
  */
 public final class MPstat {
 
+    private static final double NANOSEC = 1000000000.0;
+    /*
+     * The cpu::sys statistics we need. The first 7 map directly to output
+     * columns, the 2 rw failure counts are summed, then syscalls and the
+     * 3 cpu times.
+     */
+    private static final String[] SYS_STATS = {"xcalls", "intr",
+	"intrthread", "pswitch", "inv_swtch", "cpumigrate", "mutex_adenters",
+	"rw_rdfails", "rw_wrfails", "syscall", "cpu_nsec_user",
+	"cpu_nsec_kernel", "cpu_nsec_idle"};
+    private static final String[] VM_STATS = {"hat_fault", "as_fault",
+	"maj_fault"};
+    private static final int NCOLUMNS = 14;
+
     private String stime;
     private long daystart;
     private String etime;
     private long dayend;
     private String filename;
-    private final Map<String, Kstat> lastMap;
+    private long interval;
+    private int sample = 1;
+    // the cpu::sys kstats
+    private final KstatRoster roster;
+    // the cpu::vm kstats, in the same order
+    private final List<Kstat> vmlist;
+    private final CounterColumns sys;
+    private final CounterColumns vm;
 
-    private long oldsnaptime;
-    private long foldsnaptime;
     private long lastboot;
 
-    private long dminf;
-    private long dmjf;
-    private long dxcal;
-    private long dintr;
-    private long dithr;
-    private long dcsw;
-    private long dicsw;
-    private long dmigr;
-    private long dsmtx;
-    private long dsrw;
-    private long dsyscl;
-    private long dusr;
-    private long dsys;
-    private long didl;
+    /*
+     * The columns of the output, one row per cpu.
+     */
+    private double[][] out;
+    private long[] work;
 
     /**
      * Display MPstat output.
@@ -69,17 +75,23 @@ public final class MPstat {
      * @param args the command line arguments
      */
     public MPstat(final String[] args) {
-	lastMap = new HashMap<>();
+	vmlist = new ArrayList<>();
+	sys = new CounterColumns(SYS_STATS);
+	vm = new CounterColumns(VM_STATS);
+	out = new double[NCOLUMNS][0];
+	work = new long[0];
+	roster = new KstatRoster(ks -> "cpu".equals(ks.getModule())
+				&& "sys".equals(ks.getName()));
 	parseArgs(args);
 	try {
-	    accumulate(new ParseableJSONZipJKstat(filename));
+	    accumulate(new KarZipJKstat(filename));
 	} catch (IOException ioe) {
 	    usage("Invalid zip file");
 	}
     }
 
     /*
-     * mpstat [-e time] [-f filename] [-s time]
+     * mpstat [-e time] [-f filename] [-i interval] [-s time] [--sample n]
      *
      */
     private void parseArgs(final String[] args) {
@@ -99,6 +111,23 @@ public final class MPstat {
 		} else if ("s".equals(flag)) {
 		    i++;
 		    stime = args[i];
+		} else if ("-sample".equals(flag)) {
+		    i++;
+		    try {
+			sample = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid sample");
+		    }
+		    if (sample < 1) {
+			usage("Error: sample must be positive");
+		    }
+		} else if ("i".equals(flag)) {
+		    i++;
+		    try {
+			interval = KarTime.getIntervalInMillis(args[i]);
+		    } catch (IllegalArgumentException iae) {
+			usage(iae.getMessage());
+		    }
 		}
 	    } else {
 		usage();
@@ -110,7 +139,7 @@ public final class MPstat {
      * Go through the input reading all the entries, and accumulating
      * statistics.
      */
-    private void accumulate(final SequencedJKstat sjkstat) {
+    private void accumulate(final KarZipJKstat sjkstat) {
 	try {
 	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
 	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
@@ -118,18 +147,19 @@ public final class MPstat {
 	    usage(iae.getMessage());
 	}
 	// skip forward to start time
-	while (sjkstat.getTime() < daystart) {
-	    sjkstat.next();
+	if (!sjkstat.seek(daystart)) {
+	    return;
 	}
+	if (interval > 0) {
+	    sjkstat.setInterval(daystart, interval);
+	}
+	sjkstat.setSample(sample);
 	do {
 	    System.out.printf("%tT    %s%n", new Date(sjkstat.getTime()),
 				"processor statistics");
 	    System.out.println("CPU minf mjf xcal  intr ithr  csw icsw migr "
 				+ "smtx  srw syscl  usr sys idl");
 
-	    KstatFilter ksf = new KstatFilter(sjkstat);
-	    ksf.addFilter("cpu::sys");
-
 	    /*
 	     * If we've rebooted since the last measurement, clear all the
 	     * saved measurements and the code will do the right thing.
@@ -137,99 +167,68 @@ public final class MPstat {
 	    long boottime = sjkstat.getKstat("unix", 0, "system_misc")
 				.longData("boot_time");
 	    if (boottime > lastboot) {
-		lastMap.clear();
+		sys.reset();
+		vm.reset();
 	    }
 	    lastboot = boottime;
 
-	    KstatSet kss = new KstatSet(sjkstat, ksf);
-	    for (Kstat ks : kss.getKstats(true)) {
-		doPrint(ks, sjkstat.getKstat("cpu", ks.getInst(), "vm"));
+	    List<Kstat> kss = roster.update(sjkstat.getKstats("cpu", "sys"));
+	    vmlist.clear();
+	    for (Kstat ks : kss) {
+		vmlist.add(sjkstat.getKstat("cpu", ks.getInst(), "vm"));
 	    }
-	    lastMap.clear();
-	    for (Kstat ks : kss.getKstats()) {
-		lastMap.put(ks.getTriplet(), ks);
-		/*
-		 * Save the matching cpu::vm kstat
-		 */
-		Kstat ksv = sjkstat.getKstat("cpu", ks.getInst(), "vm");
-		lastMap.put(ksv.getTriplet(), ksv);
+	    sys.update(kss);
+	    vm.update(vmlist);
+	    calculate(kss.size());
+	    for (int i = 0; i < kss.size(); i++) {
+		doPrint(i, kss.get(i).getInst());
 	    }
 	} while (sjkstat.next() && sjkstat.getTime() < dayend);
     }
 
-    private void doPrint(final Kstat ks, final Kstat ksf) {
-
-	// get the new values
-	long nminf = ksf.longData("hat_fault") + ksf.longData("as_fault");
-	long nmjf = ksf.longData("maj_fault");
-	long nxcal = ks.longData("xcalls");
-	long nintr = ks.longData("intr");
-	long nithr = ks.longData("intrthread");
-	long ncsw = ks.longData("pswitch");
-	long nicsw = ks.longData("inv_swtch");
-	long nmigr = ks.longData("cpumigrate");
-	long nsmtx = ks.longData("mutex_adenters");
-	long nsrw = ks.longData("rw_rdfails") + ks.longData("rw_wrfails");
-	long nsyscl = ks.longData("syscall");
-	long nusr = ks.longData("cpu_nsec_user");
-	long nsys = ks.longData("cpu_nsec_kernel");
-	long nidl = ks.longData("cpu_nsec_idle");
-
-	Kstat ksold = lastMap.get(ks.getTriplet());
-	Kstat ksfold = lastMap.get(ksf.getTriplet());
-	if (ksold == null) {
-	    oldsnaptime = ks.getCrtime();
-	    foldsnaptime = ksf.getCrtime();
-	} else {
-	    oldsnaptime = ksold.getSnaptime();
-	    foldsnaptime = ksfold.getSnaptime();
-
-	    nminf
-		-= ksfold.longData("hat_fault") + ksfold.longData("as_fault");
-	    nmjf -= ksf.longData("maj_fault");
-	    nxcal -= ksold.longData("xcalls");
-	    nintr -= ksold.longData("intr");
-	    nithr -= ksold.longData("intrthread");
-	    ncsw -= ksold.longData("pswitch");
-	    nicsw -= ksold.longData("inv_swtch");
-	    nmigr -= ksold.longData("cpumigrate");
-	    nsmtx -= ksold.longData("mutex_adenters");
-	    nsrw
-		-= ksold.longData("rw_rdfails") + ksold.longData("rw_wrfails");
-	    nsyscl -= ksold.longData("syscall");
-	    nusr -= ksold.longData("cpu_nsec_user");
-	    nsys -= ksold.longData("cpu_nsec_kernel");
-	    nidl -= ksold.longData("cpu_nsec_idle");
+    /*
+     * Turn the deltas for all the cpus into the output columns.
+     */
+    private void calculate(final int n) {
+	if (n > work.length) {
+	    out = new double[NCOLUMNS][n];
+	    work = new long[n];
 	}
-	long snapdelta = ks.getSnaptime() - oldsnaptime;
-	long fsnapdelta = ksf.getSnaptime() - foldsnaptime;
-
-	dminf = Math.round(nminf * 1000000000.0 / fsnapdelta);
-	dmjf = Math.round(nmjf * 1000000000.0 / fsnapdelta);
-	dxcal = Math.round(nxcal * 1000000000.0 / snapdelta);
- 	dintr = Math.round(nintr * 1000000000.0 / snapdelta);
-	dithr = Math.round(nithr * 1000000000.0 / snapdelta);
-	dcsw = Math.round(ncsw * 1000000000.0 / snapdelta);
-	dicsw = Math.round(nicsw * 1000000000.0 / snapdelta);
-	dmigr = Math.round(nmigr * 1000000000.0 / snapdelta);
-	dsmtx = Math.round(nsmtx * 1000000000.0 / snapdelta);
-	dsrw = Math.round(nsrw * 1000000000.0 / snapdelta);
- 	dsyscl = Math.round(nsyscl * 1000000000.0 / snapdelta);
-	dusr = Math.round(nusr * 100.0 / snapdelta);
-	dsys = Math.round(nsys * 100.0 / snapdelta);
-	didl = Math.round(nidl * 100.0 / snapdelta);
+	long[] fsnap = vm.snapdeltas();
+	long[] snap = sys.snapdeltas();
+	RateKernel.add(vm.deltas(0), vm.deltas(1), work, n);
+	RateKernel.scale(work, NANOSEC, fsnap, 1.0, out[0], n);
+	RateKernel.scale(vm.deltas(2), NANOSEC, fsnap, 1.0, out[1], n);
+	for (int c = 0; c < 7; c++) {
+	    RateKernel.scale(sys.deltas(c), NANOSEC, snap, 1.0, out[c + 2], n);
+	}
+	RateKernel.add(sys.deltas(7), sys.deltas(8), work, n);
+	RateKernel.scale(work, NANOSEC, snap, 1.0, out[9], n);
+	RateKernel.scale(sys.deltas(9), NANOSEC, snap, 1.0, out[10], n);
+	for (int c = 10; c < 13; c++) {
+	    RateKernel.scale(sys.deltas(c), 100.0, snap, 1.0, out[c + 1], n);
+	}
+    }
 
+    private void doPrint(final int i, final int inst) {
 	System.out.printf(
 	    "%3d %4d %3d %4d %5d %4d %4d %4d %4d %4d %4d %5d  %3d %3d %3d%n",
-		ks.getInst(), dminf, dmjf, dxcal, dintr, dithr, dcsw, dicsw,
-		dmigr, dsmtx, dsrw, dsyscl, dusr, dsys, didl);
+		inst, Math.round(out[0][i]), Math.round(out[1][i]),
+		Math.round(out[2][i]), Math.round(out[3][i]),
+		Math.round(out[4][i]), Math.round(out[5][i]),
+		Math.round(out[6][i]), Math.round(out[7][i]),
+		Math.round(out[8][i]), Math.round(out[9][i]),
+		Math.round(out[10][i]), Math.round(out[11][i]),
+		Math.round(out[12][i]), Math.round(out[13][i]));
     }
 
     /*
      * Print usage message and exit.
      */
     private void usage() {
-	System.err.println("Usage: mpstat [-e time] [-f filename] [-s time]");
+	System.err.println("Usage: mpstat [-e time] [-f filename] "
+			+ "[-i interval] [-s time]");
+	System.err.println("              [--sample n]");
 	System.exit(1);
     }
 
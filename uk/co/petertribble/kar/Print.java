@@ -21,13 +21,9 @@
 package uk.co.petertribble.kar;
 
 import java.io.IOException;
-import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
 import uk.co.petertribble.jkstat.api.Kstat;
-import uk.co.petertribble.jkstat.api.KstatFilter;
-import uk.co.petertribble.jkstat.api.SequencedJKstat;
-import uk.co.petertribble.jkstat.parse.ParseableJSONZipJKstat;
 
 /**
  * Print kstats matching a pattern from kar data.
@@ -55,6 +51,8 @@ public final class Print {
     // -T d | u for pretty time or raw seconds
     private String ttype;
 
+    private final KarOutput out = KarOutput.stdout();
+
     /**
      * Display sar output.
      *
@@ -67,7 +65,7 @@ public final class Print {
 	    usage("Must supply a pattern.");
 	}
 	try {
-	    accumulate(new ParseableJSONZipJKstat(filename));
+	    accumulate(new KarZipJKstat(filename));
 	} catch (IOException ioe) {
 	    usage("Invalid zip file");
 	}
@@ -168,32 +166,29 @@ public final class Print {
      * Go through the input reading all the entries, and accumulating
      * statistics.
      */
-    private void accumulate(final SequencedJKstat sjkstat) {
-	KstatFilter ksf = new KstatFilter(sjkstat);
-	for (String s : kstatPatterns) {
-	    ksf.addFilter(s);
-	}
+    private void accumulate(final KarZipJKstat sjkstat) {
+	KstatMatcher ksm = new KstatMatcher();
 	try {
+	    for (String s : kstatPatterns) {
+		ksm.addFilter(s);
+	    }
 	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
 	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
 	} catch (IllegalArgumentException iae) {
 	    usage(iae.getMessage());
 	}
 	// skip forward to start time
-	while (sjkstat.getTime() < daystart) {
-	    sjkstat.next();
+	if (!sjkstat.seek(daystart)) {
+	    return;
 	}
 	do {
-	    for (Kstat ks : ksf.getKstats(true)) {
-		if (showstatistic == null) {
-		    for (String s : ksf.filteredStatistics(ks)) {
-			printOut(sjkstat.getTime(), ks, s);
-		    }
-		} else {
-		    printOut(sjkstat.getTime(), ks, showstatistic);
+	    for (Kstat ks : ksm.getKstats(sjkstat.getKstats())) {
+		for (String s : ksm.filteredStatistics(ks)) {
+		    printOut(sjkstat.getTime(), ks, s);
 		}
 	    }
 	} while (sjkstat.next() && sjkstat.getTime() < dayend);
+	out.flush();
     }
 
     /*
@@ -202,30 +197,18 @@ public final class Print {
     private void printOut(final long t, final Kstat ks,
 			  final String statistic) {
 	if ("u".equals(ttype)) {
-	    if (ks.isNumeric(statistic)) {
-		System.out.printf("%d\t%s:%s\t%8d%n",
-			t / 1000,
-			ks.getTriplet(), statistic,
-			ks.getData(statistic));
-	    } else {
-		System.out.printf("%d\t%s:%s\t%s%n",
-			t / 1000,
-			ks.getTriplet(), statistic,
-			ks.getData(statistic));
-	    }
+	    out.appendEpoch(t);
 	} else {
-	    if (ks.isNumeric(statistic)) {
-		System.out.printf("%tT\t%s:%s\t%8d%n",
-			new Date(t),
-			ks.getTriplet(), statistic,
-			ks.getData(statistic));
-	    } else {
-		System.out.printf("%tT\t%s:%s\t%s%n",
-			new Date(t),
-			ks.getTriplet(), statistic,
-			ks.getData(statistic));
-	    }
+	    out.appendClock(t);
+	}
+	out.append('\t').append(ks.getTriplet()).append(':').append(statistic)
+	    .append('\t');
+	if (ks.isNumeric(statistic)) {
+	    out.appendPadded(ks.longData(statistic), 8);
+	} else {
+	    out.append(String.valueOf(ks.getData(statistic)));
 	}
+	out.newline();
     }
 
     /*
@@ -0,0 +1,237 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+import java.util.HashMap;
+import java.util.Map;
+import uk.co.petertribble.jkstat.api.Kstat;
+
+/**
+ * Calculate the rate of change of every numeric statistic of a series of
+ * kstat snapshots. Each statistic is assigned a slot the first time it's
+ * seen, and the state for each slot is held in primitive arrays, so the
+ * memory used depends only on the number of distinct statistics, not on
+ * the number of snapshots.
+ *
+ * Call {@link #startSnapshot()} before passing each kstat in a snapshot to
+ * {@link #update(Kstat)}. After that, {@link #hasRate(int)} says whether
+ * a slot has a valid rate for the current snapshot. There's no rate the
+ * first time a statistic is seen, if the kstat has been recreated, or if
+ * the counter has gone backwards.
+ *
+ * @author Peter Tribble
+ */
+public final class RateEngine {
+
+    private static final int INITIAL_SIZE = 1024;
+
+    private final Map<String, Series> seriesMap;
+
+    private int nslots;
+    private int generation;
+    private long[] values;
+    private double[] rates;
+    private long[] deltas;
+    private long[] nanos;
+    private int[] valid;
+    private String[] names;
+
+    /*
+     * The slots used by a kstat, indexed by statistic name, along with the
+     * creation and snapshot times of the previous measurement.
+     */
+    private static final class Series {
+	private final Map<String, Integer> slots = new HashMap<>();
+	private long crtime;
+	private long snaptime = -1;
+    }
+
+    /**
+     * Create a new, empty, RateEngine.
+     */
+    public RateEngine() {
+	seriesMap = new HashMap<>();
+	values = new long[INITIAL_SIZE];
+	rates = new double[INITIAL_SIZE];
+	deltas = new long[INITIAL_SIZE];
+	nanos = new long[INITIAL_SIZE];
+	valid = new int[INITIAL_SIZE];
+	names = new String[INITIAL_SIZE];
+    }
+
+    /**
+     * Start a new snapshot. Rates calculated for the previous snapshot are
+     * no longer valid.
+     */
+    public void startSnapshot() {
+	generation++;
+    }
+
+    /**
+     * Discard the previous measurements, so that no rates will be
+     * calculated until each kstat has been seen again. This should be
+     * called if the system has rebooted. Slots are retained.
+     */
+    public void reset() {
+	for (Series s : seriesMap.values()) {
+	    s.snaptime = -1;
+	}
+    }
+
+    /**
+     * Update the rates of all the numeric statistics of the given kstat.
+     *
+     * @param ks the kstat to update from
+     */
+    public void update(final Kstat ks) {
+	Series s = seriesMap.get(ks.getTriplet());
+	if (s == null) {
+	    s = new Series();
+	    seriesMap.put(ks.getTriplet(), s);
+	}
+	long snaptime = ks.getSnaptime();
+	long snapdelta = snaptime - s.snaptime;
+	boolean ok = s.snaptime >= 0 && ks.getCrtime() == s.crtime
+	    && snapdelta > 0;
+	double secs = snapdelta / 1000000000.0;
+	for (String statistic : ks.statistics()) {
+	    if (!ks.isNumeric(statistic)) {
+		continue;
+	    }
+	    Integer islot = s.slots.get(statistic);
+	    int slot;
+	    if (islot == null) {
+		slot = allocate(ks.getTriplet() + ":" + statistic);
+		s.slots.put(statistic, slot);
+	    } else {
+		slot = islot;
+	    }
+	    long value = ks.longData(statistic);
+	    long delta = value - values[slot];
+	    if (ok && islot != null && delta >= 0) {
+		deltas[slot] = delta;
+		nanos[slot] = snapdelta;
+		rates[slot] = delta / secs;
+		valid[slot] = generation;
+	    }
+	    values[slot] = value;
+	}
+	s.crtime = ks.getCrtime();
+	s.snaptime = snaptime;
+    }
+
+    /*
+     * Allocate a new slot, growing the arrays if necessary.
+     */
+    private int allocate(final String name) {
+	if (nslots == values.length) {
+	    int nsize = 2 * nslots;
+	    long[] nvalues = new long[nsize];
+	    System.arraycopy(values, 0, nvalues, 0, nslots);
+	    values = nvalues;
+	    double[] nrates = new double[nsize];
+	    System.arraycopy(rates, 0, nrates, 0, nslots);
+	    rates = nrates;
+	    long[] ndeltas = new long[nsize];
+	    System.arraycopy(deltas, 0, ndeltas, 0, nslots);
+	    deltas = ndeltas;
+	    long[] nnanos = new long[nsize];
+	    System.arraycopy(nanos, 0, nnanos, 0, nslots);
+	    nanos = nnanos;
+	    int[] nvalid = new int[nsize];
+	    System.arraycopy(valid, 0, nvalid, 0, nslots);
+	    valid = nvalid;
+	    String[] nnames = new String[nsize];
+	    System.arraycopy(names, 0, nnames, 0, nslots);
+	    names = nnames;
+	}
+	names[nslots] = name;
+	return nslots++;
+    }
+
+    /**
+     * Return the number of slots allocated. Slots are numbered from zero.
+     *
+     * @return the number of slots
+     */
+    public int size() {
+	return nslots;
+    }
+
+    /**
+     * Return whether the given slot has a valid rate for the current
+     * snapshot.
+     *
+     * @param slot the slot to check
+     *
+     * @return true if the slot was updated with a valid rate in the
+     * current snapshot
+     */
+    public boolean hasRate(final int slot) {
+	return valid[slot] == generation;
+    }
+
+    /**
+     * Return the most recent rate for the given slot, per second.
+     *
+     * @param slot the slot to return the rate of
+     *
+     * @return the rate of change of the statistic in the given slot
+     */
+    public double rate(final int slot) {
+	return rates[slot];
+    }
+
+    /**
+     * Return the most recent change in value for the given slot.
+     *
+     * @param slot the slot to return the change of
+     *
+     * @return the change in the statistic in the given slot
+     */
+    public long delta(final int slot) {
+	return deltas[slot];
+    }
+
+    /**
+     * Return the length of the most recent interval for the given slot.
+     *
+     * @param slot the slot to return the interval of
+     *
+     * @return the time, in nanoseconds, over which the most recent rate
+     * for the given slot was measured
+     */
+    public long interval(final int slot) {
+	return nanos[slot];
+    }
+
+    /**
+     * Return the name of the given slot, which is the kstat triplet and
+     * the statistic name, separated by a colon.
+     *
+     * @param slot the slot to return the name of
+     *
+     * @return the name of the given slot
+     */
+    public String name(final int slot) {
+	return names[slot];
+    }
+}
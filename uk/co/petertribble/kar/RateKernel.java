@@ -0,0 +1,86 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+/**
+ * The bulk arithmetic used to turn columns of counters into rates and
+ * percentages. Each method is a simple loop over primitive arrays, with
+ * no branches or method calls, which the JIT compiler can unroll and
+ * vectorize.
+ *
+ * @author Peter Tribble
+ */
+public final class RateKernel {
+
+    private RateKernel() {
+    }
+
+    /**
+     * Subtract one column from another.
+     *
+     * @param now the current values
+     * @param then the previous values
+     * @param out where to store now - then
+     * @param n the number of elements
+     */
+    public static void delta(final long[] now, final long[] then,
+			final long[] out, final int n) {
+	for (int i = 0; i < n; i++) {
+	    out[i] = now[i] - then[i];
+	}
+    }
+
+    /**
+     * Add two columns.
+     *
+     * @param a the first column
+     * @param b the second column
+     * @param out where to store a + b
+     * @param n the number of elements
+     */
+    public static void add(final long[] a, final long[] b,
+			final long[] out, final int n) {
+	for (int i = 0; i < n; i++) {
+	    out[i] = a[i] + b[i];
+	}
+    }
+
+    /**
+     * Scale a column of deltas by the time they were measured over. To
+     * get a rate per second from a delta over a time in nanoseconds use a
+     * mult of 1000000000 and a div of 1, and for a percentage of the time
+     * use a mult of 100 and a div of 1.
+     *
+     * @param d the deltas
+     * @param mult the factor to multiply the deltas by
+     * @param t the times the deltas were measured over
+     * @param div the factor to multiply the times by
+     * @param out where to store d * mult / (t * div)
+     * @param n the number of elements
+     */
+    public static void scale(final long[] d, final double mult,
+			final long[] t, final double div,
+			final double[] out, final int n) {
+	for (int i = 0; i < n; i++) {
+	    out[i] = d[i] * mult / (t[i] * div);
+	}
+    }
+}
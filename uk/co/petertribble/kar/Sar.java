@@ -14,30 +14,42 @@
  *
  * CDDL HEADER END
  *
- * Copyright 2025 Peter Tribble
+ * Copyright 2026 Peter Tribble
  *
  */
 
 package uk.co.petertribble.kar;
 
 import java.io.IOException;
-import java.util.Date;
-import uk.co.petertribble.jkstat.api.Kstat;
-import uk.co.petertribble.jkstat.api.SequencedJKstat;
-import uk.co.petertribble.jkstat.parse.ParseableJSONZipJKstat;
+import java.util.ArrayList;
+import java.util.Formatter;
+import java.util.List;
 
 /**
  * Main driver to emulate sar output given kar input.
  *
+ * All the requested sections are calculated in a single pass through the
+ * archive. The first section is printed as it goes, the others are
+ * buffered and printed at the end.
+ *
  * @author Peter Tribble
  */
 public class Sar {
 
+    /*
+     * The sections we support, in the order sar prints them.
+     */
+    private static final String SECTIONS = "udqbwcampgrk";
+    private static final String SECTION_FLAGS = "[aAbcdgkmpqruw]+";
+
     private String stime;
     private long daystart;
     private String etime;
     private long dayend;
     private String filename;
+    private long interval;
+    private int sample = 1;
+    private final StringBuilder options = new StringBuilder();
 
     /**
      * Display sar output.
@@ -47,7 +59,7 @@ public class Sar {
     public Sar(final String[] args) {
 	parseArgs(args);
 	try {
-	    accumulate(new ParseableJSONZipJKstat(filename));
+	    accumulate(new KarZipJKstat(filename));
 	} catch (IOException ioe) {
 	    usage("Invalid zip file");
 	}
@@ -56,8 +68,11 @@ public class Sar {
     /*
      * Argument parser. Usage is this form, from sar(1):
      *
-     * sar [-aAbcdgkmpqruvwy] [-e time] [-f filename] [-s time]
+     * sar [-aAbcdgkmpqruw] [-e time] [-f filename] [-i interval] [-s time]
+     *    [--sample n]
      *
+     * The -v and -y sections aren't supported, as the kstats they need
+     * aren't archived.
      */
     private void parseArgs(final String[] args) {
 	for (int i = 0; i < args.length; i++) {
@@ -76,18 +91,84 @@ public class Sar {
 		} else if ("s".equals(flag)) {
 		    i++;
 		    stime = args[i];
+		} else if ("-sample".equals(flag)) {
+		    i++;
+		    try {
+			sample = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid sample");
+		    }
+		    if (sample < 1) {
+			usage("Error: sample must be positive");
+		    }
+		} else if ("i".equals(flag)) {
+		    i++;
+		    try {
+			interval = KarTime.getIntervalInMillis(args[i]);
+		    } catch (IllegalArgumentException iae) {
+			usage(iae.getMessage());
+		    }
+		} else if (flag.matches(SECTION_FLAGS)) {
+		    options.append(flag.contains("A") ? SECTIONS : flag);
+		} else {
+		    usage("Error: unsupported flag -" + flag);
 		}
 	    } else {
 		usage();
 	    }
 	}
+	if (options.length() == 0) {
+	    options.append('u');
+	}
+    }
+
+    /*
+     * Create the requested sections, in sar's order.
+     */
+    private List<SarSection> createSections() {
+	List<SarSection> sections = new ArrayList<>();
+	for (char c : SECTIONS.toCharArray()) {
+	    if (options.indexOf(String.valueOf(c)) >= 0) {
+		sections.add(createSection(c));
+	    }
+	}
+	return sections;
+    }
+
+    private static SarSection createSection(final char c) {
+	switch (c) {
+	case 'u':
+	    return new SarSection.Cpu();
+	case 'd':
+	    return new SarSection.Device();
+	case 'q':
+	    return new SarSection.Queue();
+	case 'b':
+	    return new SarSection.Buffer();
+	case 'w':
+	    return new SarSection.Swap();
+	case 'c':
+	    return new SarSection.Syscall();
+	case 'a':
+	    return new SarSection.FileAccess();
+	case 'm':
+	    return new SarSection.Messages();
+	case 'p':
+	    return new SarSection.PageIn();
+	case 'g':
+	    return new SarSection.PageOut();
+	case 'r':
+	    return new SarSection.Memory();
+	default:
+	    return new SarSection.Kmem();
+	}
     }
 
     /*
      * Go through the input reading all the entries, and accumulating
-     * statistics.
+     * statistics for every section at once.
      */
-    private void accumulate(final SequencedJKstat sjkstat) {
+    private void accumulate(final KarZipJKstat sjkstat) {
 	try {
 	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
 	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
@@ -95,94 +176,87 @@ public class Sar {
 	    usage(iae.getMessage());
 	}
 	// skip forward to start time
-	while (sjkstat.getTime() < daystart) {
-	    sjkstat.next();
+	if (!sjkstat.seek(daystart)) {
+	    return;
 	}
-	Kstat ksb = sjkstat.getKstat("unix", 0, "system_misc");
-	long boottime = 1000 * ksb.longData("boot_time");
+	if (interval > 0) {
+	    sjkstat.setInterval(daystart, interval);
+	}
+	sjkstat.setSample(sample);
+	KarTimeline timeline = new KarTimeline(sjkstat, daystart, interval,
+					sample);
+	long boottime = 1000 * bootTime(sjkstat);
 	long firsttime = boottime > daystart ? boottime : daystart;
-	System.out.printf("%tT%8s%8s%8s%8s%n", new Date(firsttime),
-			"%usr", "%sys", "%wio", "%idle");
-	// times, both current and accumulated
-	long okernel = 0;
-	long oidle = 0;
-	long ouser = 0;
-	long tkernel = 0;
-	long tidle = 0;
-	long tuser = 0;
-	if (boottime > daystart) {
-	    System.out.printf("%tT        unix restarts%n",
-			new Date(1000 * ksb.longData("boot_time")));
-	} else {
-	    // reset times based on first data
-	    for (Kstat ks : sjkstat.getKstats()) {
-		if ("cpu".equals(ks.getModule())
-				&& "sys".equals(ks.getName())) {
-		    okernel += ks.longData("cpu_nsec_kernel");
-		    ouser += ks.longData("cpu_nsec_user");
-		    oidle += ks.longData("cpu_nsec_idle");
-		}
+	/*
+	 * The first section goes straight to the output, the rest are
+	 * saved until the end.
+	 */
+	List<SarSection> sections = createSections();
+	List<StringBuilder> buffers = new ArrayList<>();
+	for (SarSection section : sections) {
+	    if (buffers.isEmpty()) {
+		section.setOutput(new Formatter(System.out));
+		buffers.add(null);
+	    } else {
+		StringBuilder sb = new StringBuilder();
+		section.setOutput(new Formatter(sb));
+		buffers.add(sb);
 	    }
-	    tkernel = -okernel;
-	    tidle = -oidle;
-	    tuser = -ouser;
-	    sjkstat.next();
+	    section.header(firsttime);
 	}
+	boolean withkmem = options.indexOf("k") >= 0;
+	/*
+	 * The statistics at the start of the current interval. The first
+	 * snapshot is just a baseline, unless the system booted since the
+	 * start time, in which case everything counts from zero at boot.
+	 */
+	SarData last = null;
+	long lasttime = 0;
 	do {
-	    long nkernel = 0;
-	    long nidle = 0;
-	    long nuser = 0;
-	    for (Kstat ks : sjkstat.getKstats()) {
-		if ("cpu".equals(ks.getModule())
-				&& "sys".equals(ks.getName())) {
-		    nkernel += ks.longData("cpu_nsec_kernel");
-		    nuser += ks.longData("cpu_nsec_user");
-		    nidle += ks.longData("cpu_nsec_idle");
-		}
+	    long t = sjkstat.getTime();
+	    int change = timeline.advance(t, bootTime(sjkstat));
+	    SarData cur = SarData.read(sjkstat, withkmem);
+	    if (change == KarTimeline.RESTART) {
+		last = new SarData();
+		lasttime = 1000 * timeline.getBootTime();
 	    }
-	    if (nkernel < okernel || nuser < ouser || nidle < oidle) {
-		tkernel += okernel;
-		tuser += ouser;
-		tidle += oidle;
-		okernel = 0;
-		ouser = 0;
-		oidle = 0;
-		ksb = sjkstat.getKstat("unix", 0, "system_misc");
-		System.out.printf("%tT        unix restarts%n",
-				new Date(1000 * ksb.longData("boot_time")));
+	    SarData delta = last == null ? null : cur.minus(last);
+	    double secs = (t - lasttime) / 1000.0;
+	    for (SarSection section : sections) {
+		section.mark(timeline, change);
+		section.sample(sjkstat, change);
+		if (delta != null) {
+		    section.row(t, delta, cur, secs);
+		}
 	    }
-	    long dkernel = nkernel - okernel;
-	    long duser = nuser - ouser;
-	    long didle = nidle - oidle;
-	    long dtot = dkernel + duser + didle;
-	    // add 0.5 so we round correctly
-	    int fkernel = (int) (0.5 + 100.0 * dkernel / dtot);
-	    int fuser = (int) (0.5 + 100.0 * duser / dtot);
-	    int fidle = (int) (0.5 + 100.0 * didle / dtot);
-	    System.out.printf("%tT%8d%8d%8d%8d%n", new Date(sjkstat.getTime()),
-				fuser, fkernel, 0, fidle);
-	    okernel = nkernel;
-	    ouser = nuser;
-	    oidle = nidle;
+	    last = cur;
+	    lasttime = t;
 	} while (sjkstat.next() && sjkstat.getTime() < dayend);
-	tkernel += okernel;
-	tuser += ouser;
-	tidle += oidle;
-	System.out.println();
-	long ttot = tkernel + tuser + tidle;
-	int fkernel = (int) (0.5 + 100.0 * tkernel / ttot);
-	int fuser = (int) (0.5 + 100.0 * tuser / ttot);
-	int fidle = (int) (0.5 + 100.0 * tidle / ttot);
-	System.out.printf("Average %8d%8d%8d%8d%n",
-				fuser, fkernel, 0, fidle);
+	for (int i = 0; i < sections.size(); i++) {
+	    sections.get(i).average();
+	    if (buffers.get(i) != null) {
+		System.out.println();
+		System.out.print(buffers.get(i));
+	    }
+	}
+	System.out.flush();
+    }
+
+    /*
+     * Return the boot time, in seconds, of the system in the current
+     * snapshot.
+     */
+    private static long bootTime(final KarZipJKstat sjkstat) {
+	return sjkstat.getKstat("unix", 0, "system_misc").longData("boot_time");
     }
 
     /*
      * Print usage message and exit.
      */
     private void usage() {
-	System.err.println("Usage: sar [-aAbcdgkmpqruvwy] [-e time] "
-			+ "[-f filename] [-s time]");
+	System.err.println("Usage: sar [-aAbcdgkmpqruw] [-e time] "
+			+ "[-f filename] [-i interval] [-s time]");
+	System.err.println("           [--sample n]");
 	System.exit(1);
     }
 
@@ -0,0 +1,254 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+import uk.co.petertribble.jkstat.api.Kstat;
+
+/**
+ * The system wide statistics needed by sar, read from one snapshot: the
+ * cpu::sys and cpu::vm counters summed over all cpus, the unix:0:sysinfo
+ * and unix:0:vminfo counters, and the kernel memory allocator totals.
+ * Subtracting one SarData from another gives the activity in between.
+ *
+ * @author Peter Tribble
+ */
+final class SarData {
+
+    /*
+     * The cpu::sys statistics, summed over all cpus.
+     */
+    static final String[] SYS_STATS = {"cpu_nsec_user", "cpu_nsec_kernel",
+	"cpu_nsec_idle", "bread", "bwrite", "lread", "lwrite", "phread",
+	"phwrite", "pswitch", "syscall", "sysread", "syswrite", "sysfork",
+	"sysvfork", "sysexec", "readch", "writech", "msg", "sema", "ufsiget",
+	"namei", "ufsdirblk", "ufsipage", "ufsinopage"};
+    static final int CPU_USER = 0;
+    static final int CPU_KERNEL = 1;
+    static final int CPU_IDLE = 2;
+    static final int BREAD = 3;
+    static final int BWRITE = 4;
+    static final int LREAD = 5;
+    static final int LWRITE = 6;
+    static final int PHREAD = 7;
+    static final int PHWRITE = 8;
+    static final int PSWITCH = 9;
+    static final int SYSCALL = 10;
+    static final int SYSREAD = 11;
+    static final int SYSWRITE = 12;
+    static final int SYSFORK = 13;
+    static final int SYSVFORK = 14;
+    static final int SYSEXEC = 15;
+    static final int READCH = 16;
+    static final int WRITECH = 17;
+    static final int MSG = 18;
+    static final int SEMA = 19;
+    static final int UFSIGET = 20;
+    static final int NAMEI = 21;
+    static final int UFSDIRBLK = 22;
+    static final int UFSIPAGE = 23;
+    static final int UFSINOPAGE = 24;
+
+    /*
+     * The cpu::vm statistics, summed over all cpus.
+     */
+    static final String[] VM_STATS = {"swapin", "swapout", "pgswapin",
+	"pgswapout", "pgout", "pgpgout", "dfree", "scan", "pgrec", "pgin",
+	"pgpgin", "prot_fault", "hat_fault", "softlock"};
+    static final int SWAPIN = 0;
+    static final int SWAPOUT = 1;
+    static final int PGSWAPIN = 2;
+    static final int PGSWAPOUT = 3;
+    static final int PGOUT = 4;
+    static final int PGPGOUT = 5;
+    static final int DFREE = 6;
+    static final int SCAN = 7;
+    static final int PGREC = 8;
+    static final int PGIN = 9;
+    static final int PGPGIN = 10;
+    static final int PROT_FAULT = 11;
+    static final int HAT_FAULT = 12;
+    static final int SOFTLOCK = 13;
+
+    /*
+     * The unix:0:sysinfo statistics.
+     */
+    static final String[] SYSINFO_STATS = {"runque", "runocc", "swpque",
+	"swpocc", "updates"};
+    static final int RUNQUE = 0;
+    static final int RUNOCC = 1;
+    static final int SWPQUE = 2;
+    static final int SWPOCC = 3;
+    static final int SI_UPDATES = 4;
+
+    /*
+     * The unix:0:vminfo statistics.
+     */
+    static final String[] VMINFO_STATS = {"freemem", "swap_avail",
+	"updates"};
+    static final int FREEMEM = 0;
+    static final int SWAP_AVAIL = 1;
+    static final int VI_UPDATES = 2;
+
+    /*
+     * The kernel memory allocator. The memory and allocation figures are
+     * levels, in bytes, the failures are counters.
+     */
+    static final int KMEM_SMALL_MEM = 0;
+    static final int KMEM_SMALL_ALLOC = 1;
+    static final int KMEM_SMALL_FAIL = 2;
+    static final int KMEM_LARGE_MEM = 3;
+    static final int KMEM_LARGE_ALLOC = 4;
+    static final int KMEM_LARGE_FAIL = 5;
+    static final int KMEM_OVSZ_ALLOC = 6;
+    static final int KMEM_OVSZ_FAIL = 7;
+    private static final int NKMEM = 8;
+    /*
+     * Requests up to this size come from the small memory pool.
+     */
+    private static final long KMEM_SMALL_SIZE = 256;
+
+    final long[] sys;
+    final long[] vm;
+    final long[] sysinfo;
+    final long[] vminfo;
+    final long[] kmem;
+    long pagesize;
+
+    /*
+     * Create an empty SarData, with all the counters zero, as they are
+     * at boot.
+     */
+    SarData() {
+	sys = new long[SYS_STATS.length];
+	vm = new long[VM_STATS.length];
+	sysinfo = new long[SYSINFO_STATS.length];
+	vminfo = new long[VMINFO_STATS.length];
+	kmem = new long[NKMEM];
+	pagesize = 4096;
+    }
+
+    /*
+     * Read the statistics from the current snapshot. The kernel memory
+     * allocator figures need a search of all the kmem caches, so are only
+     * read if asked for.
+     */
+    static SarData read(final KarZipJKstat sjkstat, final boolean withkmem) {
+	SarData sd = new SarData();
+	for (Kstat ks : sjkstat.getKstats("cpu", "sys")) {
+	    add(ks, SYS_STATS, sd.sys);
+	}
+	for (Kstat ks : sjkstat.getKstats("cpu", "vm")) {
+	    add(ks, VM_STATS, sd.vm);
+	}
+	add(sjkstat.getKstat("unix", 0, "sysinfo"), SYSINFO_STATS,
+		sd.sysinfo);
+	add(sjkstat.getKstat("unix", 0, "vminfo"), VMINFO_STATS, sd.vminfo);
+	/*
+	 * The page size isn't recorded as a kstat, so go by the processor
+	 * type.
+	 */
+	Kstat ksi = sjkstat.getKstat("cpu_info", 0, "cpu_info0");
+	if (ksi != null && ksi.hasStatistic("cpu_type")
+		&& String.valueOf(ksi.getData("cpu_type"))
+		.startsWith("sparc")) {
+	    sd.pagesize = 8192;
+	}
+	if (withkmem) {
+	    sd.readKmem(sjkstat);
+	}
+	return sd;
+    }
+
+    /*
+     * Sum the kmem_alloc caches into small and large pools, as sar does.
+     * Oversize allocations come from the kmem_oversize vmem arena.
+     */
+    private void readKmem(final KarZipJKstat sjkstat) {
+	for (Kstat ks : sjkstat.getKstats("unix")) {
+	    if (!ks.getName().startsWith("kmem_alloc_")) {
+		continue;
+	    }
+	    long size = value(ks, "buf_size");
+	    long total = value(ks, "buf_total");
+	    long avail = value(ks, "buf_avail");
+	    int base = size <= KMEM_SMALL_SIZE ? KMEM_SMALL_MEM
+		: KMEM_LARGE_MEM;
+	    kmem[base] += size * total;
+	    kmem[base + 1] += size * (total - avail);
+	    kmem[base + 2] += value(ks, "alloc_fail");
+	}
+	for (Kstat ks : sjkstat.getKstats("vmem")) {
+	    if ("kmem_oversize".equals(ks.getName())) {
+		kmem[KMEM_OVSZ_ALLOC] += value(ks, "mem_inuse");
+		kmem[KMEM_OVSZ_FAIL] += value(ks, "fail");
+	    }
+	}
+    }
+
+    private static void add(final Kstat ks, final String[] stats,
+			final long[] values) {
+	if (ks == null) {
+	    return;
+	}
+	for (int i = 0; i < stats.length; i++) {
+	    values[i] += value(ks, stats[i]);
+	}
+    }
+
+    /*
+     * Not every statistic exists on every release, so treat a missing
+     * statistic as zero.
+     */
+    private static long value(final Kstat ks, final String stat) {
+	return ks.isNumeric(stat) ? ks.longData(stat) : 0L;
+    }
+
+    /*
+     * Return the difference between this and an earlier SarData.
+     */
+    SarData minus(final SarData old) {
+	SarData sd = new SarData();
+	sd.pagesize = pagesize;
+	diff(sys, old.sys, sd.sys);
+	diff(vm, old.vm, sd.vm);
+	diff(sysinfo, old.sysinfo, sd.sysinfo);
+	diff(vminfo, old.vminfo, sd.vminfo);
+	diff(kmem, old.kmem, sd.kmem);
+	return sd;
+    }
+
+    private static void diff(final long[] a, final long[] b,
+			final long[] out) {
+	RateKernel.delta(a, b, out, out.length);
+    }
+
+    /*
+     * Add the given SarData to this one, to accumulate deltas.
+     */
+    void add(final SarData sd) {
+	pagesize = sd.pagesize;
+	RateKernel.add(sys, sd.sys, sys, sys.length);
+	RateKernel.add(vm, sd.vm, vm, vm.length);
+	RateKernel.add(sysinfo, sd.sysinfo, sysinfo, sysinfo.length);
+	RateKernel.add(vminfo, sd.vminfo, vminfo, vminfo.length);
+	RateKernel.add(kmem, sd.kmem, kmem, kmem.length);
+    }
+}
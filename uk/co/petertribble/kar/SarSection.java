@@ -0,0 +1,472 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+import java.util.Date;
+import java.util.Formatter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import uk.co.petertribble.jkstat.api.Kstat;
+import uk.co.petertribble.jkstat.api.KstatType;
+
+/**
+ * One section of sar output, such as cpu utilization for -u or buffer
+ * activity for -b. Each section writes a header, a line for each
+ * interval, and an average over the whole period, to its own Formatter,
+ * so that all the sections can be generated in a single pass through an
+ * archive and printed one after the other.
+ *
+ * The nested subclasses implement the individual sections. Most just
+ * turn the change in the system wide statistics over an interval into
+ * rates; the average is then simply the same calculation applied to the
+ * total change over the whole period.
+ *
+ * @author Peter Tribble
+ */
+abstract class SarSection {
+
+    private static final double NANOSEC = 1000000000.0;
+
+    private Formatter out;
+    private final String titles;
+    private final SarData total;
+    private double totalSecs;
+
+    /*
+     * Create a section with the given column titles, which follow the time
+     * in the header.
+     */
+    SarSection(final String titles) {
+	this.titles = titles;
+	total = new SarData();
+    }
+
+    /*
+     * Set where this section's output goes.
+     */
+    void setOutput(final Formatter nout) {
+	out = nout;
+    }
+
+    Formatter out() {
+	return out;
+    }
+
+    /*
+     * Print the header, with the time the data starts.
+     */
+    void header(final long t) {
+	out.format("%tT%s%n", new Date(t), titles);
+    }
+
+    /*
+     * Mark a restart or gap in the output.
+     */
+    void mark(final KarTimeline timeline, final int change) {
+	timeline.printChange(change, out);
+    }
+
+    /*
+     * Look at the current snapshot. This is called for every snapshot,
+     * including the first, for sections that need more than the system
+     * wide statistics.
+     */
+    void sample(final KarZipJKstat sjkstat, final int change) {
+    }
+
+    /*
+     * Print the line for an interval ending at time t, given the change
+     * in the statistics over the interval, the current statistics, and
+     * the length of the interval in seconds.
+     */
+    void row(final long t, final SarData delta, final SarData cur,
+	    final double secs) {
+	out.format("%tT", new Date(t));
+	values(delta, cur, secs);
+	total.add(delta);
+	totalSecs += secs;
+    }
+
+    /*
+     * Print the average over the whole period.
+     */
+    void average() {
+	out.format("%n%-8s", "Average");
+	values(total, null, totalSecs);
+    }
+
+    /*
+     * Print the values for an interval, or for the whole period, in which
+     * case cur is null, and the end of line.
+     */
+    abstract void values(SarData d, SarData cur, double secs);
+
+    static double rate(final long n, final double secs) {
+	return secs > 0.0 ? n / secs : 0.0;
+    }
+
+    static double percent(final long n, final long tot) {
+	return tot > 0 ? 100.0 * n / tot : 0.0;
+    }
+
+    /*
+     * Cpu utilization, -u.
+     */
+    static final class Cpu extends SarSection {
+	Cpu() {
+	    super(String.format("%8s%8s%8s%8s", "%usr", "%sys", "%wio",
+				"%idle"));
+	}
+
+	@Override
+	void values(final SarData d, final SarData cur, final double secs) {
+	    long dkernel = d.sys[SarData.CPU_KERNEL];
+	    long duser = d.sys[SarData.CPU_USER];
+	    long didle = d.sys[SarData.CPU_IDLE];
+	    long dtot = dkernel + duser + didle;
+	    // add 0.5 so we round correctly
+	    int fkernel = (int) (0.5 + 100.0 * dkernel / dtot);
+	    int fuser = (int) (0.5 + 100.0 * duser / dtot);
+	    int fidle = (int) (0.5 + 100.0 * didle / dtot);
+	    out().format("%8d%8d%8d%8d%n", fuser, fkernel, 0, fidle);
+	}
+    }
+
+    /*
+     * Run queue, -q.
+     */
+    static final class Queue extends SarSection {
+	Queue() {
+	    super(String.format("%8s%8s%8s%8s", "runq-sz", "%runocc",
+				"swpq-sz", "%swpocc"));
+	}
+
+	@Override
+	void values(final SarData d, final SarData cur, final double secs) {
+	    long[] si = d.sysinfo;
+	    out().format("%8.1f%8.0f%8.1f%8.0f%n",
+		si[SarData.RUNOCC] > 0
+		    ? (double) si[SarData.RUNQUE] / si[SarData.RUNOCC] : 0.0,
+		percent(si[SarData.RUNOCC], si[SarData.SI_UPDATES]),
+		si[SarData.SWPOCC] > 0
+		    ? (double) si[SarData.SWPQUE] / si[SarData.SWPOCC] : 0.0,
+		percent(si[SarData.SWPOCC], si[SarData.SI_UPDATES]));
+	}
+    }
+
+    /*
+     * Buffer activity, -b.
+     */
+    static final class Buffer extends SarSection {
+	Buffer() {
+	    super(String.format("%8s%8s%8s%8s%8s%8s%8s%8s", "bread/s",
+				"lread/s", "%rcache", "bwrit/s", "lwrit/s",
+				"%wcache", "pread/s", "pwrit/s"));
+	}
+
+	@Override
+	void values(final SarData d, final SarData cur, final double secs) {
+	    long[] s = d.sys;
+	    out().format("%8.0f%8.0f%8.0f%8.0f%8.0f%8.0f%8.0f%8.0f%n",
+		rate(s[SarData.BREAD], secs), rate(s[SarData.LREAD], secs),
+		cache(s[SarData.LREAD], s[SarData.BREAD]),
+		rate(s[SarData.BWRITE], secs), rate(s[SarData.LWRITE], secs),
+		cache(s[SarData.LWRITE], s[SarData.BWRITE]),
+		rate(s[SarData.PHREAD], secs),
+		rate(s[SarData.PHWRITE], secs));
+	}
+
+	/*
+	 * The cache hit rate. With no logical operations, nothing missed.
+	 */
+	private static double cache(final long logical, final long physical) {
+	    return logical > 0 ? 100.0 * (logical - physical) / logical
+		: 100.0;
+	}
+    }
+
+    /*
+     * Swapping and switching, -w.
+     */
+    static final class Swap extends SarSection {
+	Swap() {
+	    super(String.format("%8s%8s%8s%8s%8s", "swpin/s", "bswin/s",
+				"swpot/s", "bswot/s", "pswch/s"));
+	}
+
+	@Override
+	void values(final SarData d, final SarData cur, final double secs) {
+	    long[] v = d.vm;
+	    long blocks = d.pagesize / 512;
+	    out().format("%8.2f%8.1f%8.2f%8.1f%8.0f%n",
+		rate(v[SarData.SWAPIN], secs),
+		rate(v[SarData.PGSWAPIN] * blocks, secs),
+		rate(v[SarData.SWAPOUT], secs),
+		rate(v[SarData.PGSWAPOUT] * blocks, secs),
+		rate(d.sys[SarData.PSWITCH], secs));
+	}
+    }
+
+    /*
+     * System calls, -c.
+     */
+    static final class Syscall extends SarSection {
+	Syscall() {
+	    super(String.format("%8s%8s%8s%8s%8s%9s%9s", "scall/s",
+				"sread/s", "swrit/s", "fork/s", "exec/s",
+				"rchar/s", "wchar/s"));
+	}
+
+	@Override
+	void values(final SarData d, final SarData cur, final double secs) {
+	    long[] s = d.sys;
+	    out().format("%8.0f%8.0f%8.0f%8.2f%8.2f%9.0f%9.0f%n",
+		rate(s[SarData.SYSCALL], secs), rate(s[SarData.SYSREAD], secs),
+		rate(s[SarData.SYSWRITE], secs),
+		rate(s[SarData.SYSFORK] + s[SarData.SYSVFORK], secs),
+		rate(s[SarData.SYSEXEC], secs), rate(s[SarData.READCH], secs),
+		rate(s[SarData.WRITECH], secs));
+	}
+    }
+
+    /*
+     * File access, -a.
+     */
+    static final class FileAccess extends SarSection {
+	FileAccess() {
+	    super(String.format("%8s%8s%8s", "iget/s", "namei/s", "dirbk/s"));
+	}
+
+	@Override
+	void values(final SarData d, final SarData cur, final double secs) {
+	    long[] s = d.sys;
+	    out().format("%8.0f%8.0f%8.0f%n", rate(s[SarData.UFSIGET], secs),
+		rate(s[SarData.NAMEI], secs), rate(s[SarData.UFSDIRBLK], secs));
+	}
+    }
+
+    /*
+     * Messages and semaphores, -m.
+     */
+    static final class Messages extends SarSection {
+	Messages() {
+	    super(String.format("%8s%8s", "msg/s", "sema/s"));
+	}
+
+	@Override
+	void values(final SarData d, final SarData cur, final double secs) {
+	    out().format("%8.2f%8.2f%n", rate(d.sys[SarData.MSG], secs),
+		rate(d.sys[SarData.SEMA], secs));
+	}
+    }
+
+    /*
+     * Paging in, -p.
+     */
+    static final class PageIn extends SarSection {
+	PageIn() {
+	    super(String.format("%8s%8s%8s%8s%8s%8s", "atch/s", "pgin/s",
+				"ppgin/s", "pflt/s", "vflt/s", "slock/s"));
+	}
+
+	@Override
+	void values(final SarData d, final SarData cur, final double secs) {
+	    long[] v = d.vm;
+	    out().format("%8.2f%8.2f%8.2f%8.2f%8.2f%8.2f%n",
+		rate(v[SarData.PGREC], secs), rate(v[SarData.PGIN], secs),
+		rate(v[SarData.PGPGIN], secs),
+		rate(v[SarData.PROT_FAULT], secs),
+		rate(v[SarData.HAT_FAULT], secs),
+		rate(v[SarData.SOFTLOCK], secs));
+	}
+    }
+
+    /*
+     * Paging out and page scanning, -g.
+     */
+    static final class PageOut extends SarSection {
+	PageOut() {
+	    super(String.format("%8s%9s%9s%9s%9s", "pgout/s", "ppgout/s",
+				"pgfree/s", "pgscan/s", "%ufs_ipf"));
+	}
+
+	@Override
+	void values(final SarData d, final SarData cur, final double secs) {
+	    long[] v = d.vm;
+	    long ipage = d.sys[SarData.UFSIPAGE];
+	    out().format("%8.2f%9.2f%9.2f%9.2f%9.2f%n",
+		rate(v[SarData.PGOUT], secs), rate(v[SarData.PGPGOUT], secs),
+		rate(v[SarData.DFREE], secs), rate(v[SarData.SCAN], secs),
+		percent(ipage, ipage + d.sys[SarData.UFSINOPAGE]));
+	}
+    }
+
+    /*
+     * Unused memory and swap, -r. The vminfo counters are incremented
+     * by the current value every second, so dividing by the change in
+     * updates gives the average over the interval.
+     */
+    static final class Memory extends SarSection {
+	Memory() {
+	    super(String.format("%8s%9s", "freemem", "freeswap"));
+	}
+
+	@Override
+	void values(final SarData d, final SarData cur, final double secs) {
+	    long[] vi = d.vminfo;
+	    long updates = vi[SarData.VI_UPDATES];
+	    out().format("%8.0f%9.0f%n",
+		updates > 0 ? (double) vi[SarData.FREEMEM] / updates : 0.0,
+		updates > 0 ? (double) vi[SarData.SWAP_AVAIL] * d.pagesize
+		    / (512.0 * updates) : 0.0);
+	}
+    }
+
+    /*
+     * The kernel memory allocator, -k. The memory figures are levels,
+     * so the average is weighted by the length of each interval.
+     */
+    static final class Kmem extends SarSection {
+	private final double[] weighted = new double[SarData.KMEM_OVSZ_FAIL
+						+ 1];
+	private double weight;
+
+	Kmem() {
+	    super(String.format("%10s%10s%5s%10s%10s%5s%11s%5s", "sml_mem",
+				"alloc", "fail", "lg_mem", "alloc", "fail",
+				"ovsz_alloc", "fail"));
+	}
+
+	@Override
+	void row(final long t, final SarData delta, final SarData cur,
+		final double secs) {
+	    for (int i = 0; i < weighted.length; i++) {
+		weighted[i] += cur.kmem[i] * secs;
+	    }
+	    weight += secs;
+	    super.row(t, delta, cur, secs);
+	}
+
+	@Override
+	void values(final SarData d, final SarData cur, final double secs) {
+	    double[] level = new double[weighted.length];
+	    for (int i = 0; i < level.length; i++) {
+		if (cur != null) {
+		    level[i] = cur.kmem[i];
+		} else if (weight > 0.0) {
+		    level[i] = weighted[i] / weight;
+		}
+	    }
+	    long[] k = d.kmem;
+	    out().format("%10.0f%10.0f%5d%10.0f%10.0f%5d%11.0f%5d%n",
+		level[SarData.KMEM_SMALL_MEM], level[SarData.KMEM_SMALL_ALLOC],
+		k[SarData.KMEM_SMALL_FAIL], level[SarData.KMEM_LARGE_MEM],
+		level[SarData.KMEM_LARGE_ALLOC], k[SarData.KMEM_LARGE_FAIL],
+		level[SarData.KMEM_OVSZ_ALLOC], k[SarData.KMEM_OVSZ_FAIL]);
+	}
+    }
+
+    /*
+     * Disk activity, -d. This works from the io kstats directly rather
+     * than from the system wide statistics, with a line per device.
+     */
+    static final class Device extends SarSection {
+	private static final String[] IO_STATS = {"reads", "writes",
+	    "nread", "nwritten", "rtime", "rlentime", "wlentime"};
+	private static final int NTOTALS = IO_STATS.length + 1;
+
+	private final KstatRoster roster;
+	private final CounterColumns io;
+	private List<Kstat> kss;
+	// the accumulated deltas and time for each device
+	private final Map<String, long[]> totals;
+
+	Device() {
+	    super(String.format("   %-13s%6s%8s%8s%8s%8s%8s", "device",
+				"%busy", "avque", "r+w/s", "blks/s", "avwait",
+				"avserv"));
+	    roster = new KstatRoster(ks ->
+				ks.getType() == KstatType.KSTAT_TYPE_IO
+				&& !"usba".equals(ks.getModule()));
+	    io = new CounterColumns(IO_STATS);
+	    totals = new LinkedHashMap<>();
+	}
+
+	@Override
+	void sample(final KarZipJKstat sjkstat, final int change) {
+	    if (change == KarTimeline.RESTART) {
+		io.reset();
+	    }
+	    kss = roster.update(sjkstat.getKstatsByType(
+					KstatType.KSTAT_TYPE_IO));
+	    io.update(kss);
+	}
+
+	@Override
+	void row(final long t, final SarData delta, final SarData cur,
+		final double secs) {
+	    long[] snap = io.snapdeltas();
+	    String prefix = String.format("%tT", new Date(t));
+	    for (int i = 0; i < kss.size(); i++) {
+		long[] d = new long[NTOTALS];
+		for (int c = 0; c < IO_STATS.length; c++) {
+		    d[c] = io.deltas(c)[i];
+		}
+		d[NTOTALS - 1] = snap[i];
+		String name = kss.get(i).getName();
+		long[] tot = totals.computeIfAbsent(name,
+						k -> new long[NTOTALS]);
+		RateKernel.add(tot, d, tot, NTOTALS);
+		device(prefix, name, d);
+		prefix = "";
+	    }
+	}
+
+	@Override
+	void average() {
+	    String prefix = "Average";
+	    out().format("%n");
+	    for (Map.Entry<String, long[]> me : totals.entrySet()) {
+		device(prefix, me.getKey(), me.getValue());
+		prefix = "";
+	    }
+	}
+
+	private void device(final String prefix, final String name,
+			final long[] d) {
+	    long ops = d[0] + d[1];
+	    double snapns = d[NTOTALS - 1];
+	    out().format("%-8s   %-13s%6.0f%8.1f%8.0f%8.0f%8.1f%8.1f%n",
+		prefix, name,
+		snapns > 0 ? 100.0 * d[4] / snapns : 0.0,
+		snapns > 0 ? (d[5] + d[6]) / snapns : 0.0,
+		rate(ops, snapns / NANOSEC),
+		rate((d[2] + d[3]) / 512, snapns / NANOSEC),
+		ops > 0 ? d[6] / (1000000.0 * ops) : 0.0,
+		ops > 0 ? d[5] / (1000000.0 * ops) : 0.0);
+	}
+
+	@Override
+	void values(final SarData d, final SarData cur, final double secs) {
+	}
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import uk.co.petertribble.jkstat.api.Kstat;
+import uk.co.petertribble.jkstat.api.KstatType;
+
+/**
+ * Show the busiest devices, cpus, and filesystems from kar input. Rather
+ * than printing every device every interval, only the top N by each
+ * metric are kept, so the output size is independent of the number of
+ * devices.
+ *
+ * @author Peter Tribble
+ */
+public final class Top {
+
+    private String stime;
+    private long daystart;
+    private String etime;
+    private long dayend;
+    private String filename;
+    private int sample = 1;
+    private int count = 5;
+    private final Map<String, Kstat> lastMap;
+    /*
+     * Accumulated deltas for each device, cpu, and filesystem over the
+     * whole range, used to produce the summary.
+     */
+    private final Map<String, long[]> diskTotals;
+    private final Map<String, long[]> cpuTotals;
+    private final Map<String, long[]> fsTotals;
+
+    private long lastboot;
+
+    private final TopN topBusy;
+    private final TopN topAsvc;
+    private final TopN topKw;
+    private final TopN topCpu;
+    private final TopN topFs;
+
+    // indices into the accumulated disk totals
+    private static final int D_RTIME = 0;
+    private static final int D_RLENTIME = 1;
+    private static final int D_OPS = 2;
+    private static final int D_NWRITTEN = 3;
+    private static final int D_TIME = 4;
+
+    /**
+     * Display the busiest devices.
+     *
+     * @param args the command line arguments
+     */
+    public Top(final String[] args) {
+	lastMap = new HashMap<>();
+	diskTotals = new HashMap<>();
+	cpuTotals = new HashMap<>();
+	fsTotals = new HashMap<>();
+	parseArgs(args);
+	topBusy = new TopN(count);
+	topAsvc = new TopN(count);
+	topKw = new TopN(count);
+	topCpu = new TopN(count);
+	topFs = new TopN(count);
+	try {
+	    accumulate(new KarZipJKstat(filename));
+	} catch (IOException ioe) {
+	    usage("Invalid zip file");
+	}
+    }
+
+    /*
+     * top [-n count] [-e time] [-f filename] [-s time] [--sample n]
+     *
+     */
+    private void parseArgs(final String[] args) {
+	for (int i = 0; i < args.length; i++) {
+	    /*
+	     * All flags start with a -, we pick out the arguments to any
+	     * flags that have them as we parse that flag.
+	     */
+	    if (args[i].startsWith("-")) {
+		String flag = args[i].substring(1);
+		if ("f".equals(flag)) {
+		    i++;
+		    filename = args[i];
+		} else if ("e".equals(flag)) {
+		    i++;
+		    etime = args[i];
+		} else if ("s".equals(flag)) {
+		    i++;
+		    stime = args[i];
+		} else if ("-sample".equals(flag)) {
+		    i++;
+		    try {
+			sample = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid sample");
+		    }
+		    if (sample < 1) {
+			usage("Error: sample must be positive");
+		    }
+		} else if ("n".equals(flag)) {
+		    if (i + 1 < args.length) {
+			i++;
+			try {
+			    count = Integer.parseInt(args[i]);
+			} catch (NumberFormatException nfe) {
+			    usage("Error: invalid count");
+			}
+			if (count < 1) {
+			    usage("Error: count must be positive");
+			}
+		    } else {
+			usage("Error: missing argument to -n flag");
+		    }
+		}
+	    } else {
+		usage();
+	    }
+	}
+    }
+
+    /*
+     * Go through the input reading all the entries, and accumulating
+     * statistics.
+     */
+    private void accumulate(final KarZipJKstat sjkstat) {
+	try {
+	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
+	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
+	} catch (IllegalArgumentException iae) {
+	    usage(iae.getMessage());
+	}
+	// skip forward to start time
+	if (!sjkstat.seek(daystart)) {
+	    return;
+	}
+	sjkstat.setSample(sample);
+	do {
+	    /*
+	     * If we've rebooted since the last measurement, clear all the
+	     * saved measurements. Anything without a previous measurement
+	     * is ignored for this interval.
+	     */
+	    long boottime = sjkstat.getKstat("unix", 0, "system_misc")
+				.longData("boot_time");
+	    if (boottime > lastboot) {
+		lastMap.clear();
+	    }
+	    lastboot = boottime;
+
+	    topBusy.clear();
+	    topAsvc.clear();
+	    topKw.clear();
+	    topCpu.clear();
+	    topFs.clear();
+	    for (Kstat ks : sjkstat.getKstats()) {
+		Kstat ksold = lastMap.get(ks.getTriplet());
+		if (isDisk(ks)) {
+		    if (ksold != null) {
+			doDisk(ks, ksold);
+		    }
+		    lastMap.put(ks.getTriplet(), ks);
+		} else if (isCpu(ks)) {
+		    if (ksold != null) {
+			doCpu(ks, ksold);
+		    }
+		    lastMap.put(ks.getTriplet(), ks);
+		} else if (isFs(ks)) {
+		    if (ksold != null) {
+			doFs(ks, ksold);
+		    }
+		    lastMap.put(ks.getTriplet(), ks);
+		}
+	    }
+	    if (topBusy.size() + topCpu.size() + topFs.size() > 0) {
+		System.out.printf("%tT    %s%n", new Date(sjkstat.getTime()),
+				"busiest devices, cpus, and filesystems");
+		display();
+	    }
+	} while (sjkstat.next() && sjkstat.getTime() < dayend);
+	summarize();
+    }
+
+    private boolean isDisk(final Kstat ks) {
+	return ks.getType() == KstatType.KSTAT_TYPE_IO
+	    && "disk".equals(ks.getKstatClass())
+	    && !"usba".equals(ks.getModule());
+    }
+
+    private boolean isCpu(final Kstat ks) {
+	return "cpu".equals(ks.getModule()) && "sys".equals(ks.getName());
+    }
+
+    /*
+     * We can't look for the kstats, because fsstat doesn't define
+     * a sensible naming scheme, so look for something that
+     * identifies them.
+     */
+    private boolean isFs(final Kstat ks) {
+	return ks.hasStatistic("nsetsecattr");
+    }
+
+    private void doDisk(final Kstat ks, final Kstat ksold) {
+	long snapdelta = ks.getSnaptime() - ksold.getSnaptime();
+	if (snapdelta <= 0) {
+	    return;
+	}
+	long nops = ks.longData("reads") + ks.longData("writes")
+	    - ksold.longData("reads") - ksold.longData("writes");
+	long nkw = ks.longData("nwritten") - ksold.longData("nwritten");
+	long nrtime = ks.longData("rtime") - ksold.longData("rtime");
+	long nrlentime = ks.longData("rlentime") - ksold.longData("rlentime");
+
+	topBusy.offer(ks.getName(), busy(nrtime, snapdelta));
+	topAsvc.offer(ks.getName(), asvc(nrlentime, nops));
+	topKw.offer(ks.getName(), kw(nkw, snapdelta));
+
+	long[] tot = diskTotals.computeIfAbsent(ks.getName(),
+						k -> new long[5]);
+	tot[D_RTIME] += nrtime;
+	tot[D_RLENTIME] += nrlentime;
+	tot[D_OPS] += nops;
+	tot[D_NWRITTEN] += nkw;
+	tot[D_TIME] += snapdelta;
+    }
+
+    private void doCpu(final Kstat ks, final Kstat ksold) {
+	long nbusy = ks.longData("cpu_nsec_user")
+	    + ks.longData("cpu_nsec_kernel")
+	    - ksold.longData("cpu_nsec_user")
+	    - ksold.longData("cpu_nsec_kernel");
+	long nidle = ks.longData("cpu_nsec_idle")
+	    - ksold.longData("cpu_nsec_idle");
+	String name = "cpu" + ks.getInstance();
+	topCpu.offer(name, cpu(nbusy, nidle));
+
+	long[] tot = cpuTotals.computeIfAbsent(name, k -> new long[2]);
+	tot[0] += nbusy;
+	tot[1] += nidle;
+    }
+
+    private void doFs(final Kstat ks, final Kstat ksold) {
+	long snapdelta = ks.getSnaptime() - ksold.getSnaptime();
+	if (snapdelta <= 0) {
+	    return;
+	}
+	long nbytes = ks.longData("read_bytes") + ks.longData("write_bytes")
+	    - ksold.longData("read_bytes") - ksold.longData("write_bytes");
+	topFs.offer(ks.getName(), nbytes * 1000000000.0 / snapdelta);
+
+	long[] tot = fsTotals.computeIfAbsent(ks.getName(),
+						k -> new long[2]);
+	tot[0] += nbytes;
+	tot[1] += snapdelta;
+    }
+
+    private static double busy(final long nrtime, final long snapdelta) {
+	return 100.0 * nrtime / snapdelta;
+    }
+
+    /*
+     * Active service time in milliseconds.
+     */
+    private static double asvc(final long nrlentime, final long nops) {
+	return nops == 0 ? 0.0 : nrlentime / (1000000.0 * nops);
+    }
+
+    private static double kw(final long nkw, final long snapdelta) {
+	return nkw * 1000000000.0 / (snapdelta * 1024.0);
+    }
+
+    private static double cpu(final long nbusy, final long nidle) {
+	long ntot = nbusy + nidle;
+	return ntot == 0 ? 0.0 : 100.0 * nbusy / ntot;
+    }
+
+    /*
+     * Work out the top N over the whole range from the accumulated totals.
+     */
+    private void summarize() {
+	topBusy.clear();
+	topAsvc.clear();
+	topKw.clear();
+	topCpu.clear();
+	topFs.clear();
+	for (Map.Entry<String, long[]> me : diskTotals.entrySet()) {
+	    long[] tot = me.getValue();
+	    topBusy.offer(me.getKey(), busy(tot[D_RTIME], tot[D_TIME]));
+	    topAsvc.offer(me.getKey(), asvc(tot[D_RLENTIME], tot[D_OPS]));
+	    topKw.offer(me.getKey(), kw(tot[D_NWRITTEN], tot[D_TIME]));
+	}
+	for (Map.Entry<String, long[]> me : cpuTotals.entrySet()) {
+	    long[] tot = me.getValue();
+	    topCpu.offer(me.getKey(), cpu(tot[0], tot[1]));
+	}
+	for (Map.Entry<String, long[]> me : fsTotals.entrySet()) {
+	    long[] tot = me.getValue();
+	    topFs.offer(me.getKey(), tot[0] * 1000000000.0 / tot[1]);
+	}
+	System.out.println();
+	System.out.println("Summary   busiest devices, cpus, and filesystems");
+	display();
+    }
+
+    private void display() {
+	System.out.println("    metric      value name");
+	displayTop("%b", topBusy);
+	displayTop("asvc_t", topAsvc);
+	displayTop("kw/s", topKw);
+	displayTop("cpu%", topCpu);
+	displayTop("fs_bytes", topFs);
+    }
+
+    private void displayTop(final String metric, final TopN topn) {
+	String[] names = topn.getNames();
+	double[] values = topn.getValues();
+	for (int i = 0; i < names.length; i++) {
+	    System.out.printf("%10s %10.1f %s%n", metric, values[i], names[i]);
+	}
+    }
+
+    /*
+     * Print usage message and exit.
+     */
+    private void usage() {
+	System.err.println("Usage: top [-n count] [-e time] "
+			+ "[-f filename] [-s time]");
+	System.err.println("           [--sample n]");
+	System.exit(1);
+    }
+
+    /*
+     * Print error, followed by usage message and exit.
+     */
+    private void usage(final String s) {
+	System.err.println(s);
+	usage();
+    }
+
+    /**
+     * Display the busiest devices.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(final String[] args) {
+	new Top(args);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar;
+
+/**
+ * Keep the largest N values offered, along with their names. This is a
+ * bounded min-heap held in primitive arrays, so the cost of offering a
+ * value is at worst O(log N) and the memory used is fixed no matter how
+ * many values are offered.
+ *
+ * @author Peter Tribble
+ */
+public final class TopN {
+
+    private final int capacity;
+    private final double[] values;
+    private final String[] names;
+    private int size;
+
+    /**
+     * Create a TopN that retains the given number of entries.
+     *
+     * @param capacity the maximum number of entries to retain
+     */
+    public TopN(final int capacity) {
+	if (capacity < 1) {
+	    throw new IllegalArgumentException("capacity must be positive");
+	}
+	this.capacity = capacity;
+	values = new double[capacity];
+	names = new String[capacity];
+    }
+
+    /**
+     * Discard all retained entries, so this TopN can be reused.
+     */
+    public void clear() {
+	for (int i = 0; i < size; i++) {
+	    names[i] = null;
+	}
+	size = 0;
+    }
+
+    /**
+     * Offer a value. It will be retained if it is one of the largest N
+     * values seen since this TopN was created or last cleared. Values
+     * that are not numbers are ignored.
+     *
+     * @param name the name associated with this value
+     * @param value the value
+     */
+    public void offer(final String name, final double value) {
+	if (Double.isNaN(value)) {
+	    return;
+	}
+	if (size < capacity) {
+	    values[size] = value;
+	    names[size] = name;
+	    siftUp(size);
+	    size++;
+	} else if (value > values[0]) {
+	    values[0] = value;
+	    names[0] = name;
+	    siftDown(0);
+	}
+    }
+
+    /*
+     * Restore the heap property by moving the entry at i towards the root.
+     */
+    private void siftUp(final int i) {
+	int child = i;
+	while (child > 0) {
+	    int parent = (child - 1) / 2;
+	    if (values[parent] <= values[child]) {
+		break;
+	    }
+	    swap(parent, child);
+	    child = parent;
+	}
+    }
+
+    /*
+     * Restore the heap property by moving the entry at i away from the root.
+     */
+    private void siftDown(final int i) {
+	int parent = i;
+	while (true) {
+	    int smallest = parent;
+	    int left = 2 * parent + 1;
+	    int right = left + 1;
+	    if (left < size && values[left] < values[smallest]) {
+		smallest = left;
+	    }
+	    if (right < size && values[right] < values[smallest]) {
+		smallest = right;
+	    }
+	    if (smallest == parent) {
+		break;
+	    }
+	    swap(parent, smallest);
+	    parent = smallest;
+	}
+    }
+
+    private void swap(final int i, final int j) {
+	double dtmp = values[i];
+	values[i] = values[j];
+	values[j] = dtmp;
+	String stmp = names[i];
+	names[i] = names[j];
+	names[j] = stmp;
+    }
+
+    /**
+     * Return the number of entries currently retained.
+     *
+     * @return the number of retained entries
+     */
+    public int size() {
+	return size;
+    }
+
+    /*
+     * Return the heap positions ordered by descending value. The heap
+     * itself is left untouched. N is small, so a simple insertion sort
+     * is all that's needed.
+     */
+    private int[] order() {
+	int[] idx = new int[size];
+	for (int i = 0; i < size; i++) {
+	    int j = i;
+	    while (j > 0 && values[idx[j - 1]] < values[i]) {
+		idx[j] = idx[j - 1];
+		j--;
+	    }
+	    idx[j] = i;
+	}
+	return idx;
+    }
+
+    /**
+     * Return the retained names, largest value first.
+     *
+     * @return an array of the retained names, in descending order of value
+     */
+    public String[] getNames() {
+	int[] idx = order();
+	String[] ret = new String[size];
+	for (int i = 0; i < size; i++) {
+	    ret[i] = names[idx[i]];
+	}
+	return ret;
+    }
+
+    /**
+     * Return the retained values, largest first.
+     *
+     * @return an array of the retained values, in descending order
+     */
+    public double[] getValues() {
+	int[] idx = order();
+	double[] ret = new double[size];
+	for (int i = 0; i < size; i++) {
+	    ret[i] = values[idx[i]];
+	}
+	return ret;
+    }
+}
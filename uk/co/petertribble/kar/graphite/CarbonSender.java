@@ -0,0 +1,276 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar.graphite;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Send data to a carbon server over a persistent TCP connection.
+ *
+ * This is used as the sink for a buffered output, so data arrives here
+ * in large batches, each of which is written to the socket in one go.
+ * Writes block while carbon isn't keeping up, which holds up the reading
+ * of the archive, so the amount of data in flight is bounded by the size
+ * of the output buffer and the socket buffers.
+ *
+ * If the connection fails, the sender reconnects, backing off between
+ * attempts. Data written to the old connection may still have been in
+ * the socket buffers at either end, and lost, so the sender resumes by
+ * sending the most recent data again, from the start of a line, before
+ * the failed batch. Some metrics are then sent twice, which is harmless
+ * as carbon keeps the last value for a given path and time.
+ *
+ * For the plaintext protocol, data is treated as a stream of lines. For
+ * the pickle protocol, the sender is framed, and each write must be one
+ * complete message, so that whole messages can be sent again.
+ *
+ * @author Peter Tribble
+ */
+public final class CarbonSender extends OutputStream {
+
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long MAX_BACKOFF = 30000;
+    private static final int HISTORY = 4 * 1024 * 1024;
+
+    private final String host;
+    private final int port;
+    private Socket socket;
+    private OutputStream os;
+    private final boolean framed;
+    /*
+     * The most recent data sent, as a circular buffer of bytes or, if
+     * framed, as a list of messages.
+     */
+    private byte[] history;
+    private int hend;
+    private boolean wrapped;
+    private Deque<byte[]> frames;
+    private long framesize;
+    private boolean sent;
+
+    /**
+     * Create a sender for the given carbon server, for the plaintext
+     * protocol. No connection is made until there is something to send.
+     *
+     * @param address the server, as host:port
+     *
+     * @throws IllegalArgumentException if the address is invalid
+     */
+    public CarbonSender(final String address) {
+	this(address, false);
+    }
+
+    /**
+     * Create a sender for the given carbon server. No connection is made
+     * until there is something to send.
+     *
+     * @param address the server, as host:port
+     * @param framed true if each write is a complete message
+     *
+     * @throws IllegalArgumentException if the address is invalid
+     */
+    public CarbonSender(final String address, final boolean framed) {
+	this.framed = framed;
+	int i = address.lastIndexOf(':');
+	if (i < 1) {
+	    throw new IllegalArgumentException("Invalid carbon address "
+					+ address);
+	}
+	host = address.substring(0, i);
+	try {
+	    port = Integer.parseInt(address.substring(i + 1));
+	} catch (NumberFormatException nfe) {
+	    throw new IllegalArgumentException("Invalid carbon port in "
+					+ address);
+	}
+	if (port < 1 || port > 65535) {
+	    throw new IllegalArgumentException("Invalid carbon port in "
+					+ address);
+	}
+    }
+
+    /*
+     * Connect, if we aren't already.
+     */
+    private void connect() throws IOException {
+	if (socket == null) {
+	    Socket s = new Socket();
+	    try {
+		s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+	    } catch (IOException ioe) {
+		s.close();
+		throw ioe;
+	    }
+	    socket = s;
+	    os = s.getOutputStream();
+	    if (sent) {
+		resend();
+	    }
+	}
+    }
+
+    /*
+     * Send the saved data again, on a new connection.
+     */
+    private void resend() throws IOException {
+	if (framed) {
+	    for (byte[] frame : frames) {
+		os.write(frame);
+	    }
+	    return;
+	}
+	if (!wrapped) {
+	    os.write(history, 0, hend);
+	    return;
+	}
+	/*
+	 * The oldest data is likely to start part way through a line,
+	 * which must be skipped. Search from the oldest byte for the end
+	 * of the first line.
+	 */
+	int start = -1;
+	for (int i = 0; i < HISTORY; i++) {
+	    if (history[(hend + i) % HISTORY] == '\n') {
+		start = (hend + i + 1) % HISTORY;
+		break;
+	    }
+	}
+	if (start < 0) {
+	    return;
+	}
+	if (start >= hend) {
+	    os.write(history, start, HISTORY - start);
+	    os.write(history, 0, hend);
+	} else {
+	    os.write(history, start, hend - start);
+	}
+    }
+
+    /*
+     * Save data that has been sent.
+     */
+    private void remember(final byte[] b, final int off, final int len) {
+	sent = true;
+	if (framed) {
+	    if (frames == null) {
+		frames = new ArrayDeque<>();
+	    }
+	    byte[] frame = new byte[len];
+	    System.arraycopy(b, off, frame, 0, len);
+	    frames.addLast(frame);
+	    framesize += len;
+	    while (framesize > HISTORY && frames.size() > 1) {
+		framesize -= frames.removeFirst().length;
+	    }
+	    return;
+	}
+	if (history == null) {
+	    history = new byte[HISTORY];
+	}
+	if (len >= HISTORY) {
+	    System.arraycopy(b, off + len - HISTORY, history, 0, HISTORY);
+	    hend = 0;
+	    wrapped = true;
+	    return;
+	}
+	int n = Math.min(len, HISTORY - hend);
+	System.arraycopy(b, off, history, hend, n);
+	System.arraycopy(b, off + n, history, 0, len - n);
+	if (hend + len >= HISTORY) {
+	    wrapped = true;
+	}
+	hend = (hend + len) % HISTORY;
+    }
+
+    /*
+     * Drop the connection, after an error.
+     */
+    private void disconnect() {
+	if (socket != null) {
+	    try {
+		socket.close();
+	    } catch (IOException ioe) {
+		// we're discarding it anyway
+	    }
+	}
+	socket = null;
+	os = null;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+	write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    /**
+     * Send a batch of data, reconnecting and resending if necessary.
+     *
+     * @throws IOException if the data cannot be sent after repeated
+     * attempts
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+		throws IOException {
+	long backoff = 1000;
+	for (int attempt = 1; ; attempt++) {
+	    try {
+		connect();
+		os.write(b, off, len);
+		remember(b, off, len);
+		return;
+	    } catch (IOException ioe) {
+		disconnect();
+		if (attempt == MAX_ATTEMPTS) {
+		    throw new IOException(ioe.getMessage() + " from "
+				+ host + ":" + port + " after "
+				+ MAX_ATTEMPTS + " attempts", ioe);
+		}
+		System.err.println("Warning: carbon connection failed ("
+				+ ioe.getMessage() + "), retrying");
+	    }
+	    try {
+		Thread.sleep(backoff);
+	    } catch (InterruptedException ie) {
+		Thread.currentThread().interrupt();
+		throw new IOException("interrupted sending to carbon");
+	    }
+	    backoff = Math.min(2 * backoff, MAX_BACKOFF);
+	}
+    }
+
+    @Override
+    public void flush() throws IOException {
+	if (os != null) {
+	    os.flush();
+	}
+    }
+
+    @Override
+    public void close() {
+	disconnect();
+    }
+}
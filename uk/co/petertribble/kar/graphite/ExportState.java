@@ -0,0 +1,296 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar.graphite;
+
+import com.github.openjson.JSONArray;
+import com.github.openjson.JSONException;
+import com.github.openjson.JSONObject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import uk.co.petertribble.jkstat.api.Kstat;
+import uk.co.petertribble.jkstat.parse.JSONParser;
+import uk.co.petertribble.kar.KarZipJKstat;
+
+/**
+ * Remember how far an exporter has got through an archive, so that the
+ * next run only needs to export new data.
+ *
+ * The state is saved as a JSON file, with an entry for each exporter and
+ * archive. The entry records the time of the last snapshot exported, the
+ * boot time at that point, and whatever the exporter needs from that
+ * snapshot to calculate the next interval - either a set of kstats, or a
+ * set of named counters. Entries for archives that no longer exist are
+ * dropped when the file is saved.
+ *
+ * Each exporter has its own entries, so several exporters may share a
+ * state file, as long as they aren't run at the same time.
+ *
+ * @author Peter Tribble
+ */
+public final class ExportState {
+
+    private final File file;
+    private final String exporter;
+    private final String archive;
+    private final JSONObject state;
+    private JSONObject entry;
+
+    /**
+     * Create an empty state, held only in memory.
+     */
+    public ExportState() {
+	file = null;
+	exporter = null;
+	archive = null;
+	state = null;
+    }
+
+    /**
+     * Read the state for the given exporter and archive. If the state file
+     * doesn't exist yet, or has no entry for the exporter and archive, the
+     * state is empty.
+     *
+     * @param filename the name of the state file
+     * @param exporter the name of the exporter, such as iostat
+     * @param archive the name of the archive being exported
+     *
+     * @throws IllegalArgumentException if the state file can't be read
+     */
+    public ExportState(final String filename, final String exporter,
+			final String archive) {
+	file = new File(filename);
+	this.exporter = exporter;
+	this.archive = canonical(archive);
+	if (file.exists()) {
+	    try {
+		state = new JSONObject(new String(
+			Files.readAllBytes(file.toPath()),
+			StandardCharsets.UTF_8));
+	    } catch (IOException | JSONException e) {
+		throw new IllegalArgumentException(
+			"Error: unable to read state file " + filename);
+	    }
+	    JSONObject entries = state.optJSONObject(exporter);
+	    entry = entries == null ? null
+		: entries.optJSONObject(this.archive);
+	} else {
+	    state = new JSONObject();
+	}
+    }
+
+    private static String canonical(final String name) {
+	try {
+	    return new File(name).getCanonicalPath();
+	} catch (IOException ioe) {
+	    return new File(name).getAbsolutePath();
+	}
+    }
+
+    /**
+     * Return whether anything has been exported from this archive.
+     *
+     * @return true if there is a saved position in this archive
+     */
+    public boolean isSaved() {
+	return entry != null;
+    }
+
+    /**
+     * Return the time of the last snapshot exported.
+     *
+     * @return the time of the last snapshot exported, in milliseconds
+     * since the epoch, or zero if nothing has been exported
+     */
+    public long getTime() {
+	return entry == null ? 0 : entry.optLong("time");
+    }
+
+    /**
+     * Return the boot time as of the last snapshot exported.
+     *
+     * @return the boot time of the system, in seconds since the epoch, or
+     * zero if nothing has been exported
+     */
+    public long getBootTime() {
+	return entry == null ? 0 : entry.optLong("boot");
+    }
+
+    /**
+     * Return the kstats saved from the last snapshot exported.
+     *
+     * @return a Map of the saved kstats, keyed by their triplet
+     */
+    public Map<String, Kstat> getKstats() {
+	Map<String, Kstat> kmap = new HashMap<>();
+	JSONArray ja = entry == null ? null : entry.optJSONArray("kstats");
+	if (ja != null) {
+	    for (int i = 0; i < ja.length(); i++) {
+		Kstat ks = JSONParser.getKstat(
+				ja.getJSONObject(i).toString());
+		kmap.put(ks.getTriplet(), ks);
+	    }
+	}
+	return kmap;
+    }
+
+    /**
+     * Return a counter saved from the last snapshot exported.
+     *
+     * @param name the name of the counter
+     *
+     * @return the value of the counter, or zero if it wasn't saved
+     */
+    public long getCounter(final String name) {
+	JSONObject jc = entry == null ? null
+	    : entry.optJSONObject("counters");
+	return jc == null ? 0 : jc.optLong(name);
+    }
+
+    /**
+     * Replace this state with a copy of another.
+     *
+     * @param es the state to copy
+     */
+    public void copyFrom(final ExportState es) {
+	entry = es.entry == null ? null : new JSONObject(es.entry.toString());
+    }
+
+    /**
+     * Move to the first snapshot after the last one exported.
+     *
+     * @param sjkstat the archive being exported
+     * @param dayend the time to stop exporting, in milliseconds since the
+     * epoch
+     *
+     * @return true if there is a new snapshot to export
+     */
+    public boolean resume(final KarZipJKstat sjkstat, final long dayend) {
+	return sjkstat.seek(getTime() + 1) && sjkstat.getTime() < dayend;
+    }
+
+    /**
+     * Record the last snapshot exported. Any other information must be
+     * set afterwards.
+     *
+     * @param time the time of the snapshot, in milliseconds since the
+     * epoch
+     */
+    public void setPosition(final long time) {
+	entry = new JSONObject();
+	entry.put("time", time);
+    }
+
+    /**
+     * Save the boot time as of the last snapshot exported.
+     *
+     * @param boottime the boot time of the system, in seconds since the
+     * epoch
+     */
+    public void setBootTime(final long boottime) {
+	entry.put("boot", boottime);
+    }
+
+    /**
+     * Save the kstats from the last snapshot exported.
+     *
+     * @param kstats the kstats to save
+     */
+    public void setKstats(final Collection<Kstat> kstats) {
+	JSONArray ja = new JSONArray();
+	for (Kstat ks : kstats) {
+	    ja.put(new JSONObject(ks.toJSON()));
+	}
+	entry.put("kstats", ja);
+    }
+
+    /**
+     * Save a counter from the last snapshot exported.
+     *
+     * @param name the name of the counter
+     * @param value the value of the counter
+     */
+    public void setCounter(final String name, final long value) {
+	JSONObject jc = entry.optJSONObject("counters");
+	if (jc == null) {
+	    jc = new JSONObject();
+	    entry.put("counters", jc);
+	}
+	jc.put(name, value);
+    }
+
+    /**
+     * Write the state file. The new state is written to a temporary file
+     * which then replaces the old one, so that the state file is intact
+     * even if we're interrupted. A state held only in memory isn't saved.
+     *
+     * @throws IOException if the state file can't be written
+     */
+    public void save() throws IOException {
+	if (file == null || entry == null) {
+	    return;
+	}
+	for (String name : new ArrayList<>(state.keySet())) {
+	    JSONObject entries = state.optJSONObject(name);
+	    if (entries != null) {
+		for (String aname : new ArrayList<>(entries.keySet())) {
+		    if (!new File(aname).exists()) {
+			entries.remove(aname);
+		    }
+		}
+	    }
+	    if (entries == null || entries.length() == 0) {
+		state.remove(name);
+	    }
+	}
+	JSONObject entries = state.optJSONObject(exporter);
+	if (entries == null) {
+	    entries = new JSONObject();
+	    state.put(exporter, entries);
+	}
+	entries.put(archive, entry);
+	File dir = file.getAbsoluteFile().getParentFile();
+	// the prefix must be at least 3 characters
+	File tmp = File.createTempFile("." + file.getName() + ".", ".tmp",
+				dir);
+	try {
+	    Files.write(tmp.toPath(),
+		state.toString().getBytes(StandardCharsets.UTF_8));
+	    try {
+		Files.move(tmp.toPath(), file.toPath(),
+			StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+	    } catch (AtomicMoveNotSupportedException amnse) {
+		Files.move(tmp.toPath(), file.toPath(),
+			StandardCopyOption.REPLACE_EXISTING);
+	    }
+	} finally {
+	    Files.deleteIfExists(tmp.toPath());
+	}
+    }
+}
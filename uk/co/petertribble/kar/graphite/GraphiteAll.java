@@ -0,0 +1,173 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar.graphite;
+
+import java.io.IOException;
+import java.util.zip.ZipFile;
+import uk.co.petertribble.kar.KarZipJKstat;
+
+/**
+ * Export the sar, load, iostat, mpstat, and fsstat metrics together, in a
+ * single pass through the archive, so that each snapshot is only read
+ * once. The metrics are the same as those from the individual exporters.
+ *
+ * @author Peter Tribble
+ */
+public final class GraphiteAll {
+
+    private final MetricOptions mopts = new MetricOptions();
+    private MetricWriter gw;
+    private MetricSection[] metrics;
+    private ExportState state;
+    private String stime;
+    private String etime;
+    private String filename;
+    private boolean diskhide;
+    private boolean showpart;
+
+    /**
+     * Export all the metrics.
+     *
+     * @param args the command line arguments
+     */
+    public GraphiteAll(final String[] args) {
+	parseArgs(args);
+	try {
+	    export(null, null);
+	} catch (IOException ioe) {
+	    usage("Invalid zip file");
+	} catch (IllegalArgumentException iae) {
+	    usage(iae.getMessage());
+	}
+    }
+
+    /**
+     * Export all the metrics from a single archive, as part of a
+     * backfill. Rather than exiting, a problem with the archive or the
+     * options is thrown, so that the backfill can carry on with the other
+     * archives.
+     *
+     * @param args the command line arguments
+     * @param w where to write the metrics
+     * @param st the state to start from and update
+     *
+     * @throws IOException if the archive can't be read
+     * @throws IllegalArgumentException if the options are invalid
+     */
+    GraphiteAll(final String[] args, final MetricWriter w,
+		final ExportState st) throws IOException {
+	parseArgs(args);
+	export(w, st);
+    }
+
+    /*
+     * Export the archive, to the given MetricWriter and state if they
+     * aren't null, and otherwise as given by the options.
+     */
+    private void export(final MetricWriter w, final ExportState st)
+	    throws IOException {
+	gw = w == null ? mopts.createWriter() : w;
+	metrics = new MetricSection[] {
+	    new GraphiteSar.Metrics(gw, mopts),
+	    new GraphiteLoad.Metrics(gw, mopts),
+	    new GraphiteIOstat.Metrics(gw, mopts, showpart, diskhide),
+	    new GraphiteMPstat.Metrics(gw, mopts),
+	    new GraphiteFSstat.Metrics(gw, mopts)
+	};
+	state = st == null ? mopts.createState("all", filename) : st;
+	try (ZipFile zf = new ZipFile(filename)) {
+	    new MetricExport(gw, state, mopts.isRemote())
+		.export(new KarZipJKstat(zf), stime, etime, metrics);
+	}
+    }
+
+    /*
+     * all [-p | -P] [-e time] [-f filename] [-s time]
+     *
+     * A single template can't name every kind of metric, so only the
+     * prefix and host may be changed.
+     */
+    private void parseArgs(final String[] args) {
+	for (int i = 0; i < args.length; i++) {
+	    /*
+	     * All flags start with a -, we pick out the arguments to any
+	     * flags that have them as we parse that flag.
+	     */
+	    if (args[i].startsWith("-")) {
+		String flag = args[i].substring(1);
+		if ("f".equals(flag)) {
+		    i++;
+		    filename = args[i];
+		} else if ("-template".equals(flag)) {
+		    usage("Error: --template can't be used with all");
+		} else if (mopts.accepts(flag)) {
+		    i++;
+		    try {
+			mopts.set(flag, args[i]);
+		    } catch (IllegalArgumentException iae) {
+			usage(iae.getMessage());
+		    }
+		} else if ("e".equals(flag)) {
+		    i++;
+		    etime = args[i];
+		} else if ("s".equals(flag)) {
+		    i++;
+		    stime = args[i];
+		} else if ("p".equals(flag)) {
+		    showpart = true;
+		} else if ("P".equals(flag)) {
+		    diskhide = true;
+		}
+	    } else {
+		usage();
+	    }
+	}
+    }
+
+    /*
+     * Emit usage message and exit.
+     */
+    private void usage() {
+	System.err.println("Usage: all [-P] [-e time] [-f filename] "
+			+ "[-s time]");
+	System.err.println("           " + MetricOptions.USAGE);
+	System.err.println("           [--prefix prefix] [--host name]");
+	System.err.println("           " + MetricOptions.STATE_USAGE);
+	System.exit(1);
+    }
+
+    /*
+     * Emit usage message and exit.
+     */
+    private void usage(final String s) {
+	System.err.println(s);
+	usage();
+    }
+
+    /**
+     * Export all the metrics.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(final String[] args) {
+	new GraphiteAll(args);
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar.graphite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipFile;
+import uk.co.petertribble.kar.KarZipJKstat;
+
+/**
+ * Export a whole directory of kar archives, such as when a system is
+ * first added to graphite.
+ *
+ * The days are exported in parallel on a bounded pool of threads, each
+ * day with its own reader and counters. A day starts from the last
+ * snapshot of the previous day, if there's no gap between them, so that
+ * the first interval of the day isn't lost. Each day's metrics are
+ * passed in chunks, through a bounded queue, to a single sender, which
+ * sends the days in order. The memory used is therefore limited, and a
+ * day can't get far ahead of the sender.
+ *
+ * If a state file is given, each day is recorded in it once all its
+ * metrics have been sent, so that an interrupted backfill carries on
+ * where it left off, and a later export with the same state file only
+ * exports new data.
+ *
+ * @author Peter Tribble
+ */
+public final class GraphiteBackfill {
+
+    /*
+     * The number of chunks of metrics each day may have waiting.
+     */
+    private static final int QUEUE = 16;
+    /*
+     * Marks the end of a day's metrics.
+     */
+    private static final byte[] END = new byte[0];
+
+    private final MetricOptions mopts = new MetricOptions();
+    private String dirname;
+    private String subcommand;
+    private int nthreads = Runtime.getRuntime().availableProcessors();
+    private final List<String> exportArgs = new ArrayList<>();
+
+    /*
+     * A stream that passes each write to a queue, as a separate chunk.
+     */
+    private static final class QueueStream extends OutputStream {
+	private final BlockingQueue<byte[]> queue;
+
+	QueueStream(final BlockingQueue<byte[]> queue) {
+	    this.queue = queue;
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+	    write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len)
+		throws IOException {
+	    if (len == 0) {
+		return;
+	    }
+	    try {
+		queue.put(Arrays.copyOfRange(b, off, off + len));
+	    } catch (InterruptedException ie) {
+		Thread.currentThread().interrupt();
+		throw new InterruptedIOException();
+	    }
+	}
+    }
+
+    /*
+     * The export of one day.
+     */
+    private final class Day implements Callable<Void> {
+	private final File f;
+	private final File prev;
+	private final ExportState state;
+	private final BlockingQueue<byte[]> queue;
+
+	Day(final File f, final File prev, final ExportState state) {
+	    this.f = f;
+	    this.prev = prev;
+	    this.state = state;
+	    queue = new ArrayBlockingQueue<>(QUEUE);
+	}
+
+	@Override
+	public Void call() throws IOException, InterruptedException {
+	    try {
+		if (!state.isSaved() && prev != null) {
+		    seed();
+		}
+		export(f, mopts.createWriter(new QueueStream(queue)), state);
+	    } finally {
+		queue.put(END);
+	    }
+	    return null;
+	}
+
+	/*
+	 * If this day follows on from the previous one, export the last
+	 * snapshot of the previous day, throwing the metrics away, which
+	 * leaves the state as it would be at the end of the previous day.
+	 * If the previous day can't be read, this day starts afresh.
+	 */
+	private void seed() throws IOException {
+	    long spacing;
+	    long last;
+	    long first;
+	    try (ZipFile zf = new ZipFile(f)) {
+		KarZipJKstat sjkstat = new KarZipJKstat(zf);
+		if (sjkstat.size() == 0) {
+		    return;
+		}
+		first = sjkstat.getTime();
+	    }
+	    ExportState pstate = new ExportState();
+	    try {
+		try (ZipFile zf = new ZipFile(prev)) {
+		    KarZipJKstat sjkstat = new KarZipJKstat(zf);
+		    if (sjkstat.size() == 0) {
+			return;
+		    }
+		    spacing = sjkstat.getSpacing();
+		    sjkstat.seekEntry(sjkstat.size() - 1);
+		    last = sjkstat.getTime();
+		}
+		if (spacing == 0
+			|| Math.round((double) (first - last) / spacing) > 1) {
+		    return;
+		}
+		pstate.setPosition(last - 1);
+		export(prev,
+		    mopts.createWriter(OutputStream.nullOutputStream()),
+		    pstate);
+	    } catch (IOException | IllegalArgumentException e) {
+		System.err.println("Warning: unable to read " + prev
+				+ ", exporting " + f + " from the start");
+		return;
+	    }
+	    state.copyFrom(pstate);
+	}
+    }
+
+    /**
+     * Export a directory of archives.
+     *
+     * @param args the command line arguments
+     */
+    public GraphiteBackfill(final String[] args) {
+	parseArgs(args);
+	if (dirname == null) {
+	    usage("Error: must supply a directory");
+	}
+	if (subcommand == null) {
+	    usage("Error: must supply a subcommand");
+	}
+	File[] files = new File(dirname).listFiles((d, name) ->
+			name.startsWith("ka-") && name.endsWith(".zip"));
+	if (files == null) {
+	    usage("Error: unable to read directory " + dirname);
+	}
+	if (files.length == 0) {
+	    usage("Error: no archives found in " + dirname);
+	}
+	Arrays.sort(files);
+	List<Day> days = new ArrayList<>();
+	OutputStream sink = null;
+	try {
+	    for (int i = 0; i < files.length; i++) {
+		ExportState st = new ExportState();
+		ExportState saved = mopts.createState(subcommand,
+					files[i].getPath());
+		if (saved != null) {
+		    st.copyFrom(saved);
+		}
+		days.add(new Day(files[i], i == 0 ? null : files[i - 1], st));
+	    }
+	    sink = mopts.createSink();
+	} catch (IllegalArgumentException iae) {
+	    usage(iae.getMessage());
+	}
+	backfill(days, sink);
+    }
+
+    /*
+     * backfill -d dir [-j threads] subcommand [options]
+     *
+     * The options after the subcommand are passed on to the export of
+     * each day. The output and state options are also used here, as
+     * there's a single sender and a single state file.
+     */
+    private void parseArgs(final String[] args) {
+	for (int i = 0; i < args.length; i++) {
+	    if (args[i].startsWith("-")) {
+		String flag = args[i].substring(1);
+		if (mopts.accepts(flag)) {
+		    exportArgs.add(args[i]);
+		    i++;
+		    try {
+			mopts.set(flag, args[i]);
+		    } catch (IllegalArgumentException iae) {
+			usage(iae.getMessage());
+		    }
+		    exportArgs.add(args[i]);
+		} else if ("f".equals(flag)) {
+		    usage("Error: use -d to give the directory of archives");
+		} else if ("d".equals(flag)) {
+		    i++;
+		    dirname = args[i];
+		} else if ("j".equals(flag)) {
+		    i++;
+		    try {
+			nthreads = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid number of threads");
+		    }
+		    if (nthreads < 1) {
+			usage("Error: invalid number of threads");
+		    }
+		} else if (subcommand != null) {
+		    exportArgs.add(args[i]);
+		} else {
+		    usage("Error: unsupported flag " + args[i]);
+		}
+	    } else if (subcommand == null) {
+		subcommand = args[i];
+		if (!"sar".equals(subcommand) && !"iostat".equals(subcommand)
+			&& !"fsstat".equals(subcommand)
+			&& !"mpstat".equals(subcommand)
+			&& !"load".equals(subcommand)
+			&& !"print".equals(subcommand)
+			&& !"all".equals(subcommand)) {
+		    usage("Error: unknown subcommand " + subcommand);
+		}
+	    } else {
+		exportArgs.add(args[i]);
+	    }
+	}
+    }
+
+    /*
+     * Export one archive, using the subcommand's exporter, which throws
+     * rather than exiting if the archive or the options are bad.
+     */
+    private void export(final File f, final MetricWriter w,
+			final ExportState st) throws IOException {
+	List<String> largs = new ArrayList<>(exportArgs);
+	largs.add("-f");
+	largs.add(f.getPath());
+	String[] dargs = largs.toArray(new String[0]);
+	switch (subcommand) {
+	case "sar":
+	    new GraphiteSar(dargs, w, st);
+	    break;
+	case "iostat":
+	    new GraphiteIOstat(dargs, w, st);
+	    break;
+	case "fsstat":
+	    new GraphiteFSstat(dargs, w, st);
+	    break;
+	case "mpstat":
+	    new GraphiteMPstat(dargs, w, st);
+	    break;
+	case "load":
+	    new GraphiteLoad(dargs, w, st);
+	    break;
+	case "all":
+	    new GraphiteAll(dargs, w, st);
+	    break;
+	default:
+	    new GraphitePrint(dargs, w, st);
+	    break;
+	}
+    }
+
+    /*
+     * Run the days on the pool, and send their metrics in order. A day
+     * that's already been started can only be waiting for the sender, so
+     * as the days are started in order, the day being sent is always
+     * running or finished.
+     */
+    private void backfill(final List<Day> days, final OutputStream sink) {
+	boolean failed = false;
+	ExecutorService pool = Executors.newFixedThreadPool(
+				Math.min(nthreads, days.size()));
+	try {
+	    List<Future<Void>> futures = new ArrayList<>();
+	    for (Day day : days) {
+		futures.add(pool.submit(day));
+	    }
+	    for (int i = 0; i < days.size(); i++) {
+		Day day = days.get(i);
+		for (byte[] b = day.queue.take(); b != END;
+			b = day.queue.take()) {
+		    sink.write(b);
+		}
+		sink.flush();
+		try {
+		    futures.get(i).get();
+		} catch (ExecutionException ee) {
+		    System.err.println("Error: unable to export " + day.f
+				+ " (" + ee.getCause().getMessage() + ")");
+		    failed = true;
+		    continue;
+		}
+		checkpoint(day);
+	    }
+	    sink.close();
+	} catch (IOException ioe) {
+	    if (mopts.isRemote()) {
+		System.err.println("Error: unable to send metrics to carbon ("
+				+ ioe.getMessage() + ")");
+	    }
+	    System.exit(1);
+	} catch (InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	    failed = true;
+	} finally {
+	    pool.shutdownNow();
+	}
+	if (failed) {
+	    System.exit(1);
+	}
+    }
+
+    /*
+     * Record a day that's been completely sent in the state file.
+     */
+    private void checkpoint(final Day day) {
+	ExportState st = mopts.createState(subcommand, day.f.getPath());
+	if (st == null || !day.state.isSaved()) {
+	    return;
+	}
+	st.copyFrom(day.state);
+	try {
+	    st.save();
+	} catch (IOException ioe) {
+	    System.err.println("Error: unable to save state");
+	    System.exit(1);
+	}
+    }
+
+    /*
+     * Emit usage message and exit.
+     */
+    private void usage() {
+	System.err.println("Usage: backfill -d directory [-j threads] "
+			+ "subcommand [options]");
+	System.err.println("                " + MetricOptions.USAGE);
+	System.err.println("                " + MetricOptions.STATE_USAGE);
+	System.exit(1);
+    }
+
+    /*
+     * Emit usage message and exit.
+     */
+    private void usage(final String s) {
+	System.err.println(s);
+	usage();
+    }
+
+    /**
+     * Export a directory of archives.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(final String[] args) {
+	new GraphiteBackfill(args);
+    }
+}
@@ -21,14 +21,11 @@
 package uk.co.petertribble.kar.graphite;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.zip.ZipFile;
 import uk.co.petertribble.jkstat.api.Kstat;
 import uk.co.petertribble.jkstat.api.KstatFilter;
 import uk.co.petertribble.jkstat.api.KstatSet;
-import uk.co.petertribble.jkstat.api.SequencedJKstat;
-import uk.co.petertribble.jkstat.parse.ParseableJSONZipJKstat;
-import uk.co.petertribble.kar.KarTime;
+import uk.co.petertribble.kar.KarZipJKstat;
 
 /**
  * Main driver to emulate fsstat output given kar input.
@@ -37,12 +34,21 @@ import uk.co.petertribble.kar.KarTime;
  */
 public final class GraphiteFSstat {
 
+    /*
+     * The statistics we generate metrics for, in order.
+     */
+    private static final String[] STATS = {
+	"ncreate", "nrename", "nremove", "ngetattr", "nsetattr", "nlookup",
+	"nread", "nreaddir", "nwrite", "read_bytes", "write_bytes"
+    };
+
+    private final MetricOptions mopts = new MetricOptions();
+    private MetricWriter gw;
+    private MetricSection metrics;
+    private ExportState state;
     private String stime;
     private String etime;
     private String filename;
-    private final Map<String, Kstat> lastMap;
-
-    private long oldsnaptime;
 
     /**
      * Display fsstat output.
@@ -50,12 +56,47 @@ public final class GraphiteFSstat {
      * @param args the command line arguments
      */
     public GraphiteFSstat(final String[] args) {
-	lastMap = new HashMap<>();
 	parseArgs(args);
 	try {
-	    accumulate(new ParseableJSONZipJKstat(filename));
+	    export(null, null);
 	} catch (IOException ioe) {
 	    usage("Invalid zip file");
+	} catch (IllegalArgumentException iae) {
+	    usage(iae.getMessage());
+	}
+    }
+
+    /**
+     * Export fsstat metrics from a single archive, as part of a
+     * backfill. Rather than exiting, a problem with the archive or the
+     * options is thrown, so that the backfill can carry on with the other
+     * archives.
+     *
+     * @param args the command line arguments
+     * @param w where to write the metrics
+     * @param st the state to start from and update
+     *
+     * @throws IOException if the archive can't be read
+     * @throws IllegalArgumentException if the options are invalid
+     */
+    GraphiteFSstat(final String[] args, final MetricWriter w,
+		final ExportState st) throws IOException {
+	parseArgs(args);
+	export(w, st);
+    }
+
+    /*
+     * Export the archive, to the given MetricWriter and state if they
+     * aren't null, and otherwise as given by the options.
+     */
+    private void export(final MetricWriter w, final ExportState st)
+	    throws IOException {
+	gw = w == null ? mopts.createWriter() : w;
+	metrics = new Metrics(gw, mopts);
+	state = st == null ? mopts.createState("fsstat", filename) : st;
+	try (ZipFile zf = new ZipFile(filename)) {
+	    new MetricExport(gw, state, mopts.isRemote())
+		.export(new KarZipJKstat(zf), stime, etime, metrics);
 	}
     }
 
@@ -74,6 +115,13 @@ public final class GraphiteFSstat {
 		if ("f".equals(flag)) {
 		    i++;
 		    filename = args[i];
+		} else if (mopts.accepts(flag)) {
+		    i++;
+		    try {
+			mopts.set(flag, args[i]);
+		    } catch (IllegalArgumentException iae) {
+			usage(iae.getMessage());
+		    }
 		} else if ("e".equals(flag)) {
 		    i++;
 		    etime = args[i];
@@ -88,28 +136,24 @@ public final class GraphiteFSstat {
     }
 
     /*
-     * Go through the input reading all the entries, and accumulating
-     * statistics.
+     * The fsstat metrics.
      */
-    private void accumulate(final SequencedJKstat sjkstat) {
-	long daystart = 0;
-	long dayend = 0;
-	long midnight = 0;
-	try {
-	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
-	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
-	    midnight = KarTime.getStartTimeInMillis(sjkstat, (String) null);
-	} catch (IllegalArgumentException iae) {
-	    usage(iae.getMessage());
-	}
-	long lastboot = sjkstat.getKstat("unix", 0, "system_misc")
-				.longData("boot_time");
+    static final class Metrics extends MetricSection.Delta {
+
+	private final MetricNamer namer;
+	private long oldsnaptime;
+
 	/*
-	 * If boot time was before today, then we will skip the first interval
-	 * as there is no valid previous measurement.
+	 * Throws IllegalArgumentException if the naming options are
+	 * invalid.
 	 */
-	boolean skipfirst = 1000 * lastboot < midnight;
-	do {
+	Metrics(final MetricWriter out, final MetricOptions mopts) {
+	    super(out);
+	    namer = mopts.createNamer("fsstat.{name}.{stat}", STATS);
+	}
+
+	@Override
+	KstatFilter filter(final KarZipJKstat sjkstat) {
 	    KstatFilter ksf = new KstatFilter(sjkstat);
 	    /*
 	     * We can't look for the kstats, because fsstat doesn't define
@@ -117,106 +161,70 @@ public final class GraphiteFSstat {
 	     * identifies them.
 	     */
 	    ksf.addFilter(":::nsetsecattr");
+	    return ksf;
+	}
 
-	    /*
-	     * If we've rebooted since the last measurement, clear all the
-	     * saved measurements and the code will do the right thing.
-	     */
-	    long boottime = sjkstat.getKstat("unix", 0, "system_misc")
-				.longData("boot_time");
-	    if (boottime > lastboot) {
-		lastMap.clear();
+	@Override
+	void emit(final KarZipJKstat sjkstat, final KstatSet kss) {
+	    for (Kstat ks : kss.getKstats()) {
+		doPrint(sjkstat.getTime(), ks);
 	    }
-	    lastboot = boottime;
+	}
 
-	    KstatSet kss = new KstatSet(sjkstat, ksf);
-	    // if past the start time, print output
-	    if (!skipfirst && sjkstat.getTime() > daystart) {
-		for (Kstat ks : kss.getKstats()) {
-		    doPrint(sjkstat.getTime(), ks);
-		}
-	    }
-	    lastMap.clear();
-	    for (Kstat ks : kss.getKstats()) {
-		lastMap.put(ks.getTriplet(), ks);
+	private void doPrint(final long t, final Kstat ks) {
+	    long snaptime = ks.getSnaptime();
+	    long ncreate = ks.longData("ncreate");
+	    long nrename = ks.longData("nrename");
+	    long nremove = ks.longData("nremove");
+	    long ngetattr = ks.longData("ngetattr");
+	    long nsetattr = ks.longData("nsetattr");
+	    long nlookup = ks.longData("nlookup");
+	    long nreaddir = ks.longData("nreaddir");
+	    long nread = ks.longData("nread");
+	    long readbytes = ks.longData("read_bytes");
+	    long nwrite = ks.longData("nwrite");
+	    long writebytes = ks.longData("write_bytes");
+
+	    Kstat ksold = lastMap.get(ks.getTriplet());
+	    if (ksold == null) {
+		// FIXME first time through we want to print nothing, this path
+		// is a no-op; any subsequent passes are after a restart and
+		// we do want to emit data
+		oldsnaptime = ks.getCrtime();
+	    } else {
+		oldsnaptime = ksold.getSnaptime();
+		ncreate -= ksold.longData("ncreate");
+		nrename -= ksold.longData("nrename");
+		nremove -= ksold.longData("nremove");
+		ngetattr -= ksold.longData("ngetattr");
+		nsetattr -= ksold.longData("nsetattr");
+		nlookup -= ksold.longData("nlookup");
+		nreaddir -= ksold.longData("nreaddir");
+		nread -= ksold.longData("nread");
+		readbytes -= ksold.longData("read_bytes");
+		nwrite -= ksold.longData("nwrite");
+		writebytes -= ksold.longData("write_bytes");
 	    }
-	    skipfirst = false;
-	} while (sjkstat.next() && sjkstat.getTime() < dayend);
-    }
+	    // this is the interval
+	    long snapdelta = snaptime - oldsnaptime;
+	    // and the midpoint is half the interval before the current time
+	    long midpoint = t - snapdelta / 2000000;
+	    midpoint /= 1000;
 
-    private void doPrint(final long t, final Kstat ks) {
-	long snaptime = ks.getSnaptime();
-	long ncreate = ks.longData("ncreate");
-	long nrename = ks.longData("nrename");
-	long nremove = ks.longData("nremove");
-	long ngetattr = ks.longData("ngetattr");
-	long nsetattr = ks.longData("nsetattr");
-	long nlookup = ks.longData("nlookup");
-	long nreaddir = ks.longData("nreaddir");
-	long nread = ks.longData("nread");
-	long readbytes = ks.longData("read_bytes");
-	long nwrite = ks.longData("nwrite");
-	long writebytes = ks.longData("write_bytes");
-
-	Kstat ksold = lastMap.get(ks.getTriplet());
-	if (ksold == null) {
-	    // FIXME first time through we want to print nothing, this path
-	    // is a no-op; any subsequent passes are after a restart and
-	    // we do want to emit data
-	    oldsnaptime = ks.getCrtime();
-	} else {
-	    oldsnaptime = ksold.getSnaptime();
-	    ncreate -= ksold.longData("ncreate");
-	    nrename -= ksold.longData("nrename");
-	    nremove -= ksold.longData("nremove");
-	    ngetattr -= ksold.longData("ngetattr");
-	    nsetattr -= ksold.longData("nsetattr");
-	    nlookup -= ksold.longData("nlookup");
-	    nreaddir -= ksold.longData("nreaddir");
-	    nread -= ksold.longData("nread");
-	    readbytes -= ksold.longData("read_bytes");
-	    nwrite -= ksold.longData("nwrite");
-	    writebytes -= ksold.longData("write_bytes");
+	    MetricPath[] p = namer.paths(ks);
+	    MetricWriter gw = out();
+	    gw.metric(p[0], ncreate * 1000000000.0 / snapdelta, midpoint);
+	    gw.metric(p[1], nrename * 1000000000.0 / snapdelta, midpoint);
+	    gw.metric(p[2], nremove * 1000000000.0 / snapdelta, midpoint);
+	    gw.metric(p[3], ngetattr * 1000000000.0 / snapdelta, midpoint);
+	    gw.metric(p[4], nsetattr * 1000000000.0 / snapdelta, midpoint);
+	    gw.metric(p[5], nlookup * 1000000000.0 / snapdelta, midpoint);
+	    gw.metric(p[6], nread * 1000000000.0 / snapdelta, midpoint);
+	    gw.metric(p[7], nreaddir * 1000000000.0 / snapdelta, midpoint);
+	    gw.metric(p[8], nwrite * 1000000000.0 / snapdelta, midpoint);
+	    gw.metric(p[9], readbytes * 1000000000.0 / snapdelta, midpoint);
+	    gw.metric(p[10], writebytes * 1000000000.0 / snapdelta, midpoint);
 	}
-	// this is the interval
-	long snapdelta = snaptime - oldsnaptime;
-	// and the midpoint is half the interval before the current time
-	long midpoint = t - snapdelta / 2000000;
-	midpoint /= 1000;
-
-	System.out.printf("%s %.2f %d%n",
-		"fsstat." + ks.getName() + ".ncreate",
-		ncreate * 1000000000.0 / snapdelta, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"fsstat." + ks.getName() + ".nrename",
-		nrename * 1000000000.0 / snapdelta, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"fsstat." + ks.getName() + ".nremove",
-		nremove * 1000000000.0 / snapdelta, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"fsstat." + ks.getName() + ".ngetattr",
-		ngetattr * 1000000000.0 / snapdelta, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"fsstat." + ks.getName() + ".nsetattr",
-		nsetattr * 1000000000.0 / snapdelta, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"fsstat." + ks.getName() + ".nlookup",
-		nlookup * 1000000000.0 / snapdelta, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"fsstat." + ks.getName() + ".nread",
-		nread * 1000000000.0 / snapdelta, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"fsstat." + ks.getName() + ".nreaddir",
-		nreaddir * 1000000000.0 / snapdelta, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"fsstat." + ks.getName() + ".nwrite",
-		nwrite * 1000000000.0 / snapdelta, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"fsstat." + ks.getName() + ".read_bytes",
-		readbytes * 1000000000.0 / snapdelta, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"fsstat." + ks.getName() + ".write_bytes",
-		writebytes * 1000000000.0 / snapdelta, midpoint);
     }
 
     /*
@@ -225,6 +233,9 @@ public final class GraphiteFSstat {
     private void usage() {
 	System.err.println("Usage: fsstat [-e time] "
 			+ "[-f filename] [-s time]");
+	System.err.println("              " + MetricOptions.USAGE);
+	System.err.println("              " + MetricOptions.NAMING_USAGE);
+	System.err.println("              " + MetricOptions.STATE_USAGE);
 	System.exit(1);
     }
 
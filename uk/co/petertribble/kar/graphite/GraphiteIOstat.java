@@ -21,15 +21,12 @@
 package uk.co.petertribble.kar.graphite;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.zip.ZipFile;
 import uk.co.petertribble.jkstat.api.Kstat;
 import uk.co.petertribble.jkstat.api.KstatFilter;
 import uk.co.petertribble.jkstat.api.KstatSet;
 import uk.co.petertribble.jkstat.api.KstatType;
-import uk.co.petertribble.jkstat.api.SequencedJKstat;
-import uk.co.petertribble.jkstat.parse.ParseableJSONZipJKstat;
-import uk.co.petertribble.kar.KarTime;
+import uk.co.petertribble.kar.KarZipJKstat;
 
 /**
  * Main driver to emulate iostat output given kar input.
@@ -38,14 +35,23 @@ import uk.co.petertribble.kar.KarTime;
  */
 public final class GraphiteIOstat {
 
+    /*
+     * The statistics we generate metrics for, in order.
+     */
+    private static final String[] STATS = {
+	"reads", "writes", "kread", "kwrite", "wait", "actv", "wsvc_t",
+	"asvc_t", "pcwait", "pcbusy"
+    };
+
+    private final MetricOptions mopts = new MetricOptions();
+    private MetricWriter gw;
+    private MetricSection metrics;
+    private ExportState state;
     private String stime;
     private String etime;
     private String filename;
     private boolean diskhide;
     private boolean showpart;
-    private final Map<String, Kstat> lastMap;
-
-    private long oldsnaptime;
 
     /**
      * Display iostat output.
@@ -53,12 +59,47 @@ public final class GraphiteIOstat {
      * @param args the command line arguments
      */
     public GraphiteIOstat(final String[] args) {
-	lastMap = new HashMap<>();
 	parseArgs(args);
 	try {
-	    accumulate(new ParseableJSONZipJKstat(filename));
+	    export(null, null);
 	} catch (IOException ioe) {
 	    usage("Invalid zip file");
+	} catch (IllegalArgumentException iae) {
+	    usage(iae.getMessage());
+	}
+    }
+
+    /**
+     * Export iostat metrics from a single archive, as part of a
+     * backfill. Rather than exiting, a problem with the archive or the
+     * options is thrown, so that the backfill can carry on with the other
+     * archives.
+     *
+     * @param args the command line arguments
+     * @param w where to write the metrics
+     * @param st the state to start from and update
+     *
+     * @throws IOException if the archive can't be read
+     * @throws IllegalArgumentException if the options are invalid
+     */
+    GraphiteIOstat(final String[] args, final MetricWriter w,
+		final ExportState st) throws IOException {
+	parseArgs(args);
+	export(w, st);
+    }
+
+    /*
+     * Export the archive, to the given MetricWriter and state if they
+     * aren't null, and otherwise as given by the options.
+     */
+    private void export(final MetricWriter w, final ExportState st)
+	    throws IOException {
+	gw = w == null ? mopts.createWriter() : w;
+	metrics = new Metrics(gw, mopts, showpart, diskhide);
+	state = st == null ? mopts.createState("iostat", filename) : st;
+	try (ZipFile zf = new ZipFile(filename)) {
+	    new MetricExport(gw, state, mopts.isRemote())
+		.export(new KarZipJKstat(zf), stime, etime, metrics);
 	}
     }
 
@@ -77,6 +118,13 @@ public final class GraphiteIOstat {
 		if ("f".equals(flag)) {
 		    i++;
 		    filename = args[i];
+		} else if (mopts.accepts(flag)) {
+		    i++;
+		    try {
+			mopts.set(flag, args[i]);
+		    } catch (IllegalArgumentException iae) {
+			usage(iae.getMessage());
+		    }
 		} else if ("e".equals(flag)) {
 		    i++;
 		    etime = args[i];
@@ -95,149 +143,116 @@ public final class GraphiteIOstat {
     }
 
     /*
-     * Go through the input reading all the entries, and accumulating
-     * statistics.
+     * The iostat metrics.
      */
-    private void accumulate(final SequencedJKstat sjkstat) {
-	long daystart = 0;
-	long dayend = 0;
-	long midnight = 0;
-	try {
-	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
-	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
-	    midnight = KarTime.getStartTimeInMillis(sjkstat, (String) null);
-	} catch (IllegalArgumentException iae) {
-	    usage(iae.getMessage());
-	}
-	long lastboot = sjkstat.getKstat("unix", 0, "system_misc")
-				.longData("boot_time");
+    static final class Metrics extends MetricSection.Delta {
+
+	private final MetricNamer namer;
+	private final boolean showpart;
+	private final boolean diskhide;
+	private long oldsnaptime;
+
 	/*
-	 * If boot time was before today, then we will skip the first interval
-	 * as there is no valid previous measurement.
+	 * Throws IllegalArgumentException if the naming options are
+	 * invalid.
 	 */
-	boolean skipfirst = 1000 * lastboot < midnight;
-	do {
+	Metrics(final MetricWriter out, final MetricOptions mopts,
+		final boolean showpart, final boolean diskhide) {
+	    super(out);
+	    namer = mopts.createNamer("iostat.{name}.{stat}", STATS);
+	    this.showpart = showpart;
+	    this.diskhide = diskhide;
+	}
+
+	@Override
+	KstatFilter filter(final KarZipJKstat sjkstat) {
 	    KstatFilter ksf = new KstatFilter(sjkstat);
 	    ksf.setFilterType(KstatType.KSTAT_TYPE_IO);
 	    // ignore usba statistics
 	    ksf.addNegativeFilter("usba:::");
+	    return ksf;
+	}
 
-	    /*
-	     * If we've rebooted since the last measurement, clear all the
-	     * saved measurements and the code will do the right thing.
-	     */
-	    long boottime = sjkstat.getKstat("unix", 0, "system_misc")
-				.longData("boot_time");
-	    if (boottime > lastboot) {
-		lastMap.clear();
-	    }
-	    lastboot = boottime;
-
-	    KstatSet kss = new KstatSet(sjkstat, ksf);
-	    // if past the start time, print output
-	    if (!skipfirst && sjkstat.getTime() > daystart) {
-		for (Kstat ks : kss.getKstats(true)) {
-		    /*
-		     * If -p, show everything. If -P, don't show disks.
-		     * Otherwise, don't show partitions.
-		     */
-		    if (showpart) {
+	@Override
+	void emit(final KarZipJKstat sjkstat, final KstatSet kss) {
+	    for (Kstat ks : kss.getKstats(true)) {
+		/*
+		 * If -p, show everything. If -P, don't show disks.
+		 * Otherwise, don't show partitions.
+		 */
+		if (showpart) {
+		    doPrint(sjkstat.getTime(), ks);
+		} else if (diskhide) {
+		    if (!"disk".equals(ks.getKstatClass())) {
+			doPrint(sjkstat.getTime(), ks);
+		    }
+		} else {
+		    if (!"partition".equals(ks.getKstatClass())) {
 			doPrint(sjkstat.getTime(), ks);
-		    } else if (diskhide) {
-			if (!"disk".equals(ks.getKstatClass())) {
-			    doPrint(sjkstat.getTime(), ks);
-			}
-		    } else {
-			if (!"partition".equals(ks.getKstatClass())) {
-			    doPrint(sjkstat.getTime(), ks);
-			}
 		    }
 		}
 	    }
-	    lastMap.clear();
-	    for (Kstat ks : kss.getKstats()) {
-		lastMap.put(ks.getTriplet(), ks);
-	    }
-	    skipfirst = false;
-	} while (sjkstat.next() && sjkstat.getTime() < dayend);
-    }
+	}
 
-    private void doPrint(final long t, final Kstat ks) {
-	long snaptime = ks.getSnaptime();
-	long nr = ks.longData("reads");
-	long nw = ks.longData("writes");
-	long nkr = ks.longData("nread");
-	long nkw = ks.longData("nwritten");
-	long nrtime = ks.longData("rtime");
-	long nwtime = ks.longData("wtime");
-	long nrlentime = ks.longData("rlentime");
-	long nwlentime = ks.longData("wlentime");
+	private void doPrint(final long t, final Kstat ks) {
+	    long snaptime = ks.getSnaptime();
+	    long nr = ks.longData("reads");
+	    long nw = ks.longData("writes");
+	    long nkr = ks.longData("nread");
+	    long nkw = ks.longData("nwritten");
+	    long nrtime = ks.longData("rtime");
+	    long nwtime = ks.longData("wtime");
+	    long nrlentime = ks.longData("rlentime");
+	    long nwlentime = ks.longData("wlentime");
 
-	Kstat ksold = lastMap.get(ks.getTriplet());
-	if (ksold == null) {
-	    // FIXME first time through we want to print nothing, this path
-	    // is a no-op; any subsequent passes are after a restart and
-	    // we do want to emit data
-	    oldsnaptime = ks.getCrtime();
-	} else {
-	    oldsnaptime = ksold.getSnaptime();
-	    nr -= ksold.longData("reads");
-	    nw -= ksold.longData("writes");
-	    nkr -= ksold.longData("nread");
-	    nkw -= ksold.longData("nwritten");
-	    nrtime -= ksold.longData("rtime");
-	    nwtime -= ksold.longData("wtime");
-	    nrlentime -= ksold.longData("rlentime");
-	    nwlentime -= ksold.longData("wlentime");
-	}
-	long snapdelta = snaptime - oldsnaptime;
-	// and the midpoint is half the interval before the current time
-	long midpoint = t - snapdelta / 2000000;
-	midpoint /= 1000;
+	    Kstat ksold = lastMap.get(ks.getTriplet());
+	    if (ksold == null) {
+		// FIXME first time through we want to print nothing, this path
+		// is a no-op; any subsequent passes are after a restart and
+		// we do want to emit data
+		oldsnaptime = ks.getCrtime();
+	    } else {
+		oldsnaptime = ksold.getSnaptime();
+		nr -= ksold.longData("reads");
+		nw -= ksold.longData("writes");
+		nkr -= ksold.longData("nread");
+		nkw -= ksold.longData("nwritten");
+		nrtime -= ksold.longData("rtime");
+		nwtime -= ksold.longData("wtime");
+		nrlentime -= ksold.longData("rlentime");
+		nwlentime -= ksold.longData("wlentime");
+	    }
+	    long snapdelta = snaptime - oldsnaptime;
+	    // and the midpoint is half the interval before the current time
+	    long midpoint = t - snapdelta / 2000000;
+	    midpoint /= 1000;
 
-	double dr = nr * 1000000000.0 / snapdelta;
- 	double dw = nw * 1000000000.0 / snapdelta;
-	double dkr = nkr * 1000000000.0 / (snapdelta * 1024.0);
- 	double dkw = nkw * 1000000000.0 / (snapdelta * 1024.0);
-	double dwait = nwlentime / ((double) snapdelta);
-	double dactv = nrlentime / ((double) snapdelta);
-	double dwsvc = (nr + nw == 0) ? 0.0 : dwait
-	    / (1000.0 * ((double) nr + nw));
-	double dasvc = (nr + nw == 0) ? 0.0 : dactv
-	    / (1000.0 * ((double) nr + nw));
-	int dpw = (int) (0.5 + 100.0 * nwtime / snapdelta);
-	int dpb = (int) (0.5 + 100.0 * nrtime / snapdelta);
+	    double dr = nr * 1000000000.0 / snapdelta;
+	    double dw = nw * 1000000000.0 / snapdelta;
+	    double dkr = nkr * 1000000000.0 / (snapdelta * 1024.0);
+	    double dkw = nkw * 1000000000.0 / (snapdelta * 1024.0);
+	    double dwait = nwlentime / ((double) snapdelta);
+	    double dactv = nrlentime / ((double) snapdelta);
+	    double dwsvc = (nr + nw == 0) ? 0.0 : dwait
+		/ (1000.0 * ((double) nr + nw));
+	    double dasvc = (nr + nw == 0) ? 0.0 : dactv
+		/ (1000.0 * ((double) nr + nw));
+	    int dpw = (int) (0.5 + 100.0 * nwtime / snapdelta);
+	    int dpb = (int) (0.5 + 100.0 * nrtime / snapdelta);
 
-	System.out.printf("%s %.2f %d%n",
-		"iostat." + ks.getName() + ".reads",
-		dr, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"iostat." + ks.getName() + ".writes",
-		dw, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"iostat." + ks.getName() + ".kread",
-		dkr, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"iostat." + ks.getName() + ".kwrite",
-		dkw, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"iostat." + ks.getName() + ".wait",
-		dwait, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"iostat." + ks.getName() + ".actv",
-		dactv, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"iostat." + ks.getName() + ".wsvc_t",
-		dwsvc, midpoint);
-	System.out.printf("%s %.2f %d%n",
-		"iostat." + ks.getName() + ".asvc_t",
-		dasvc, midpoint);
-	System.out.printf("%s %d %d%n",
-		"iostat." + ks.getName() + ".pcwait",
-		dpw, midpoint);
-	System.out.printf("%s %d %d%n",
-		"iostat." + ks.getName() + ".pcbusy",
-		dpb, midpoint);
+	    MetricPath[] p = namer.paths(ks);
+	    MetricWriter gw = out();
+	    gw.metric(p[0], dr, midpoint);
+	    gw.metric(p[1], dw, midpoint);
+	    gw.metric(p[2], dkr, midpoint);
+	    gw.metric(p[3], dkw, midpoint);
+	    gw.metric(p[4], dwait, midpoint);
+	    gw.metric(p[5], dactv, midpoint);
+	    gw.metric(p[6], dwsvc, midpoint);
+	    gw.metric(p[7], dasvc, midpoint);
+	    gw.metric(p[8], dpw, midpoint);
+	    gw.metric(p[9], dpb, midpoint);
+	}
     }
 
     /*
@@ -246,6 +261,9 @@ public final class GraphiteIOstat {
     private void usage() {
 	System.err.println("Usage: iostat [-P] [-e time] "
 			+ "[-f filename] [-s time]");
+	System.err.println("              " + MetricOptions.USAGE);
+	System.err.println("              " + MetricOptions.NAMING_USAGE);
+	System.err.println("              " + MetricOptions.STATE_USAGE);
 	System.exit(1);
     }
 
@@ -14,17 +14,16 @@
  *
  * CDDL HEADER END
  *
- * Copyright 2025 Peter Tribble
+ * Copyright 2026 Peter Tribble
  *
  */
 
 package uk.co.petertribble.kar.graphite;
 
 import java.io.IOException;
+import java.util.zip.ZipFile;
 import uk.co.petertribble.jkstat.api.Kstat;
-import uk.co.petertribble.jkstat.api.SequencedJKstat;
-import uk.co.petertribble.jkstat.parse.ParseableJSONZipJKstat;
-import uk.co.petertribble.kar.KarTime;
+import uk.co.petertribble.kar.KarZipJKstat;
 
 /**
  * Graphite load averages.
@@ -33,6 +32,10 @@ import uk.co.petertribble.kar.KarTime;
  */
 public class GraphiteLoad {
 
+    private final MetricOptions mopts = new MetricOptions();
+    private MetricWriter gw;
+    private MetricSection metrics;
+    private ExportState state;
     private String stime;
     private String etime;
     private String filename;
@@ -45,9 +48,45 @@ public class GraphiteLoad {
     public GraphiteLoad(final String[] args) {
 	parseArgs(args);
 	try {
-	    accumulate(new ParseableJSONZipJKstat(filename));
+	    export(null, null);
 	} catch (IOException ioe) {
 	    usage("Invalid zip file");
+	} catch (IllegalArgumentException iae) {
+	    usage(iae.getMessage());
+	}
+    }
+
+    /**
+     * Export load average metrics from a single archive, as part of a
+     * backfill. Rather than exiting, a problem with the archive or the
+     * options is thrown, so that the backfill can carry on with the other
+     * archives.
+     *
+     * @param args the command line arguments
+     * @param w where to write the metrics
+     * @param st the state to start from and update
+     *
+     * @throws IOException if the archive can't be read
+     * @throws IllegalArgumentException if the options are invalid
+     */
+    GraphiteLoad(final String[] args, final MetricWriter w,
+		final ExportState st) throws IOException {
+	parseArgs(args);
+	export(w, st);
+    }
+
+    /*
+     * Export the archive, to the given MetricWriter and state if they
+     * aren't null, and otherwise as given by the options.
+     */
+    private void export(final MetricWriter w, final ExportState st)
+	    throws IOException {
+	gw = w == null ? mopts.createWriter() : w;
+	metrics = new Metrics(gw, mopts);
+	state = st == null ? mopts.createState("load", filename) : st;
+	try (ZipFile zf = new ZipFile(filename)) {
+	    new MetricExport(gw, state, mopts.isRemote())
+		.export(new KarZipJKstat(zf), stime, etime, metrics);
 	}
     }
 
@@ -65,6 +104,13 @@ public class GraphiteLoad {
 		if ("f".equals(flag)) {
 		    i++;
 		    filename = args[i];
+		} else if (mopts.accepts(flag)) {
+		    i++;
+		    try {
+			mopts.set(flag, args[i]);
+		    } catch (IllegalArgumentException iae) {
+			usage(iae.getMessage());
+		    }
 		} else if ("e".equals(flag)) {
 		    i++;
 		    etime = args[i];
@@ -79,32 +125,46 @@ public class GraphiteLoad {
     }
 
     /*
-     * Go through the input reading all the entries, and accumulating
-     * statistics.
+     * The load average metrics.
      */
-    private void accumulate(final SequencedJKstat sjkstat) {
-	long daystart = 0;
-	long dayend = 0;
-	try {
-	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
-	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
-	} catch (IllegalArgumentException iae) {
-	    usage(iae.getMessage());
+    static final class Metrics extends MetricSection {
+
+	private final MetricPath[] p;
+	private long daystart;
+
+	/*
+	 * Throws IllegalArgumentException if the naming options are
+	 * invalid.
+	 */
+	Metrics(final MetricWriter out, final MetricOptions mopts) {
+	    super(out);
+	    p = mopts.createNamer("load.{stat}", "1min", "5min", "15min")
+		.paths();
 	}
-	// skip forward to start time
-	while (sjkstat.getTime() < daystart) {
-	    sjkstat.next();
+
+	@Override
+	void begin(final long daystart, final long midnight,
+		final long boottime) {
+	    this.daystart = daystart;
+	}
+
+	@Override
+	long startTime() {
+	    return daystart;
 	}
-	do {
+
+	@Override
+	void sample(final KarZipJKstat sjkstat, final long boottime,
+		final boolean rebooted) {
+	    if (sjkstat.getTime() < daystart) {
+		return;
+	    }
 	    Kstat ks = sjkstat.getKstat("unix", 0, "system_misc");
 	    long time = sjkstat.getTime() / 1000;
-	    System.out.printf("%s %f %d%n", "load.1min",
-			ks.longData("avenrun_1min") / 256.0, time);
-	    System.out.printf("%s %f %d%n", "load.5min",
-			ks.longData("avenrun_5min") / 256.0, time);
-	    System.out.printf("%s %f %d%n", "load.15min",
-			ks.longData("avenrun_15min") / 256.0, time);
-	} while (sjkstat.next() && sjkstat.getTime() < dayend);
+	    out().metric(p[0], ks.longData("avenrun_1min") / 256.0, 6, time);
+	    out().metric(p[1], ks.longData("avenrun_5min") / 256.0, 6, time);
+	    out().metric(p[2], ks.longData("avenrun_15min") / 256.0, 6, time);
+	}
     }
 
     /*
@@ -113,6 +173,9 @@ public class GraphiteLoad {
     private void usage() {
 	System.err.println("Usage: load [-e time] "
 			+ "[-f filename] [-s time]");
+	System.err.println("            " + MetricOptions.USAGE);
+	System.err.println("            " + MetricOptions.NAMING_USAGE);
+	System.err.println("            " + MetricOptions.STATE_USAGE);
 	System.exit(1);
     }
 
@@ -21,14 +21,11 @@
 package uk.co.petertribble.kar.graphite;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.zip.ZipFile;
 import uk.co.petertribble.jkstat.api.Kstat;
 import uk.co.petertribble.jkstat.api.KstatFilter;
 import uk.co.petertribble.jkstat.api.KstatSet;
-import uk.co.petertribble.jkstat.api.SequencedJKstat;
-import uk.co.petertribble.jkstat.parse.ParseableJSONZipJKstat;
-import uk.co.petertribble.kar.KarTime;
+import uk.co.petertribble.kar.KarZipJKstat;
 
 /**
  * Main driver to emulate mpstat output given kar input.
@@ -37,13 +34,21 @@ import uk.co.petertribble.kar.KarTime;
  */
 public final class GraphiteMPstat {
 
+    /*
+     * The statistics we generate metrics for, in order.
+     */
+    private static final String[] STATS = {
+	"minf", "mjf", "xcal", "intr", "ithr", "csw", "icsw", "migr", "smtx",
+	"srw", "syscl", "usr", "sys", "idl"
+    };
+
+    private final MetricOptions mopts = new MetricOptions();
+    private MetricWriter gw;
+    private MetricSection metrics;
+    private ExportState state;
     private String stime;
     private String etime;
     private String filename;
-    private final Map<String, Kstat> lastMap;
-
-    private long oldsnaptime;
-    private long foldsnaptime;
 
     /**
      * Display MPstat output.
@@ -51,12 +56,47 @@ public final class GraphiteMPstat {
      * @param args the command line arguments
      */
     public GraphiteMPstat(final String[] args) {
-	lastMap = new HashMap<>();
 	parseArgs(args);
 	try {
-	    accumulate(new ParseableJSONZipJKstat(filename));
+	    export(null, null);
 	} catch (IOException ioe) {
 	    usage("Invalid zip file");
+	} catch (IllegalArgumentException iae) {
+	    usage(iae.getMessage());
+	}
+    }
+
+    /**
+     * Export mpstat metrics from a single archive, as part of a
+     * backfill. Rather than exiting, a problem with the archive or the
+     * options is thrown, so that the backfill can carry on with the other
+     * archives.
+     *
+     * @param args the command line arguments
+     * @param w where to write the metrics
+     * @param st the state to start from and update
+     *
+     * @throws IOException if the archive can't be read
+     * @throws IllegalArgumentException if the options are invalid
+     */
+    GraphiteMPstat(final String[] args, final MetricWriter w,
+		final ExportState st) throws IOException {
+	parseArgs(args);
+	export(w, st);
+    }
+
+    /*
+     * Export the archive, to the given MetricWriter and state if they
+     * aren't null, and otherwise as given by the options.
+     */
+    private void export(final MetricWriter w, final ExportState st)
+	    throws IOException {
+	gw = w == null ? mopts.createWriter() : w;
+	metrics = new Metrics(gw, mopts);
+	state = st == null ? mopts.createState("mpstat", filename) : st;
+	try (ZipFile zf = new ZipFile(filename)) {
+	    new MetricExport(gw, state, mopts.isRemote())
+		.export(new KarZipJKstat(zf), stime, etime, metrics);
 	}
     }
 
@@ -75,6 +115,13 @@ public final class GraphiteMPstat {
 		if ("f".equals(flag)) {
 		    i++;
 		    filename = args[i];
+		} else if (mopts.accepts(flag)) {
+		    i++;
+		    try {
+			mopts.set(flag, args[i]);
+		    } catch (IllegalArgumentException iae) {
+			usage(iae.getMessage());
+		    }
 		} else if ("e".equals(flag)) {
 		    i++;
 		    etime = args[i];
@@ -89,51 +136,40 @@ public final class GraphiteMPstat {
     }
 
     /*
-     * Go through the input reading all the entries, and accumulating
-     * statistics.
+     * The mpstat metrics.
      */
-    private void accumulate(final SequencedJKstat sjkstat) {
-	long daystart = 0;
-	long dayend = 0;
-	long midnight = 0;
-	try {
-	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
-	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
-	    midnight = KarTime.getStartTimeInMillis(sjkstat, (String) null);
-	} catch (IllegalArgumentException iae) {
-	    usage(iae.getMessage());
-	}
-	long lastboot = sjkstat.getKstat("unix", 0, "system_misc")
-				.longData("boot_time");
+    static final class Metrics extends MetricSection.Delta {
+
+	private final MetricNamer namer;
+	private long oldsnaptime;
+	private long foldsnaptime;
+
 	/*
-	 * If boot time was before today, then we will skip the first interval
-	 * as there is no valid previous measurement.
+	 * Throws IllegalArgumentException if the naming options are
+	 * invalid.
 	 */
-	boolean skipfirst = 1000 * lastboot < midnight;
-	do {
+	Metrics(final MetricWriter out, final MetricOptions mopts) {
+	    super(out);
+	    namer = mopts.createNamer("mpstat.{instance}.{stat}", STATS);
+	}
+
+	@Override
+	KstatFilter filter(final KarZipJKstat sjkstat) {
 	    KstatFilter ksf = new KstatFilter(sjkstat);
 	    ksf.addFilter("cpu::sys");
+	    return ksf;
+	}
 
-	    /*
-	     * If we've rebooted since the last measurement, clear all the
-	     * saved measurements and the code will do the right thing.
-	     */
-	    long boottime = sjkstat.getKstat("unix", 0, "system_misc")
-				.longData("boot_time");
-	    if (boottime > lastboot) {
-		lastMap.clear();
+	@Override
+	void emit(final KarZipJKstat sjkstat, final KstatSet kss) {
+	    for (Kstat ks : kss.getKstats(true)) {
+		doPrint(sjkstat.getTime(), ks,
+		    sjkstat.getKstat("cpu", ks.getInst(), "vm"));
 	    }
-	    lastboot = boottime;
+	}
 
-	    KstatSet kss = new KstatSet(sjkstat, ksf);
-	    // if past the start time, print output
-	    if (!skipfirst && sjkstat.getTime() > daystart) {
-		for (Kstat ks : kss.getKstats(true)) {
-		    doPrint(sjkstat.getTime(), ks,
-			sjkstat.getKstat("cpu", ks.getInst(), "vm"));
-		}
-	    }
-	    lastMap.clear();
+	@Override
+	void remember(final KarZipJKstat sjkstat, final KstatSet kss) {
 	    for (Kstat ks : kss.getKstats()) {
 		lastMap.put(ks.getTriplet(), ks);
 		/*
@@ -142,123 +178,96 @@ public final class GraphiteMPstat {
 		Kstat ksv = sjkstat.getKstat("cpu", ks.getInst(), "vm");
 		lastMap.put(ksv.getTriplet(), ksv);
 	    }
-	    skipfirst = false;
-	} while (sjkstat.next() && sjkstat.getTime() < dayend);
-    }
+	}
 
-    private void doPrint(final long t, final Kstat ks, final Kstat ksf) {
+	private void doPrint(final long t, final Kstat ks, final Kstat ksf) {
 
-	long snaptime = ks.getSnaptime();
-	long fsnaptime = ksf.getSnaptime();
+	    long snaptime = ks.getSnaptime();
+	    long fsnaptime = ksf.getSnaptime();
 
-	// get the new values
-	long nminf = ksf.longData("hat_fault") + ksf.longData("as_fault");
-	long nmjf = ksf.longData("maj_fault");
-	long nxcal = ks.longData("xcalls");
-	long nintr = ks.longData("intr");
-	long nithr = ks.longData("intrthread");
-	long ncsw = ks.longData("pswitch");
-	long nicsw = ks.longData("inv_swtch");
-	long nmigr = ks.longData("cpumigrate");
-	long nsmtx = ks.longData("mutex_adenters");
-	long nsrw = ks.longData("rw_rdfails") + ks.longData("rw_wrfails");
-	long nsyscl = ks.longData("syscall");
-	long nusr = ks.longData("cpu_nsec_user");
-	long nsys = ks.longData("cpu_nsec_kernel");
-	long nidl = ks.longData("cpu_nsec_idle");
+	    // get the new values
+	    long nminf = ksf.longData("hat_fault") + ksf.longData("as_fault");
+	    long nmjf = ksf.longData("maj_fault");
+	    long nxcal = ks.longData("xcalls");
+	    long nintr = ks.longData("intr");
+	    long nithr = ks.longData("intrthread");
+	    long ncsw = ks.longData("pswitch");
+	    long nicsw = ks.longData("inv_swtch");
+	    long nmigr = ks.longData("cpumigrate");
+	    long nsmtx = ks.longData("mutex_adenters");
+	    long nsrw = ks.longData("rw_rdfails") + ks.longData("rw_wrfails");
+	    long nsyscl = ks.longData("syscall");
+	    long nusr = ks.longData("cpu_nsec_user");
+	    long nsys = ks.longData("cpu_nsec_kernel");
+	    long nidl = ks.longData("cpu_nsec_idle");
 
-	Kstat ksold = lastMap.get(ks.getTriplet());
-	Kstat ksfold = lastMap.get(ksf.getTriplet());
-	if (ksold == null) {
-	    // FIXME first time through we want to print nothing, this path
-	    // is a no-op; any subsequent passes are after a restart and
-	    // we do want to emit data
-	    oldsnaptime = ks.getCrtime();
-	    foldsnaptime = ksf.getCrtime();
-	} else {
-	    oldsnaptime = ksold.getSnaptime();
-	    foldsnaptime = ksfold.getSnaptime();
+	    Kstat ksold = lastMap.get(ks.getTriplet());
+	    Kstat ksfold = lastMap.get(ksf.getTriplet());
+	    if (ksold == null) {
+		// FIXME first time through we want to print nothing, this path
+		// is a no-op; any subsequent passes are after a restart and
+		// we do want to emit data
+		oldsnaptime = ks.getCrtime();
+		foldsnaptime = ksf.getCrtime();
+	    } else {
+		oldsnaptime = ksold.getSnaptime();
+		foldsnaptime = ksfold.getSnaptime();
 
-	    nminf
-		-= ksfold.longData("hat_fault") + ksfold.longData("as_fault");
-	    nmjf -= ksf.longData("maj_fault");
-	    nxcal -= ksold.longData("xcalls");
-	    nintr -= ksold.longData("intr");
-	    nithr -= ksold.longData("intrthread");
-	    ncsw -= ksold.longData("pswitch");
-	    nicsw -= ksold.longData("inv_swtch");
-	    nmigr -= ksold.longData("cpumigrate");
-	    nsmtx -= ksold.longData("mutex_adenters");
-	    nsrw
-		-= ksold.longData("rw_rdfails") + ksold.longData("rw_wrfails");
-	    nsyscl -= ksold.longData("syscall");
-	    nusr -= ksold.longData("cpu_nsec_user");
-	    nsys -= ksold.longData("cpu_nsec_kernel");
-	    nidl -= ksold.longData("cpu_nsec_idle");
-	}
-	long snapdelta = snaptime - oldsnaptime;
-	long fsnapdelta = fsnaptime - foldsnaptime;
-	// and the midpoint is half the interval before the current time
-	long midpoint = t - snapdelta / 2000000;
-	midpoint /= 1000;
+		nminf -= ksfold.longData("hat_fault")
+		    + ksfold.longData("as_fault");
+		nmjf -= ksf.longData("maj_fault");
+		nxcal -= ksold.longData("xcalls");
+		nintr -= ksold.longData("intr");
+		nithr -= ksold.longData("intrthread");
+		ncsw -= ksold.longData("pswitch");
+		nicsw -= ksold.longData("inv_swtch");
+		nmigr -= ksold.longData("cpumigrate");
+		nsmtx -= ksold.longData("mutex_adenters");
+		nsrw -= ksold.longData("rw_rdfails")
+		    + ksold.longData("rw_wrfails");
+		nsyscl -= ksold.longData("syscall");
+		nusr -= ksold.longData("cpu_nsec_user");
+		nsys -= ksold.longData("cpu_nsec_kernel");
+		nidl -= ksold.longData("cpu_nsec_idle");
+	    }
+	    long snapdelta = snaptime - oldsnaptime;
+	    long fsnapdelta = fsnaptime - foldsnaptime;
+	    // and the midpoint is half the interval before the current time
+	    long midpoint = t - snapdelta / 2000000;
+	    midpoint /= 1000;
 
-	long dminf = Math.round(nminf * 1000000000.0 / fsnapdelta);
-	long dmjf = Math.round(nmjf * 1000000000.0 / fsnapdelta);
-	long dxcal = Math.round(nxcal * 1000000000.0 / snapdelta);
- 	long dintr = Math.round(nintr * 1000000000.0 / snapdelta);
-	long dithr = Math.round(nithr * 1000000000.0 / snapdelta);
-	long dcsw = Math.round(ncsw * 1000000000.0 / snapdelta);
-	long dicsw = Math.round(nicsw * 1000000000.0 / snapdelta);
-	long dmigr = Math.round(nmigr * 1000000000.0 / snapdelta);
-	long dsmtx = Math.round(nsmtx * 1000000000.0 / snapdelta);
-	long dsrw = Math.round(nsrw * 1000000000.0 / snapdelta);
- 	long dsyscl = Math.round(nsyscl * 1000000000.0 / snapdelta);
-	long dusr = Math.round(nusr * 100.0 / snapdelta);
-	long dsys = Math.round(nsys * 100.0 / snapdelta);
-	long didl = Math.round(nidl * 100.0 / snapdelta);
+	    long dminf = Math.round(nminf * 1000000000.0 / fsnapdelta);
+	    long dmjf = Math.round(nmjf * 1000000000.0 / fsnapdelta);
+	    long dxcal = Math.round(nxcal * 1000000000.0 / snapdelta);
+	    long dintr = Math.round(nintr * 1000000000.0 / snapdelta);
+	    long dithr = Math.round(nithr * 1000000000.0 / snapdelta);
+	    long dcsw = Math.round(ncsw * 1000000000.0 / snapdelta);
+	    long dicsw = Math.round(nicsw * 1000000000.0 / snapdelta);
+	    long dmigr = Math.round(nmigr * 1000000000.0 / snapdelta);
+	    long dsmtx = Math.round(nsmtx * 1000000000.0 / snapdelta);
+	    long dsrw = Math.round(nsrw * 1000000000.0 / snapdelta);
+	    long dsyscl = Math.round(nsyscl * 1000000000.0 / snapdelta);
+	    long dusr = Math.round(nusr * 100.0 / snapdelta);
+	    long dsys = Math.round(nsys * 100.0 / snapdelta);
+	    long didl = Math.round(nidl * 100.0 / snapdelta);
 
-	System.out.printf("%s %d %d%n",
-		"mpstat." + ks.getInstance() + ".minf",
-		dminf, midpoint);
-	System.out.printf("%s %d %d%n",
-		"mpstat." + ks.getInstance() + ".mjf",
-		dmjf, midpoint);
-	System.out.printf("%s %d %d%n",
-		"mpstat." + ks.getInstance() + ".xcal",
-		dxcal, midpoint);
-	System.out.printf("%s %d %d%n",
-		"mpstat." + ks.getInstance() + ".intr",
-		dintr, midpoint);
-	System.out.printf("%s %d %d%n",
-		"mpstat." + ks.getInstance() + ".ithr",
-		dithr, midpoint);
-	System.out.printf("%s %d %d%n",
-		"mpstat." + ks.getInstance() + ".csw",
-		dcsw, midpoint);
-	System.out.printf("%s %d %d%n",
-		"mpstat." + ks.getInstance() + ".icsw",
-		dicsw, midpoint);
-	System.out.printf("%s %d %d%n",
-		"mpstat." + ks.getInstance() + ".migr",
-		dmigr, midpoint);
-	System.out.printf("%s %d %d%n",
-		"mpstat." + ks.getInstance() + ".smtx",
-		dsmtx, midpoint);
-	System.out.printf("%s %d %d%n",
-		"mpstat." + ks.getInstance() + ".srw",
-		dsrw, midpoint);
-	System.out.printf("%s %d %d%n",
-		"mpstat." + ks.getInstance() + ".syscl",
-		dsyscl, midpoint);
-	System.out.printf("%s %d %d%n",
-		"mpstat." + ks.getInstance() + ".usr",
-		dusr, midpoint);
-	System.out.printf("%s %d %d%n",
-		"mpstat." + ks.getInstance() + ".sys",
-		dsys, midpoint);
-	System.out.printf("%s %d %d%n",
-		"mpstat." + ks.getInstance() + ".idl",
-		didl, midpoint);
+	    MetricPath[] p = namer.paths(ks);
+	    MetricWriter gw = out();
+	    gw.metric(p[0], dminf, midpoint);
+	    gw.metric(p[1], dmjf, midpoint);
+	    gw.metric(p[2], dxcal, midpoint);
+	    gw.metric(p[3], dintr, midpoint);
+	    gw.metric(p[4], dithr, midpoint);
+	    gw.metric(p[5], dcsw, midpoint);
+	    gw.metric(p[6], dicsw, midpoint);
+	    gw.metric(p[7], dmigr, midpoint);
+	    gw.metric(p[8], dsmtx, midpoint);
+	    gw.metric(p[9], dsrw, midpoint);
+	    gw.metric(p[10], dsyscl, midpoint);
+	    gw.metric(p[11], dusr, midpoint);
+	    gw.metric(p[12], dsys, midpoint);
+	    gw.metric(p[13], didl, midpoint);
+	}
     }
 
     /*
@@ -266,6 +275,9 @@ public final class GraphiteMPstat {
      */
     private void usage() {
 	System.err.println("Usage: mpstat [-e time] [-f filename] [-s time]");
+	System.err.println("              " + MetricOptions.USAGE);
+	System.err.println("              " + MetricOptions.NAMING_USAGE);
+	System.err.println("              " + MetricOptions.STATE_USAGE);
 	System.exit(1);
     }
 
@@ -23,11 +23,11 @@ package uk.co.petertribble.kar.graphite;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.zip.ZipFile;
 import uk.co.petertribble.jkstat.api.Kstat;
-import uk.co.petertribble.jkstat.api.KstatFilter;
-import uk.co.petertribble.jkstat.api.SequencedJKstat;
-import uk.co.petertribble.jkstat.parse.ParseableJSONZipJKstat;
 import uk.co.petertribble.kar.KarTime;
+import uk.co.petertribble.kar.KstatMatcher;
+import uk.co.petertribble.kar.KarZipJKstat;
 
 /**
  * Print kstats matching a pattern from kar data.
@@ -36,6 +36,10 @@ import uk.co.petertribble.kar.KarTime;
  */
 public final class GraphitePrint {
 
+    private final MetricOptions mopts = new MetricOptions();
+    private MetricWriter gw;
+    private MetricNamer namer;
+    private ExportState state;
     private String stime;
     private long daystart;
     private String etime;
@@ -61,13 +65,49 @@ public final class GraphitePrint {
     public GraphitePrint(final String[] args) {
 	kstatPatterns = new HashSet<>();
 	parseArgs(args);
-	if (kstatPatterns.isEmpty()) {
-	    usage("Must supply a pattern.");
-	}
 	try {
-	    accumulate(new ParseableJSONZipJKstat(filename));
+	    export(null, null);
 	} catch (IOException ioe) {
 	    usage("Invalid zip file");
+	} catch (IllegalArgumentException iae) {
+	    usage(iae.getMessage());
+	}
+    }
+
+    /**
+     * Export kstat metrics from a single archive, as part of a
+     * backfill. Rather than exiting, a problem with the archive or the
+     * options is thrown, so that the backfill can carry on with the other
+     * archives.
+     *
+     * @param args the command line arguments
+     * @param w where to write the metrics
+     * @param st the state to start from and update
+     *
+     * @throws IOException if the archive can't be read
+     * @throws IllegalArgumentException if the options are invalid
+     */
+    GraphitePrint(final String[] args, final MetricWriter w,
+		final ExportState st) throws IOException {
+	kstatPatterns = new HashSet<>();
+	parseArgs(args);
+	export(w, st);
+    }
+
+    /*
+     * Export the archive, to the given MetricWriter and state if they
+     * aren't null, and otherwise as given by the options.
+     */
+    private void export(final MetricWriter w, final ExportState st)
+	    throws IOException {
+	if (kstatPatterns.isEmpty()) {
+	    throw new IllegalArgumentException("Must supply a pattern.");
+	}
+	gw = w == null ? mopts.createWriter() : w;
+	namer = mopts.createNamer("{module}:{instance}:{name}:{stat}");
+	state = st == null ? mopts.createState("print", filename) : st;
+	try (ZipFile zf = new ZipFile(filename)) {
+	    accumulate(new KarZipJKstat(zf));
 	}
     }
 
@@ -88,6 +128,13 @@ public final class GraphitePrint {
 		if ("f".equals(flag)) {
 		    i++;
 		    filename = args[i];
+		} else if (mopts.accepts(flag)) {
+		    i++;
+		    try {
+			mopts.set(flag, args[i]);
+		    } catch (IllegalArgumentException iae) {
+			usage(iae.getMessage());
+		    }
 		} else if ("e".equals(flag)) {
 		    i++;
 		    etime = args[i];
@@ -156,32 +203,60 @@ public final class GraphitePrint {
      * Go through the input reading all the entries, and accumulating
      * statistics.
      */
-    private void accumulate(final SequencedJKstat sjkstat) {
-	KstatFilter ksf = new KstatFilter(sjkstat);
+    private void accumulate(final KarZipJKstat sjkstat) {
+	KstatMatcher ksm = new KstatMatcher();
 	for (String s : kstatPatterns) {
-	    ksf.addFilter(s);
+	    ksm.addFilter(s);
 	}
-	try {
-	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
-	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
-	} catch (IllegalArgumentException iae) {
-	    usage(iae.getMessage());
-	}
-	// skip forward to start time
-	while (sjkstat.getTime() < daystart) {
-	    sjkstat.next();
+	daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
+	dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
+	long lasttime = 0;
+	if (state != null && state.isSaved()) {
+	    // carry on from where we left off
+	    if (!state.resume(sjkstat, dayend)) {
+		finish();
+		return;
+	    }
+	} else if (!sjkstat.seek(daystart)) {
+	    // nothing from the start time on
+	    finish();
+	    return;
 	}
 	do {
-	    for (Kstat ks : ksf.getKstats(true)) {
-		if (showstatistic == null) {
-		    for (String s : ksf.filteredStatistics(ks)) {
-			printOut(sjkstat.getTime(), ks, s);
-		    }
-		} else {
-		    printOut(sjkstat.getTime(), ks, showstatistic);
+	    for (Kstat ks : ksm.getKstats(sjkstat.getKstats())) {
+		for (String s : ksm.filteredStatistics(ks)) {
+		    printOut(sjkstat.getTime(), ks, s);
 		}
 	    }
-	} while (sjkstat.next() && sjkstat.getTime() < dayend);
+	    lasttime = sjkstat.getTime();
+	    // if the metrics can't be sent, there's no point carrying on
+	} while (!gw.checkError() && sjkstat.next()
+		 && sjkstat.getTime() < dayend);
+	if (state != null && lasttime > 0) {
+	    state.setPosition(lasttime);
+	}
+	finish();
+    }
+
+    /*
+     * Send any remaining metrics and, if they were all sent, save how
+     * far we got.
+     */
+    private void finish() {
+	gw.close();
+	if (mopts.isRemote() && gw.checkError()) {
+	    System.err.println("Error: unable to send metrics to carbon ("
+			+ gw.getError().getMessage() + ")");
+	    System.exit(1);
+	}
+	if (state != null && !gw.checkError()) {
+	    try {
+		state.save();
+	    } catch (IOException ioe) {
+		System.err.println("Error: unable to save state");
+		System.exit(1);
+	    }
+	}
     }
 
     /*
@@ -190,10 +265,8 @@ public final class GraphitePrint {
     private void printOut(final long t, final Kstat ks,
 			  final String statistic) {
 	if (ks.isNumeric(statistic)) {
-	    System.out.printf("%s:%s %d %d%n",
-			ks.getTriplet(), statistic,
-			ks.getData(statistic),
-			t / 1000);
+	    gw.metric(namer.path(ks, statistic),
+			ks.longData(statistic), t / 1000);
 	}
     }
 
@@ -204,6 +277,9 @@ public final class GraphitePrint {
 	System.err.println("Usage: print [-e time] [-f filename] [-s time]");
 	System.err.println("         [-M module] [-I instance] "
 			+ "[-N name] [-S statistic] pattern [...]");
+	System.err.println("         " + MetricOptions.USAGE);
+	System.err.println("         " + MetricOptions.NAMING_USAGE);
+	System.err.println("         " + MetricOptions.STATE_USAGE);
 	System.exit(1);
     }
 
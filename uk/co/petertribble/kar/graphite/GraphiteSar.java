@@ -14,17 +14,17 @@
  *
  * CDDL HEADER END
  *
- * Copyright 2025 Peter Tribble
+ * Copyright 2026 Peter Tribble
  *
  */
 
 package uk.co.petertribble.kar.graphite;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.zip.ZipFile;
 import uk.co.petertribble.jkstat.api.Kstat;
-import uk.co.petertribble.jkstat.api.SequencedJKstat;
-import uk.co.petertribble.jkstat.parse.ParseableJSONZipJKstat;
-import uk.co.petertribble.kar.KarTime;
+import uk.co.petertribble.kar.KarZipJKstat;
 
 /**
  * Graphite sar output from kar input.
@@ -33,6 +33,10 @@ import uk.co.petertribble.kar.KarTime;
  */
 public class GraphiteSar {
 
+    private final MetricOptions mopts = new MetricOptions();
+    private MetricWriter gw;
+    private MetricSection metrics;
+    private ExportState state;
     private String stime;
     private String etime;
     private String filename;
@@ -45,9 +49,45 @@ public class GraphiteSar {
     public GraphiteSar(final String[] args) {
 	parseArgs(args);
 	try {
-	    accumulate(new ParseableJSONZipJKstat(filename));
+	    export(null, null);
 	} catch (IOException ioe) {
 	    usage("Invalid zip file");
+	} catch (IllegalArgumentException iae) {
+	    usage(iae.getMessage());
+	}
+    }
+
+    /**
+     * Export cpu utilization metrics from a single archive, as part of a
+     * backfill. Rather than exiting, a problem with the archive or the
+     * options is thrown, so that the backfill can carry on with the other
+     * archives.
+     *
+     * @param args the command line arguments
+     * @param w where to write the metrics
+     * @param st the state to start from and update
+     *
+     * @throws IOException if the archive can't be read
+     * @throws IllegalArgumentException if the options are invalid
+     */
+    GraphiteSar(final String[] args, final MetricWriter w,
+		final ExportState st) throws IOException {
+	parseArgs(args);
+	export(w, st);
+    }
+
+    /*
+     * Export the archive, to the given MetricWriter and state if they
+     * aren't null, and otherwise as given by the options.
+     */
+    private void export(final MetricWriter w, final ExportState st)
+	    throws IOException {
+	gw = w == null ? mopts.createWriter() : w;
+	metrics = new Metrics(gw, mopts);
+	state = st == null ? mopts.createState("sar", filename) : st;
+	try (ZipFile zf = new ZipFile(filename)) {
+	    new MetricExport(gw, state, mopts.isRemote())
+		.export(new KarZipJKstat(zf), stime, etime, metrics);
 	}
     }
 
@@ -68,6 +108,13 @@ public class GraphiteSar {
 		if ("f".equals(flag)) {
 		    i++;
 		    filename = args[i];
+		} else if (mopts.accepts(flag)) {
+		    i++;
+		    try {
+			mopts.set(flag, args[i]);
+		    } catch (IllegalArgumentException iae) {
+			usage(iae.getMessage());
+		    }
 		} else if ("e".equals(flag)) {
 		    i++;
 		    etime = args[i];
@@ -82,55 +129,74 @@ public class GraphiteSar {
     }
 
     /*
-     * Go through the input reading all the entries, and accumulating
-     * statistics.
+     * The cpu utilization metrics.
      */
-    private void accumulate(final SequencedJKstat sjkstat) {
-	long daystart = 0;
-	long dayend = 0;
-	try {
-	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
-	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
-	} catch (IllegalArgumentException iae) {
-	    usage(iae.getMessage());
-	}
-	// skip forward to start time
-	while (sjkstat.getTime() < daystart) {
-	    sjkstat.next();
-	}
-	Kstat ksb = sjkstat.getKstat("unix", 0, "system_misc");
-	long boottime = 1000 * ksb.longData("boot_time");
+    static final class Metrics extends MetricSection {
 
-	long okernel = 0;
-	long oidle = 0;
-	long ouser = 0;
+	private final MetricPath[] p;
+	private long daystart;
+	private boolean first = true;
+	private long okernel;
+	private long oidle;
+	private long ouser;
 
 	/*
-	 * If we were already running then skip the first data point rather
-	 * than average over the time since boot.
+	 * Throws IllegalArgumentException if the naming options are
+	 * invalid.
 	 */
-	if (boottime < daystart) {
-	    for (Kstat ks : sjkstat.getKstats()) {
-		if ("cpu".equals(ks.getModule())
-				&& "sys".equals(ks.getName())) {
-		    okernel += ks.longData("cpu_nsec_kernel");
-		    ouser += ks.longData("cpu_nsec_user");
-		    oidle += ks.longData("cpu_nsec_idle");
-		}
-	    }
-	    sjkstat.next();
+	Metrics(final MetricWriter out, final MetricOptions mopts) {
+	    super(out);
+	    p = mopts.createNamer("{stat}", "user", "kernel", "idle").paths();
+	}
+
+	@Override
+	void begin(final long daystart, final long midnight,
+		final long boottime) {
+	    this.daystart = daystart;
+	}
+
+	@Override
+	long startTime() {
+	    return daystart;
 	}
 
-	do {
+	@Override
+	void restore(final ExportState state) {
+	    /*
+	     * We've already exported part of this archive, so carry on
+	     * from where we left off, with the saved totals.
+	     */
+	    okernel = state.getCounter("kernel");
+	    ouser = state.getCounter("user");
+	    oidle = state.getCounter("idle");
+	    first = false;
+	}
+
+	@Override
+	void sample(final KarZipJKstat sjkstat, final long boottime,
+		final boolean rebooted) {
+	    if (sjkstat.getTime() < daystart) {
+		return;
+	    }
 	    long nkernel = 0;
 	    long nidle = 0;
 	    long nuser = 0;
-	    for (Kstat ks : sjkstat.getKstats()) {
-		if ("cpu".equals(ks.getModule())
-				&& "sys".equals(ks.getName())) {
-		    nkernel += ks.longData("cpu_nsec_kernel");
-		    nuser += ks.longData("cpu_nsec_user");
-		    nidle += ks.longData("cpu_nsec_idle");
+	    for (Kstat ks : sjkstat.getKstats("cpu", "sys")) {
+		nkernel += ks.longData("cpu_nsec_kernel");
+		nuser += ks.longData("cpu_nsec_user");
+		nidle += ks.longData("cpu_nsec_idle");
+	    }
+	    /*
+	     * If we were already running then skip the first data point
+	     * rather than average over the time since boot.
+	     */
+	    if (first) {
+		first = false;
+		if (1000 * boottime < daystart) {
+		    okernel = nkernel;
+		    ouser = nuser;
+		    oidle = nidle;
+		    return;
 		}
 	    }
 	    // reboot, reset the counters
@@ -145,16 +211,20 @@ public class GraphiteSar {
 	    long dtot = dkernel + duser + didle;
 	    // FIXME slew to midpoint
 	    long time = sjkstat.getTime() / 1000;
-	    System.out.printf("%s %.2f %d%n", "user", 100.0 * duser / dtot,
-			time);
-	    System.out.printf("%s %.2f %d%n", "kernel", 100.0 * dkernel / dtot,
-			time);
-	    System.out.printf("%s %.2f %d%n", "idle", 100.0 * didle / dtot,
-			time);
+	    out().metric(p[0], 100.0 * duser / dtot, time);
+	    out().metric(p[1], 100.0 * dkernel / dtot, time);
+	    out().metric(p[2], 100.0 * didle / dtot, time);
 	    okernel = nkernel;
 	    ouser = nuser;
 	    oidle = nidle;
-	} while (sjkstat.next() && sjkstat.getTime() < dayend);
+	}
+
+	@Override
+	void save(final ExportState state, final Collection<Kstat> kstats) {
+	    state.setCounter("kernel", okernel);
+	    state.setCounter("user", ouser);
+	    state.setCounter("idle", oidle);
+	}
     }
 
     /*
@@ -162,6 +232,9 @@ public class GraphiteSar {
      */
     private void usage() {
 	System.err.println("Usage: sar [-e time] [-f filename] [-s time]");
+	System.err.println("           " + MetricOptions.USAGE);
+	System.err.println("           " + MetricOptions.NAMING_USAGE);
+	System.err.println("           " + MetricOptions.STATE_USAGE);
 	System.exit(1);
     }
 
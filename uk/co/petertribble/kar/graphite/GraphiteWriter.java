@@ -0,0 +1,105 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar.graphite;
+
+import java.io.IOException;
+import uk.co.petertribble.kar.KarOutput;
+
+/**
+ * Write metrics in the Graphite plaintext format, one metric per line as
+ * the path, the value, and the time in seconds since the epoch.
+ *
+ * @author Peter Tribble
+ */
+public final class GraphiteWriter implements MetricWriter {
+
+    private final KarOutput out;
+    private CarbonSender sender;
+
+    /**
+     * Create a GraphiteWriter writing to standard output.
+     */
+    public GraphiteWriter() {
+	this(KarOutput.stdout());
+    }
+
+    /**
+     * Create a GraphiteWriter writing to the given output.
+     *
+     * @param out where to write the metrics
+     */
+    public GraphiteWriter(final KarOutput out) {
+	this.out = out;
+    }
+
+    /**
+     * Create a GraphiteWriter sending metrics to a carbon server.
+     *
+     * @param cs the connection to the carbon server
+     */
+    public GraphiteWriter(final CarbonSender cs) {
+	this(new KarOutput(cs));
+	sender = cs;
+    }
+
+    @Override
+    public void metric(final MetricPath path, final long value,
+			final long t) {
+	out.append(path.getBytes()).append(' ').append(value).append(' ')
+	    .append(t).newline();
+    }
+
+    @Override
+    public void metric(final MetricPath path, final double value,
+			final long t) {
+	metric(path, value, 2, t);
+    }
+
+    @Override
+    public void metric(final MetricPath path, final double value,
+			final int places, final long t) {
+	out.append(path.getBytes()).append(' ').appendFixed(value, places)
+	    .append(' ').append(t).newline();
+    }
+
+    @Override
+    public void flush() {
+	out.flush();
+    }
+
+    @Override
+    public void close() {
+	out.flush();
+	if (sender != null) {
+	    sender.close();
+	}
+    }
+
+    @Override
+    public boolean checkError() {
+	return out.checkError();
+    }
+
+    @Override
+    public IOException getError() {
+	return out.getError();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar.graphite;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import uk.co.petertribble.jkstat.api.Kstat;
+import uk.co.petertribble.kar.KarTime;
+import uk.co.petertribble.kar.KarZipJKstat;
+
+/**
+ * Export one or more sections of metrics from an archive, in a single
+ * pass. The boot time is tracked here, once for all the sections, and
+ * each snapshot is read once and passed to every section in turn.
+ *
+ * If there is a saved state, the export carries on from the last snapshot
+ * exported, and the state is updated once all the metrics have been sent.
+ *
+ * @author Peter Tribble
+ */
+final class MetricExport {
+
+    private final MetricWriter gw;
+    private final ExportState state;
+    private final boolean remote;
+
+    /*
+     * Create a MetricExport writing to the given MetricWriter, which is
+     * closed when the export is done. The state may be null.
+     */
+    MetricExport(final MetricWriter gw, final ExportState state,
+		final boolean remote) {
+	this.gw = gw;
+	this.state = state;
+	this.remote = remote;
+    }
+
+    /*
+     * Go through the archive, from the start time to the end time, passing
+     * each snapshot to the sections.
+     *
+     * Throws IllegalArgumentException if either time is invalid.
+     */
+    void export(final KarZipJKstat sjkstat, final String stime,
+		final String etime, final MetricSection... sections) {
+	long daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
+	long dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
+	long midnight = KarTime.getStartTimeInMillis(sjkstat, (String) null);
+	long lastboot = bootTime(sjkstat);
+	for (MetricSection section : sections) {
+	    section.begin(daystart, midnight, lastboot);
+	}
+	if (state != null && state.isSaved()) {
+	    /*
+	     * We've already exported part of this archive, so carry on
+	     * from where we left off.
+	     */
+	    if (!state.resume(sjkstat, dayend)) {
+		finish();
+		return;
+	    }
+	    lastboot = state.getBootTime();
+	    for (MetricSection section : sections) {
+		section.restore(state);
+	    }
+	} else {
+	    // skip forward to the first snapshot any section needs
+	    long start = Long.MAX_VALUE;
+	    for (MetricSection section : sections) {
+		start = Math.min(start, section.startTime());
+	    }
+	    if (start > 0) {
+		if (!sjkstat.seek(start)) {
+		    finish();
+		    return;
+		}
+		lastboot = bootTime(sjkstat);
+	    }
+	}
+	long lasttime;
+	do {
+	    long boottime = bootTime(sjkstat);
+	    for (MetricSection section : sections) {
+		section.sample(sjkstat, boottime, boottime > lastboot);
+	    }
+	    lastboot = boottime;
+	    lasttime = sjkstat.getTime();
+	    // if the metrics can't be sent, there's no point carrying on
+	} while (!gw.checkError() && sjkstat.next()
+		 && sjkstat.getTime() < dayend);
+	if (state != null) {
+	    state.setPosition(lasttime);
+	    state.setBootTime(lastboot);
+	    List<Kstat> kstats = new ArrayList<>();
+	    for (MetricSection section : sections) {
+		section.save(state, kstats);
+	    }
+	    if (!kstats.isEmpty()) {
+		state.setKstats(kstats);
+	    }
+	}
+	finish();
+    }
+
+    private static long bootTime(final KarZipJKstat sjkstat) {
+	return sjkstat.getKstat("unix", 0, "system_misc")
+	    .longData("boot_time");
+    }
+
+    /*
+     * Send any remaining metrics and, if they were all sent, save how
+     * far we got.
+     */
+    private void finish() {
+	gw.close();
+	if (remote && gw.checkError()) {
+	    System.err.println("Error: unable to send metrics to carbon ("
+			+ gw.getError().getMessage() + ")");
+	    System.exit(1);
+	}
+	if (state != null && !gw.checkError()) {
+	    try {
+		state.save();
+	    } catch (IOException ioe) {
+		System.err.println("Error: unable to save state");
+		System.exit(1);
+	    }
+	}
+    }
+}
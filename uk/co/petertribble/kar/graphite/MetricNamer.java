@@ -0,0 +1,261 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar.graphite;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import uk.co.petertribble.jkstat.api.Kstat;
+
+/**
+ * Generate metric paths from a template, such as
+ * {host}.iostat.{device}.{stat}. The fields that may be used are
+ * {host}, {module}, {instance}, {name}, {device} (the same as {name}),
+ * and {stat}. The values substituted for fields are sanitized, so that a
+ * value can't introduce extra levels into the path.
+ *
+ * Each exporter has a fixed list of statistics, and the paths for a kstat
+ * are worked out the first time it's seen and then cached, so that
+ * writing a metric doesn't need any string handling.
+ *
+ * @author Peter Tribble
+ */
+public final class MetricNamer {
+
+    private static final int LITERAL = 0;
+    private static final int HOST = 1;
+    private static final int MODULE = 2;
+    private static final int INSTANCE = 3;
+    private static final int NAME = 4;
+    private static final int STAT = 5;
+
+    private final List<String> literals;
+    private final List<Integer> fields;
+    private final String host;
+    private final String[] statistics;
+    private MetricPath[] plainPaths;
+    private final Map<Kstat, MetricPath[]> kstatPaths;
+    private final Map<Kstat, Map<String, MetricPath>> statPaths;
+
+    /**
+     * Create a MetricNamer.
+     *
+     * @param template the template for metric paths
+     * @param host the value to substitute for {host}
+     * @param statistics the statistics, in the order in which their paths
+     * are returned
+     *
+     * @throws IllegalArgumentException if the template is invalid
+     */
+    public MetricNamer(final String template, final String host,
+			final String... statistics) {
+	this.host = host == null ? "" : sanitize(host);
+	this.statistics = statistics.clone();
+	literals = new ArrayList<>();
+	fields = new ArrayList<>();
+	kstatPaths = new HashMap<>();
+	statPaths = new HashMap<>();
+	int i = 0;
+	while (i < template.length()) {
+	    int open = template.indexOf('{', i);
+	    if (open < 0) {
+		literal(template.substring(i));
+		break;
+	    }
+	    int close = template.indexOf('}', open);
+	    if (close < 0) {
+		throw new IllegalArgumentException(
+			"Error: unterminated field in template " + template);
+	    }
+	    if (open > i) {
+		literal(template.substring(i, open));
+	    }
+	    literals.add(null);
+	    fields.add(field(template.substring(open + 1, close)));
+	    i = close + 1;
+	}
+    }
+
+    private void literal(final String s) {
+	literals.add(s);
+	fields.add(LITERAL);
+    }
+
+    private static int field(final String f) {
+	switch (f) {
+	case "host":
+	    return HOST;
+	case "module":
+	    return MODULE;
+	case "instance":
+	    return INSTANCE;
+	case "name":
+	case "device":
+	    return NAME;
+	case "stat":
+	    return STAT;
+	default:
+	    throw new IllegalArgumentException(
+			"Error: unknown template field {" + f + "}");
+	}
+    }
+
+    /**
+     * Return whether the template uses the given field.
+     *
+     * @param template the template
+     * @param f the name of the field, without braces
+     *
+     * @return true if the template contains the field
+     */
+    public static boolean uses(final String template, final String f) {
+	return template.contains("{" + f + "}");
+    }
+
+    /**
+     * Make a value safe to use as part of a metric path. Dots would add
+     * extra levels to the path, and whitespace would break the plaintext
+     * protocol, so they are replaced by underscores, as are any other
+     * control or non-ASCII characters.
+     *
+     * @param s the value to sanitize
+     *
+     * @return the sanitized value
+     */
+    public static String sanitize(final String s) {
+	StringBuilder sb = null;
+	for (int i = 0; i < s.length(); i++) {
+	    char c = s.charAt(i);
+	    if (c == '.' || c <= ' ' || c >= 0x7f) {
+		if (sb == null) {
+		    sb = new StringBuilder(s);
+		}
+		sb.setCharAt(i, '_');
+	    }
+	}
+	return sb == null ? s : sb.toString();
+    }
+
+    /*
+     * Expand the template for the given kstat, which may be null, and
+     * statistic.
+     */
+    private MetricPath expand(final Kstat ks, final String statistic) {
+	StringBuilder sb = new StringBuilder();
+	for (int i = 0; i < fields.size(); i++) {
+	    switch (fields.get(i)) {
+	    case HOST:
+		sb.append(host);
+		break;
+	    case MODULE:
+		if (ks != null) {
+		    sb.append(sanitize(ks.getModule()));
+		}
+		break;
+	    case INSTANCE:
+		if (ks != null) {
+		    sb.append(ks.getInst());
+		}
+		break;
+	    case NAME:
+		if (ks != null) {
+		    sb.append(sanitize(ks.getName()));
+		}
+		break;
+	    case STAT:
+		sb.append(sanitize(statistic));
+		break;
+	    default:
+		sb.append(literals.get(i));
+		break;
+	    }
+	}
+	return new MetricPath(sb.toString());
+    }
+
+    /**
+     * Return the paths for the statistics of the given kstat, in the
+     * order the statistics were given to the constructor.
+     *
+     * @param ks the kstat
+     *
+     * @return the array of paths, which must not be modified
+     */
+    public MetricPath[] paths(final Kstat ks) {
+	MetricPath[] paths = kstatPaths.get(ks);
+	if (paths == null) {
+	    paths = new MetricPath[statistics.length];
+	    for (int i = 0; i < statistics.length; i++) {
+		paths[i] = expand(ks, statistics[i]);
+	    }
+	    kstatPaths.put(key(ks), paths);
+	}
+	return paths;
+    }
+
+    /**
+     * Return the paths for the statistics, for metrics that don't come
+     * from an individual kstat.
+     *
+     * @return the array of paths, which must not be modified
+     */
+    public MetricPath[] paths() {
+	if (plainPaths == null) {
+	    plainPaths = new MetricPath[statistics.length];
+	    for (int i = 0; i < statistics.length; i++) {
+		plainPaths[i] = expand(null, statistics[i]);
+	    }
+	}
+	return plainPaths;
+    }
+
+    /**
+     * Return the path for an arbitrary statistic of the given kstat.
+     *
+     * @param ks the kstat
+     * @param statistic the statistic
+     *
+     * @return the path
+     */
+    public MetricPath path(final Kstat ks, final String statistic) {
+	Map<String, MetricPath> m = statPaths.get(ks);
+	if (m == null) {
+	    m = new HashMap<>();
+	    statPaths.put(key(ks), m);
+	}
+	MetricPath mp = m.get(statistic);
+	if (mp == null) {
+	    mp = expand(ks, statistic);
+	    m.put(statistic, mp);
+	}
+	return mp;
+    }
+
+    /*
+     * Kstats are equal if their module, instance, and name are, so use an
+     * empty copy as the key rather than holding on to the kstat and all
+     * its data.
+     */
+    private static Kstat key(final Kstat ks) {
+	return new Kstat(ks.getModule(), ks.getInst(), ks.getName());
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar.graphite;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import uk.co.petertribble.kar.KarOutput;
+
+/**
+ * The command line options, common to all the graphite exporters, that
+ * control where metrics are sent and how, how they are named, and where
+ * to keep track of what has already been sent.
+ *
+ * @author Peter Tribble
+ */
+public final class MetricOptions {
+
+    /**
+     * A usage message for the output options.
+     */
+    public static final String USAGE =
+	"[--carbon host:port | --pickle host:port] [--batch n]";
+    /**
+     * A usage message for the naming options.
+     */
+    public static final String NAMING_USAGE =
+	"[--prefix prefix] [--template template] [--host name]";
+    /**
+     * A usage message for the state option.
+     */
+    public static final String STATE_USAGE = "[--state file]";
+
+    private String carbon;
+    private String pickle;
+    private int batch = PickleWriter.DEFAULT_BATCH;
+    private String prefix;
+    private String template;
+    private String host;
+    private String statefile;
+
+    /**
+     * Return whether the given flag is one of ours. All our flags take an
+     * argument.
+     *
+     * @param flag the flag, without the leading -
+     *
+     * @return true if this flag is handled here
+     */
+    public boolean accepts(final String flag) {
+	return "-carbon".equals(flag) || "-pickle".equals(flag)
+	    || "-batch".equals(flag) || "-prefix".equals(flag)
+	    || "-template".equals(flag) || "-host".equals(flag)
+	    || "-state".equals(flag);
+    }
+
+    /**
+     * Set an option.
+     *
+     * @param flag the flag, without the leading -
+     * @param value the argument to the flag
+     *
+     * @throws IllegalArgumentException if the value is invalid
+     */
+    public void set(final String flag, final String value) {
+	if ("-carbon".equals(flag)) {
+	    carbon = value;
+	} else if ("-pickle".equals(flag)) {
+	    pickle = value;
+	} else if ("-prefix".equals(flag)) {
+	    prefix = value;
+	} else if ("-template".equals(flag)) {
+	    template = value;
+	} else if ("-host".equals(flag)) {
+	    host = value;
+	} else if ("-state".equals(flag)) {
+	    statefile = value;
+	} else if ("-batch".equals(flag)) {
+	    try {
+		batch = Integer.parseInt(value);
+	    } catch (NumberFormatException nfe) {
+		throw new IllegalArgumentException("Error: invalid batch");
+	    }
+	    if (batch < 1) {
+		throw new IllegalArgumentException(
+				"Error: batch must be positive");
+	    }
+	}
+    }
+
+    /**
+     * Return whether metrics are being sent to a remote server.
+     *
+     * @return true if sending to carbon
+     */
+    public boolean isRemote() {
+	return carbon != null || pickle != null;
+    }
+
+    /**
+     * Create a MetricWriter according to the options.
+     *
+     * @return a new MetricWriter
+     *
+     * @throws IllegalArgumentException if the options are invalid
+     */
+    public MetricWriter createWriter() {
+	if (carbon != null && pickle != null) {
+	    throw new IllegalArgumentException(
+			"Error: only one of --carbon and --pickle allowed");
+	}
+	if (pickle != null) {
+	    return new PickleWriter(new CarbonSender(pickle, true), batch);
+	}
+	if (carbon != null) {
+	    return new GraphiteWriter(new CarbonSender(carbon));
+	}
+	return new GraphiteWriter();
+    }
+
+    /**
+     * Create the destination for metrics according to the options, as a
+     * stream that the output of MetricWriters from
+     * {@link #createWriter(OutputStream)} can be copied to.
+     *
+     * @return a stream to carbon, or to standard output
+     *
+     * @throws IllegalArgumentException if the options are invalid
+     */
+    public OutputStream createSink() {
+	if (carbon != null && pickle != null) {
+	    throw new IllegalArgumentException(
+			"Error: only one of --carbon and --pickle allowed");
+	}
+	if (pickle != null) {
+	    return new CarbonSender(pickle, true);
+	}
+	if (carbon != null) {
+	    return new CarbonSender(carbon);
+	}
+	return new FileOutputStream(FileDescriptor.out);
+    }
+
+    /**
+     * Create a MetricWriter that writes to the given stream, in the
+     * format given by the options.
+     *
+     * @param os the stream to write to
+     *
+     * @return a new MetricWriter
+     */
+    public MetricWriter createWriter(final OutputStream os) {
+	if (pickle != null) {
+	    return new PickleWriter(os, batch);
+	}
+	return new GraphiteWriter(new KarOutput(os));
+    }
+
+    /**
+     * Create a MetricNamer according to the options. The path for each
+     * metric is the prefix, if given, and the template, separated by a
+     * dot. The host defaults to the name of this system, without any
+     * domain, but if the archive came from elsewhere the host should be
+     * given explicitly.
+     *
+     * @param deftemplate the template to use if none was given
+     * @param statistics the statistics to be named
+     *
+     * @return a new MetricNamer
+     *
+     * @throws IllegalArgumentException if the template is invalid
+     */
+    public MetricNamer createNamer(final String deftemplate,
+				final String... statistics) {
+	String t = template == null ? deftemplate : template;
+	if (prefix != null && !prefix.isEmpty()) {
+	    t = prefix + "." + t;
+	}
+	String h = host;
+	if (h == null && MetricNamer.uses(t, "host")) {
+	    h = localHost();
+	}
+	return new MetricNamer(t, h, statistics);
+    }
+
+    /**
+     * Read the saved state for an exporter and archive, if a state file
+     * was given.
+     *
+     * @param exporter the name of the exporter, such as iostat
+     * @param archive the name of the archive being exported
+     *
+     * @return the ExportState for the archive, or null if no state file
+     * was given
+     *
+     * @throws IllegalArgumentException if the state file can't be read
+     */
+    public ExportState createState(final String exporter,
+				final String archive) {
+	return statefile == null ? null
+	    : new ExportState(statefile, exporter, archive);
+    }
+
+    /**
+     * Return the name of this system, without any domain.
+     *
+     * @return the short host name of this system
+     */
+    public static String localHost() {
+	try {
+	    String h = InetAddress.getLocalHost().getHostName();
+	    int i = h.indexOf('.');
+	    return i > 0 ? h.substring(0, i) : h;
+	} catch (UnknownHostException uhe) {
+	    return "localhost";
+	}
+    }
+}
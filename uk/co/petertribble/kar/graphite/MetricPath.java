@@ -0,0 +1,69 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar.graphite;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A metric path, held both as a String and in its encoded form, so that
+ * it only needs to be encoded once however many times it's written.
+ *
+ * @author Peter Tribble
+ */
+public final class MetricPath {
+
+    private final String path;
+    private final byte[] bytes;
+
+    /**
+     * Create a new metric path.
+     *
+     * @param path the full path of the metric
+     */
+    public MetricPath(final String path) {
+	this.path = path;
+	bytes = path.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Return the path as a String.
+     *
+     * @return the path
+     */
+    public String getPath() {
+	return path;
+    }
+
+    /**
+     * Return the path encoded as UTF-8. The returned array must not be
+     * modified.
+     *
+     * @return the encoded path
+     */
+    public byte[] getBytes() {
+	return bytes;
+    }
+
+    @Override
+    public String toString() {
+	return path;
+    }
+}
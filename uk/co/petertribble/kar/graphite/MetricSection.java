@@ -0,0 +1,170 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar.graphite;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import uk.co.petertribble.jkstat.api.Kstat;
+import uk.co.petertribble.jkstat.api.KstatFilter;
+import uk.co.petertribble.jkstat.api.KstatSet;
+import uk.co.petertribble.kar.KarZipJKstat;
+
+/**
+ * One set of graphite metrics, such as the iostat or the load average
+ * metrics. A MetricExport passes each snapshot in an archive to every
+ * section, so that any combination of sections can be exported in a
+ * single pass through the archive.
+ *
+ * @author Peter Tribble
+ */
+abstract class MetricSection {
+
+    private final MetricWriter out;
+
+    /*
+     * Create a section writing its metrics to the given MetricWriter.
+     */
+    MetricSection(final MetricWriter out) {
+	this.out = out;
+    }
+
+    MetricWriter out() {
+	return out;
+    }
+
+    /*
+     * Called before the first snapshot, with the time to start exporting,
+     * the start of the day, and the boot time as of the first snapshot in
+     * the archive, in seconds since the epoch.
+     */
+    void begin(final long daystart, final long midnight,
+	    final long boottime) {
+    }
+
+    /*
+     * The time of the first snapshot this section needs to see. Sections
+     * that need the snapshots before the start time, to work out the first
+     * interval, need to see everything.
+     */
+    long startTime() {
+	return 0;
+    }
+
+    /*
+     * Carry on from a saved state, rather than starting afresh.
+     */
+    void restore(final ExportState state) {
+    }
+
+    /*
+     * Look at the current snapshot, given the boot time as of this
+     * snapshot, and whether the system has been rebooted since the
+     * previous one.
+     */
+    abstract void sample(KarZipJKstat sjkstat, long boottime,
+			boolean rebooted);
+
+    /*
+     * Save what this section needs to carry on after the last snapshot.
+     * Any counters are saved in the state directly; any kstats are added
+     * to the given collection, which is saved once all the sections have
+     * added theirs.
+     */
+    void save(final ExportState state, final Collection<Kstat> kstats) {
+    }
+
+    /*
+     * A section that reports the change in a set of kstats over each
+     * interval. The first interval is skipped if the system was already
+     * running at the start of the day, as there's no previous measurement.
+     */
+    abstract static class Delta extends MetricSection {
+
+	/*
+	 * The kstats from the previous snapshot, keyed by triplet.
+	 */
+	final Map<String, Kstat> lastMap = new HashMap<>();
+	private long daystart;
+	private boolean skipfirst;
+
+	Delta(final MetricWriter out) {
+	    super(out);
+	}
+
+	@Override
+	void begin(final long daystart, final long midnight,
+		final long boottime) {
+	    this.daystart = daystart;
+	    skipfirst = 1000 * boottime < midnight;
+	}
+
+	@Override
+	void restore(final ExportState state) {
+	    lastMap.putAll(state.getKstats());
+	    skipfirst = false;
+	}
+
+	@Override
+	void sample(final KarZipJKstat sjkstat, final long boottime,
+		final boolean rebooted) {
+	    /*
+	     * If we've rebooted since the last measurement, clear all the
+	     * saved measurements and the code will do the right thing.
+	     */
+	    if (rebooted) {
+		lastMap.clear();
+	    }
+	    KstatSet kss = new KstatSet(sjkstat, filter(sjkstat));
+	    // if past the start time, print output
+	    if (!skipfirst && sjkstat.getTime() > daystart) {
+		emit(sjkstat, kss);
+	    }
+	    lastMap.clear();
+	    remember(sjkstat, kss);
+	    skipfirst = false;
+	}
+
+	@Override
+	void save(final ExportState state, final Collection<Kstat> kstats) {
+	    kstats.addAll(lastMap.values());
+	}
+
+	/*
+	 * The filter that picks out this section's kstats.
+	 */
+	abstract KstatFilter filter(KarZipJKstat sjkstat);
+
+	/*
+	 * Write the metrics for the interval ending at this snapshot.
+	 */
+	abstract void emit(KarZipJKstat sjkstat, KstatSet kss);
+
+	/*
+	 * Save the kstats needed for the next interval.
+	 */
+	void remember(final KarZipJKstat sjkstat, final KstatSet kss) {
+	    for (Kstat ks : kss.getKstats()) {
+		lastMap.put(ks.getTriplet(), ks);
+	    }
+	}
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar.graphite;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.zip.ZipFile;
+import uk.co.petertribble.kar.KarZipJKstat;
+
+/**
+ * Serve the latest sar, load, iostat, mpstat, and fsstat metrics over
+ * HTTP, for Prometheus to scrape.
+ *
+ * The newest archive in the directory is checked at regular intervals,
+ * and when it has changed any new snapshots are read, carrying on from
+ * the last snapshot seen, with the state held in memory. Once the
+ * current archive is complete the state carries over into the next day's
+ * archive, so no interval is lost. The metrics are rendered once for
+ * each check that finds new data, so a scrape simply returns the most
+ * recently rendered metrics and never reads the archive.
+ *
+ * @author Peter Tribble
+ */
+public final class MetricServer {
+
+    private static final int DEFAULT_PORT = 9163;
+    private static final int DEFAULT_INTERVAL = 10;
+    private static final String OPENMETRICS_TYPE =
+	"application/openmetrics-text; version=1.0.0; charset=utf-8";
+    private static final String TEXT_TYPE =
+	"text/plain; version=0.0.4; charset=utf-8";
+
+    private final MetricOptions mopts = new MetricOptions();
+    private final OpenMetricsWriter writer = new OpenMetricsWriter();
+    private final ExportState state = new ExportState();
+    private MetricSection[] metrics;
+    private String dirname;
+    private String address;
+    private int port = DEFAULT_PORT;
+    private int interval = DEFAULT_INTERVAL;
+    private boolean diskhide;
+    private boolean showpart;
+    private File current;
+    private long lastModified;
+    private long lastLength;
+
+    /**
+     * Serve metrics from a directory of archives.
+     *
+     * @param args the command line arguments
+     */
+    public MetricServer(final String[] args) {
+	parseArgs(args);
+	if (dirname == null) {
+	    usage("Error: must supply a directory");
+	}
+	if (!new File(dirname).isDirectory()) {
+	    usage("Error: unable to read directory " + dirname);
+	}
+	metrics = new MetricSection[] {
+	    new GraphiteSar.Metrics(writer, mopts),
+	    new GraphiteLoad.Metrics(writer, mopts),
+	    new GraphiteIOstat.Metrics(writer, mopts, showpart, diskhide),
+	    new GraphiteMPstat.Metrics(writer, mopts),
+	    new GraphiteFSstat.Metrics(writer, mopts)
+	};
+	HttpServer server = null;
+	try {
+	    InetSocketAddress isa = address == null
+		? new InetSocketAddress(port)
+		: new InetSocketAddress(address, port);
+	    server = HttpServer.create(isa, 0);
+	} catch (IOException ioe) {
+	    System.err.println("Error: unable to listen on port " + port);
+	    System.exit(1);
+	}
+	server.createContext("/metrics", this::handle);
+	server.start();
+	follow();
+    }
+
+    /*
+     * serve -d dir [-p | -P] [--port port] [--address address]
+     *     [--interval seconds]
+     */
+    private void parseArgs(final String[] args) {
+	for (int i = 0; i < args.length; i++) {
+	    if (args[i].startsWith("-")) {
+		String flag = args[i].substring(1);
+		if ("p".equals(flag)) {
+		    showpart = true;
+		    continue;
+		} else if ("P".equals(flag)) {
+		    diskhide = true;
+		    continue;
+		}
+		if (i + 1 == args.length) {
+		    usage("Error: missing argument to " + args[i] + " flag");
+		}
+		i++;
+		if ("d".equals(flag)) {
+		    dirname = args[i];
+		} else if ("-address".equals(flag)) {
+		    address = args[i];
+		} else if ("-port".equals(flag)) {
+		    port = number(args[i], "port");
+		    if (port > 65535) {
+			usage("Error: invalid port");
+		    }
+		} else if ("-interval".equals(flag)) {
+		    interval = number(args[i], "interval");
+		} else {
+		    usage("Error: unsupported flag " + args[i - 1]);
+		}
+	    } else {
+		usage();
+	    }
+	}
+    }
+
+    /*
+     * Parse a positive number.
+     */
+    private int number(final String s, final String what) {
+	int n = 0;
+	try {
+	    n = Integer.parseInt(s);
+	} catch (NumberFormatException nfe) {
+	    usage("Error: invalid " + what);
+	}
+	if (n < 1) {
+	    usage("Error: invalid " + what);
+	}
+	return n;
+    }
+
+    /*
+     * Check the archive for new snapshots, for ever.
+     */
+    private void follow() {
+	while (true) {
+	    check();
+	    try {
+		Thread.sleep(interval * 1000L);
+	    } catch (InterruptedException ie) {
+		Thread.currentThread().interrupt();
+		return;
+	    }
+	}
+    }
+
+    /*
+     * Read any new snapshots from the newest archive. An archive that
+     * can't be read, perhaps because it's being written, is tried again
+     * next time.
+     */
+    private void check() {
+	File f = newest();
+	if (f == null || (f.equals(current) && f.lastModified() == lastModified
+		&& f.length() == lastLength)) {
+	    return;
+	}
+	long modified = f.lastModified();
+	long length = f.length();
+	try (ZipFile zf = new ZipFile(f)) {
+	    KarZipJKstat sjkstat = new KarZipJKstat(zf);
+	    if (sjkstat.size() > 0) {
+		new MetricExport(writer, state, false)
+		    .export(sjkstat, null, null, metrics);
+	    }
+	} catch (IOException ioe) {
+	    System.err.println("Warning: unable to read " + f);
+	    return;
+	}
+	current = f;
+	lastModified = modified;
+	lastLength = length;
+	writer.publish(state.getTime() / 1000);
+    }
+
+    /*
+     * The newest archive in the directory, which is the last by name.
+     */
+    private File newest() {
+	File[] files = new File(dirname).listFiles((d, name) ->
+			name.startsWith("ka-") && name.endsWith(".zip"));
+	File f = null;
+	if (files != null) {
+	    for (File file : files) {
+		if (f == null || file.getName().compareTo(f.getName()) > 0) {
+		    f = file;
+		}
+	    }
+	}
+	return f;
+    }
+
+    /*
+     * Send the latest metrics, in the OpenMetrics format if the client
+     * asks for it, and otherwise in the Prometheus text format, which is
+     * the same apart from the terminating comment, so is simply sent
+     * without it.
+     */
+    private void handle(final HttpExchange he) throws IOException {
+	try {
+	    String method = he.getRequestMethod();
+	    if (!"GET".equals(method) && !"HEAD".equals(method)) {
+		he.sendResponseHeaders(405, -1);
+		return;
+	    }
+	    String accept = he.getRequestHeaders().getFirst("Accept");
+	    boolean om = accept != null
+		&& accept.contains("application/openmetrics-text");
+	    he.getResponseHeaders().set("Content-Type",
+		om ? OPENMETRICS_TYPE : TEXT_TYPE);
+	    byte[] b = writer.getBody();
+	    int len = om ? b.length : OpenMetricsWriter.textLength(b);
+	    if ("HEAD".equals(method)) {
+		he.sendResponseHeaders(200, -1);
+		return;
+	    }
+	    if (len == 0) {
+		// nothing published yet, and an empty text body
+		he.sendResponseHeaders(200, -1);
+		return;
+	    }
+	    he.sendResponseHeaders(200, len);
+	    try (OutputStream os = he.getResponseBody()) {
+		os.write(b, 0, len);
+	    }
+	} finally {
+	    he.close();
+	}
+    }
+
+    /*
+     * Emit usage message and exit.
+     */
+    private void usage() {
+	System.err.println("Usage: serve -d directory [-p | -P] "
+			+ "[--port port] [--address address]");
+	System.err.println("             [--interval seconds]");
+	System.exit(1);
+    }
+
+    /*
+     * Emit usage message and exit.
+     */
+    private void usage(final String s) {
+	System.err.println(s);
+	usage();
+    }
+
+    /**
+     * Serve metrics from a directory of archives.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(final String[] args) {
+	new MetricServer(args);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar.graphite;
+
+import java.io.IOException;
+
+/**
+ * Somewhere to send metrics, each of which is a path, a value, and a time
+ * in seconds since the epoch.
+ *
+ * @author Peter Tribble
+ */
+public interface MetricWriter {
+
+    /**
+     * Write a metric with an integer value.
+     *
+     * @param path the metric path
+     * @param value the value of the metric
+     * @param t the time in seconds since the epoch
+     */
+    void metric(MetricPath path, long value, long t);
+
+    /**
+     * Write a metric with a floating point value, shown to 2 decimal
+     * places if written as text.
+     *
+     * @param path the metric path
+     * @param value the value of the metric
+     * @param t the time in seconds since the epoch
+     */
+    void metric(MetricPath path, double value, long t);
+
+    /**
+     * Write a metric with a floating point value, shown to the given
+     * number of decimal places if written as text.
+     *
+     * @param path the metric path
+     * @param value the value of the metric
+     * @param places the number of decimal places
+     * @param t the time in seconds since the epoch
+     */
+    void metric(MetricPath path, double value, int places, long t);
+
+    /**
+     * Write out any buffered metrics.
+     */
+    void flush();
+
+    /**
+     * Write out any buffered metrics, and close any connection.
+     */
+    void close();
+
+    /**
+     * Report whether any metrics have failed to be written.
+     *
+     * @return true if an error has occurred
+     */
+    boolean checkError();
+
+    /**
+     * Return the error that caused writing to fail.
+     *
+     * @return the most recent error, or null if there hasn't been one
+     */
+    IOException getError();
+}
@@ -0,0 +1,275 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar.graphite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import uk.co.petertribble.kar.KarOutput;
+
+/**
+ * Hold the latest value of each metric, and render them in the OpenMetrics
+ * text format, for Prometheus to scrape.
+ *
+ * Rather than writing each metric as it arrives, only the latest value is
+ * kept, and the whole set is rendered into a byte array when it's
+ * published. Serving a scrape is then just a matter of copying out the
+ * most recently published array, which may be done from another thread.
+ *
+ * The metric paths are expected to be those of the default templates,
+ * without a prefix. A path of the form section.name.stat becomes the
+ * metric kar_section_stat with the name as a label, such as
+ * kar_iostat_reads{device="sd0"}, section.stat becomes kar_section_stat,
+ * and the cpu utilization from sar becomes kar_cpu_stat. Every metric is
+ * a gauge. Metrics that aren't written between one publish and the next,
+ * such as those for a device that has gone away, are dropped.
+ *
+ * @author Peter Tribble
+ */
+public final class OpenMetricsWriter implements MetricWriter {
+
+    private static final byte[] EOF =
+	"# EOF\n".getBytes(StandardCharsets.UTF_8);
+
+    /*
+     * The name of the label for the middle level of a path, for each
+     * section.
+     */
+    private static final Map<String, String> LABELS = new HashMap<>();
+
+    static {
+	LABELS.put("iostat", "device");
+	LABELS.put("mpstat", "cpu");
+	LABELS.put("fsstat", "fstype");
+    }
+
+    /*
+     * The latest value of a single metric.
+     */
+    private static final class Series {
+	final String family;
+	final byte[] sample;
+	long lvalue;
+	double dvalue;
+	int places = -1;
+	int generation;
+
+	Series(final String family, final String labels) {
+	    this.family = family;
+	    sample = (family + labels + " ").getBytes(StandardCharsets.UTF_8);
+	}
+    }
+
+    private final Map<MetricPath, Series> series;
+    /*
+     * The same series, sorted so that each family is contiguous.
+     */
+    private final Map<String, Series> sorted;
+    private int generation;
+    private boolean written;
+    private volatile byte[] body = EOF;
+
+    /**
+     * Create an empty OpenMetricsWriter.
+     */
+    public OpenMetricsWriter() {
+	series = new HashMap<>();
+	sorted = new TreeMap<>();
+    }
+
+    /*
+     * Find the series for a path, converting the path to a metric name
+     * and labels the first time it's seen.
+     */
+    private Series series(final MetricPath path) {
+	Series s = series.get(path);
+	if (s == null) {
+	    String p = path.getPath();
+	    int first = p.indexOf('.');
+	    int last = p.lastIndexOf('.');
+	    String family;
+	    String labels = "";
+	    if (first < 0) {
+		family = "kar_cpu_" + p;
+	    } else if (first == last) {
+		family = "kar_" + p;
+	    } else {
+		String section = p.substring(0, first);
+		String label = LABELS.get(section);
+		family = "kar_" + section + p.substring(last);
+		labels = "{" + (label == null ? "name" : label) + "=\""
+		    + escape(p.substring(first + 1, last)) + "\"}";
+	    }
+	    family = name(family);
+	    s = new Series(family, labels);
+	    series.put(path, s);
+	    sorted.put(family + " " + labels, s);
+	}
+	s.generation = generation;
+	written = true;
+	return s;
+    }
+
+    /*
+     * Make a valid metric name, replacing anything other than letters,
+     * digits, and underscores.
+     */
+    private static String name(final String s) {
+	StringBuilder sb = new StringBuilder(s);
+	for (int i = 0; i < sb.length(); i++) {
+	    char c = sb.charAt(i);
+	    if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z')
+		    && !(c >= '0' && c <= '9')) {
+		sb.setCharAt(i, '_');
+	    }
+	}
+	return sb.toString();
+    }
+
+    /*
+     * Escape a label value.
+     */
+    private static String escape(final String s) {
+	return s.replace("\\", "\\\\").replace("\"", "\\\"")
+	    .replace("\n", "\\n");
+    }
+
+    @Override
+    public void metric(final MetricPath path, final long value,
+			final long t) {
+	Series s = series(path);
+	s.lvalue = value;
+	s.places = -1;
+    }
+
+    @Override
+    public void metric(final MetricPath path, final double value,
+			final long t) {
+	metric(path, value, 2, t);
+    }
+
+    @Override
+    public void metric(final MetricPath path, final double value,
+			final int places, final long t) {
+	Series s = series(path);
+	s.dvalue = value;
+	s.places = places;
+    }
+
+    /**
+     * Render the latest values, replacing those previously published. If
+     * nothing has been written since the last publish, the values are
+     * unchanged, and are rendered again only to update the time.
+     *
+     * @param snaptime the time of the latest snapshot, in seconds since
+     * the epoch, which is published as kar_snapshot_time_seconds
+     */
+    public void publish(final long snaptime) {
+	if (written) {
+	    Iterator<Series> it = sorted.values().iterator();
+	    while (it.hasNext()) {
+		if (it.next().generation != generation) {
+		    it.remove();
+		}
+	    }
+	    series.values().removeIf(s -> s.generation != generation);
+	    generation++;
+	    written = false;
+	}
+	ByteArrayOutputStream baos =
+	    new ByteArrayOutputStream(Math.max(body.length, 1024));
+	KarOutput out = new KarOutput(baos);
+	out.append("# TYPE kar_snapshot_time_seconds gauge\n")
+	    .append("kar_snapshot_time_seconds ").append(snaptime)
+	    .append('\n');
+	String family = null;
+	for (Series s : sorted.values()) {
+	    if (!s.family.equals(family)) {
+		family = s.family;
+		out.append("# TYPE ").append(family).append(" gauge\n");
+	    }
+	    out.append(s.sample);
+	    if (s.places < 0) {
+		out.append(s.lvalue);
+	    } else if (Double.isNaN(s.dvalue)) {
+		out.append("NaN");
+	    } else if (Double.isInfinite(s.dvalue)) {
+		out.append(s.dvalue > 0 ? "+Inf" : "-Inf");
+	    } else {
+		out.appendFixed(s.dvalue, s.places);
+	    }
+	    out.append('\n');
+	}
+	out.append(EOF);
+	out.flush();
+	body = baos.toByteArray();
+    }
+
+    /**
+     * Return the most recently published metrics. This may be called from
+     * any thread. The returned array must not be modified.
+     *
+     * @return the published metrics, in the OpenMetrics text format
+     */
+    public byte[] getBody() {
+	return body;
+    }
+
+    /**
+     * Return the length of a published body without its terminating
+     * comment, which is the same metrics in the Prometheus text format.
+     *
+     * @param b a body returned by getBody()
+     *
+     * @return the length of the body without the terminating comment
+     */
+    public static int textLength(final byte[] b) {
+	return b.length - EOF.length;
+    }
+
+    /**
+     * Nothing is written until the metrics are published.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Nothing is written until the metrics are published.
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean checkError() {
+	return false;
+    }
+
+    @Override
+    public IOException getError() {
+	return null;
+    }
+}
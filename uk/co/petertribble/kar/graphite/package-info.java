@@ -20,7 +20,7 @@
 
 /**
  * This package provides utilities for reading kar files and producing
- * output that can be consumed by Graphite.
+ * output that can be consumed by Graphite, or scraped by Prometheus.
  */
 
 package uk.co.petertribble.kar.graphite;
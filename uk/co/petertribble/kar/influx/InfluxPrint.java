@@ -0,0 +1,257 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar.influx;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipFile;
+import uk.co.petertribble.jkstat.api.Kstat;
+import uk.co.petertribble.kar.KarOutput;
+import uk.co.petertribble.kar.KarTime;
+import uk.co.petertribble.kar.KstatMatcher;
+import uk.co.petertribble.kar.KarZipJKstat;
+import uk.co.petertribble.kar.graphite.ExportState;
+import uk.co.petertribble.kar.graphite.MetricOptions;
+
+/**
+ * Print kstats matching a pattern from kar data, in the InfluxDB line
+ * protocol, with one line per kstat.
+ *
+ * @author Peter Tribble
+ */
+public final class InfluxPrint {
+
+    /*
+     * The default number of points in each request, as recommended for
+     * InfluxDB.
+     */
+    private static final int DEFAULT_BATCH = 5000;
+
+    private LineWriter lw;
+    private ExportState state;
+    private String stime;
+    private String etime;
+    private String filename;
+    private String url;
+    private String token;
+    private String measurement = "kstat";
+    private String host;
+    private String statefile;
+    private int batch = DEFAULT_BATCH;
+    private final Set<String> kstatPatterns;
+
+    /**
+     * Export kstats to InfluxDB.
+     *
+     * @param args the command line arguments
+     */
+    public InfluxPrint(final String[] args) {
+	kstatPatterns = new HashSet<>();
+	parseArgs(args);
+	if (kstatPatterns.isEmpty()) {
+	    usage("Must supply a pattern.");
+	}
+	try {
+	    KarOutput out = url == null ? KarOutput.stdout()
+		: new KarOutput(new InfluxSender(url, token));
+	    lw = new LineWriter(out, measurement,
+			host == null ? MetricOptions.localHost() : host, batch);
+	    if (statefile != null) {
+		state = new ExportState(statefile, "influx", filename);
+	    }
+	} catch (IllegalArgumentException iae) {
+	    usage(iae.getMessage());
+	}
+	try (ZipFile zf = new ZipFile(filename)) {
+	    accumulate(new KarZipJKstat(zf));
+	} catch (IOException ioe) {
+	    usage("Invalid zip file");
+	}
+    }
+
+    /*
+     * Argument parser. Usage is this form:
+     *
+     * print [-e time] [-f filename] [-s time] pattern [...]
+     *
+     * The -M, -I, -N, and -S flags together make up one more pattern.
+     */
+    private void parseArgs(final String[] args) {
+	String showmodule = null;
+	String showinstance = null;
+	String showname = null;
+	String showstatistic = null;
+	for (int i = 0; i < args.length; i++) {
+	    /*
+	     * All flags start with a -, and all of them take an argument,
+	     * which we pick out as we parse that flag.
+	     */
+	    if (args[i].startsWith("-")) {
+		String flag = args[i].substring(1);
+		if (i + 1 == args.length) {
+		    usage("Error: missing argument to " + args[i] + " flag");
+		}
+		i++;
+		if ("f".equals(flag)) {
+		    filename = args[i];
+		} else if ("e".equals(flag)) {
+		    etime = args[i];
+		} else if ("s".equals(flag)) {
+		    stime = args[i];
+		} else if ("M".equals(flag)) {
+		    showmodule = args[i];
+		} else if ("I".equals(flag)) {
+		    showinstance = args[i];
+		} else if ("N".equals(flag)) {
+		    showname = args[i];
+		} else if ("S".equals(flag)) {
+		    showstatistic = args[i];
+		} else if ("-url".equals(flag)) {
+		    url = args[i];
+		} else if ("-token".equals(flag)) {
+		    token = args[i];
+		} else if ("-measurement".equals(flag)) {
+		    measurement = args[i];
+		} else if ("-host".equals(flag)) {
+		    host = args[i];
+		} else if ("-state".equals(flag)) {
+		    statefile = args[i];
+		} else if ("-batch".equals(flag)) {
+		    try {
+			batch = Integer.parseInt(args[i]);
+		    } catch (NumberFormatException nfe) {
+			usage("Error: invalid batch");
+		    }
+		    if (batch < 1) {
+			usage("Error: batch must be positive");
+		    }
+		} else {
+		    usage("Error: unsupported flag " + args[i - 1]);
+		}
+	    } else {
+		kstatPatterns.add(args[i]);
+	    }
+	}
+	if (showmodule != null || showinstance != null || showname != null
+		|| showstatistic != null) {
+	    kstatPatterns.add(part(showmodule) + ":" + part(showinstance)
+			+ ":" + part(showname) + ":" + part(showstatistic));
+	}
+    }
+
+    private static String part(final String s) {
+	return s == null ? "" : s;
+    }
+
+    /*
+     * Go through the input reading all the entries, and writing out the
+     * matching kstats.
+     */
+    private void accumulate(final KarZipJKstat sjkstat) {
+	KstatMatcher ksm = new KstatMatcher();
+	long daystart = 0;
+	long dayend = 0;
+	try {
+	    for (String s : kstatPatterns) {
+		ksm.addFilter(s);
+	    }
+	    daystart = KarTime.getStartTimeInMillis(sjkstat, stime);
+	    dayend = KarTime.getEndTimeInMillis(sjkstat, etime);
+	} catch (IllegalArgumentException iae) {
+	    usage(iae.getMessage());
+	}
+	long lasttime = 0;
+	if (state != null && state.isSaved()) {
+	    // carry on from where we left off
+	    if (!state.resume(sjkstat, dayend)) {
+		finish();
+		return;
+	    }
+	} else if (!sjkstat.seek(daystart)) {
+	    // nothing from the start time on
+	    finish();
+	    return;
+	}
+	do {
+	    long t = sjkstat.getTime() / 1000;
+	    for (Kstat ks : ksm.getKstats(sjkstat.getKstats())) {
+		lw.point(ks, ksm.filteredStatistics(ks), t);
+	    }
+	    lasttime = sjkstat.getTime();
+	} while (sjkstat.next() && sjkstat.getTime() < dayend);
+	if (state != null && lasttime > 0) {
+	    state.setPosition(lasttime);
+	}
+	finish();
+    }
+
+    /*
+     * Send any remaining points and, if they were all sent, save how
+     * far we got.
+     */
+    private void finish() {
+	lw.close();
+	if (url != null && lw.checkError()) {
+	    System.err.println("Error: unable to send metrics to influx");
+	    System.exit(1);
+	}
+	if (state != null && !lw.checkError()) {
+	    try {
+		state.save();
+	    } catch (IOException ioe) {
+		System.err.println("Error: unable to save state");
+		System.exit(1);
+	    }
+	}
+    }
+
+    /*
+     * Emit usage message and exit.
+     */
+    private void usage() {
+	System.err.println("Usage: print [-e time] [-f filename] [-s time]");
+	System.err.println("         [-M module] [-I instance] "
+			+ "[-N name] [-S statistic] pattern [...]");
+	System.err.println("         [--url url [--token token]] "
+			+ "[--batch n]");
+	System.err.println("         [--measurement name] [--host name] "
+			+ "[--state file]");
+	System.exit(1);
+    }
+
+    /*
+     * Emit usage message and exit.
+     */
+    private void usage(final String s) {
+	System.err.println(s);
+	usage();
+    }
+
+    /**
+     * Export kstats to InfluxDB.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(final String[] args) {
+	new InfluxPrint(args);
+    }
+}
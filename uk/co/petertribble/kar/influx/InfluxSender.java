@@ -0,0 +1,213 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar.influx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Send data to an InfluxDB server using its HTTP write API.
+ *
+ * This is used as the sink for a buffered output. Data written here is
+ * held until the stream is flushed, and is then sent as the body of a
+ * single request, so the writer must only flush at the end of a line.
+ * Since the request is sent before the flush returns, reading of the
+ * archive is held up while the server is busy, and the amount of data
+ * held is bounded by the size of a batch.
+ *
+ * If the request fails, or the server is unavailable or overloaded, the
+ * request is sent again, backing off between attempts. If the server
+ * rejects the data there's no point trying again.
+ *
+ * @author Peter Tribble
+ */
+public final class InfluxSender extends OutputStream {
+
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 60000;
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long MAX_BACKOFF = 30000;
+    /*
+     * How much of an error response to show.
+     */
+    private static final int MAX_ERROR = 200;
+
+    private final URL url;
+    private final String token;
+    private byte[] buf;
+    private int count;
+
+    /**
+     * Create a sender for the given write URL, such as
+     * http://localhost:8086/write?db=kar for InfluxDB 1, or
+     * http://localhost:8086/api/v2/write?org=myorg&amp;bucket=kar for
+     * InfluxDB 2. The precision is set to seconds. No connection is made
+     * until there is something to send.
+     *
+     * @param address the URL to write to
+     * @param token an API token, or null if the server doesn't need one
+     *
+     * @throws IllegalArgumentException if the URL is invalid
+     */
+    public InfluxSender(final String address, final String token) {
+	this.token = token;
+	if (!address.startsWith("http://")
+		&& !address.startsWith("https://")) {
+	    throw new IllegalArgumentException("Invalid influx URL "
+					+ address);
+	}
+	String sep = address.indexOf('?') < 0 ? "?" : "&";
+	try {
+	    url = URI.create(address + sep + "precision=s").toURL();
+	} catch (IllegalArgumentException | MalformedURLException e) {
+	    throw new IllegalArgumentException("Invalid influx URL "
+					+ address);
+	}
+	buf = new byte[256 * 1024];
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+	write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    /**
+     * Add data to the current request.
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+	if (count + len > buf.length) {
+	    buf = Arrays.copyOf(buf, Math.max(count + len, 2 * buf.length));
+	}
+	System.arraycopy(b, off, buf, count, len);
+	count += len;
+    }
+
+    /**
+     * Send the current request, trying again if necessary.
+     *
+     * @throws IOException if the server rejects the data, or the data
+     * cannot be sent after repeated attempts
+     */
+    @Override
+    public void flush() throws IOException {
+	if (count == 0) {
+	    return;
+	}
+	long backoff = 1000;
+	for (int attempt = 1; ; attempt++) {
+	    String problem;
+	    try {
+		problem = post();
+		if (problem == null) {
+		    count = 0;
+		    return;
+		}
+	    } catch (RejectedException re) {
+		throw re;
+	    } catch (IOException ioe) {
+		problem = ioe.getMessage();
+	    }
+	    if (attempt == MAX_ATTEMPTS) {
+		throw new IOException("unable to send to influx at " + url
+				+ " (" + problem + ")");
+	    }
+	    System.err.println("Warning: influx request failed ("
+				+ problem + "), retrying");
+	    try {
+		Thread.sleep(backoff);
+	    } catch (InterruptedException ie) {
+		Thread.currentThread().interrupt();
+		throw new IOException("interrupted sending to influx");
+	    }
+	    backoff = Math.min(2 * backoff, MAX_BACKOFF);
+	}
+    }
+
+    /*
+     * Send the current request. Returns null if it succeeded, or why it
+     * failed if it's worth trying again.
+     */
+    private String post() throws IOException {
+	HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+	conn.setConnectTimeout(CONNECT_TIMEOUT);
+	conn.setReadTimeout(READ_TIMEOUT);
+	conn.setRequestMethod("POST");
+	conn.setDoOutput(true);
+	conn.setFixedLengthStreamingMode(count);
+	conn.setRequestProperty("Content-Type",
+			"text/plain; charset=utf-8");
+	if (token != null) {
+	    conn.setRequestProperty("Authorization", "Token " + token);
+	}
+	try (OutputStream os = conn.getOutputStream()) {
+	    os.write(buf, 0, count);
+	}
+	int code = conn.getResponseCode();
+	String message = response(conn, code);
+	if (code / 100 == 2) {
+	    return null;
+	}
+	if (code == 429 || code >= 500) {
+	    return "HTTP " + code;
+	}
+	// the data or the request is bad, so give up now
+	System.err.println("Error: influx rejected the data (HTTP "
+			+ code + ") " + message);
+	throw new RejectedException(code);
+    }
+
+    /*
+     * Read the response, so the connection can be reused, and return the
+     * start of it, which for an error describes the problem.
+     */
+    private static String response(final HttpURLConnection conn,
+				final int code) throws IOException {
+	try (InputStream is = code / 100 == 2 ? conn.getInputStream()
+		: conn.getErrorStream()) {
+	    if (is == null) {
+		return "";
+	    }
+	    byte[] b = is.readAllBytes();
+	    return new String(b, 0, Math.min(b.length, MAX_ERROR),
+			StandardCharsets.UTF_8).trim();
+	}
+    }
+
+    /*
+     * Thrown when the server rejects a request, so that it isn't sent
+     * again.
+     */
+    private static final class RejectedException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	RejectedException(final int code) {
+	    super("HTTP " + code);
+	}
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * CDDL HEADER START
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * CDDL HEADER END
+ *
+ * Copyright 2026 Peter Tribble
+ *
+ */
+
+package uk.co.petertribble.kar.influx;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import uk.co.petertribble.jkstat.api.Kstat;
+import uk.co.petertribble.kar.KarOutput;
+
+/**
+ * Write kstats in the InfluxDB line protocol, as one point per kstat.
+ *
+ * The measurement is tagged with the host, and the module, instance,
+ * name, and class of the kstat, and each numeric statistic is an integer
+ * field, so a whole kstat takes a single line. Times are in seconds since
+ * the epoch, so the data must be written with a precision of seconds.
+ *
+ * The measurement and tags for a kstat are worked out the first time
+ * it's seen and then cached, as are the field keys.
+ *
+ * @author Peter Tribble
+ */
+public final class LineWriter {
+
+    private final KarOutput out;
+    private final String measurement;
+    private final String host;
+    private final int batch;
+    private int npoints;
+    private final Map<Kstat, byte[]> seriesKeys;
+    private final Map<String, byte[]> fieldKeys;
+
+    /**
+     * Create a LineWriter writing to the given output.
+     *
+     * @param out where to write the points
+     * @param measurement the name of the measurement
+     * @param host the value of the host tag
+     * @param batch the number of points after which the output is flushed
+     */
+    public LineWriter(final KarOutput out, final String measurement,
+			final String host, final int batch) {
+	if (batch < 1) {
+	    throw new IllegalArgumentException("Invalid batch size");
+	}
+	this.out = out;
+	this.measurement = escape(measurement, false);
+	this.host = host;
+	this.batch = batch;
+	seriesKeys = new HashMap<>();
+	fieldKeys = new HashMap<>();
+    }
+
+    /**
+     * Escape a measurement, tag key or value, or field key. Commas and
+     * spaces, and in tags and field keys equals signs, must be escaped
+     * with a backslash. Control characters can't be escaped, so are
+     * replaced by underscores.
+     *
+     * @param s the String to escape
+     * @param tag true if escaping a tag key or value, or a field key
+     *
+     * @return the escaped String
+     */
+    public static String escape(final String s, final boolean tag) {
+	StringBuilder sb = new StringBuilder(s.length() + 8);
+	for (int i = 0; i < s.length(); i++) {
+	    char c = s.charAt(i);
+	    if (c == ',' || c == ' ' || (tag && c == '=')) {
+		sb.append('\\').append(c);
+	    } else if (c < ' ') {
+		// control characters can't be escaped, so replace them
+		sb.append('_');
+	    } else {
+		sb.append(c);
+	    }
+	}
+	return sb.toString();
+    }
+
+    /*
+     * Add a tag, skipping any that are empty as InfluxDB doesn't allow
+     * empty tag values.
+     */
+    private static void tag(final StringBuilder sb, final String key,
+			final String value) {
+	if (value != null && !value.isEmpty()) {
+	    sb.append(',').append(key).append('=')
+		.append(escape(value, true));
+	}
+    }
+
+    /*
+     * The measurement and tags for a kstat, with the tags in order of
+     * their keys, as InfluxDB prefers.
+     */
+    private byte[] seriesKey(final Kstat ks) {
+	byte[] b = seriesKeys.get(ks);
+	if (b == null) {
+	    StringBuilder sb = new StringBuilder(measurement);
+	    tag(sb, "class", ks.getKstatClass());
+	    tag(sb, "host", host);
+	    tag(sb, "instance", Integer.toString(ks.getInst()));
+	    tag(sb, "module", ks.getModule());
+	    tag(sb, "name", ks.getName());
+	    sb.append(' ');
+	    b = sb.toString().getBytes(StandardCharsets.UTF_8);
+	    // use an empty copy as the key rather than the kstat and its data
+	    seriesKeys.put(new Kstat(ks.getModule(), ks.getInst(),
+				ks.getName()), b);
+	}
+	return b;
+    }
+
+    private byte[] fieldKey(final String statistic) {
+	byte[] b = fieldKeys.get(statistic);
+	if (b == null) {
+	    b = (escape(statistic, true) + "=")
+		.getBytes(StandardCharsets.UTF_8);
+	    fieldKeys.put(statistic, b);
+	}
+	return b;
+    }
+
+    /**
+     * Write a point for the given statistics of a kstat. Statistics that
+     * aren't numeric are ignored, and if there are none left no point is
+     * written.
+     *
+     * @param ks the kstat
+     * @param statistics the statistics to include
+     * @param t the time in seconds since the epoch
+     */
+    public void point(final Kstat ks, final Collection<String> statistics,
+			final long t) {
+	boolean first = true;
+	for (String s : statistics) {
+	    if (ks.isNumeric(s)) {
+		if (first) {
+		    out.append(seriesKey(ks));
+		    first = false;
+		} else {
+		    out.append(',');
+		}
+		out.append(fieldKey(s)).append(ks.longData(s)).append('i');
+	    }
+	}
+	if (!first) {
+	    // the line protocol requires a bare newline
+	    out.append(' ').append(t).append('\n');
+	    npoints++;
+	    if (npoints >= batch) {
+		out.flush();
+		npoints = 0;
+	    }
+	}
+    }
+
+    /**
+     * Write out any buffered points.
+     */
+    public void close() {
+	out.flush();
+	npoints = 0;
+    }
+
+    /**
+     * Report whether any points have failed to be written.
+     *
+     * @return true if an error has occurred
+     */
+    public boolean checkError() {
+	return out.checkError();
+    }
+}